@@ -14,8 +14,10 @@
 package smartrics.jmeter.ant;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,17 +28,60 @@ import org.apache.jmeter.util.JMeterUtils;
 import smartrics.jmeter.sampler.JmxSampleResult;
 import smartrics.jmeter.sampler.SaveGraphUtil;
 import smartrics.jmeter.sampler.gui.ChartWrapper;
+import smartrics.jmeter.sampler.gui.MetricsChartWrapper;
+import smartrics.jmeter.sampler.gui.PercentileChartWrapper;
+import smartrics.jmeter.sampler.gui.PhaseChartWrapper;
+import smartrics.jmeter.sampler.http.PhaseTimer;
+import smartrics.jmeter.sampler.jmx.JvmMetrics;
+import smartrics.jmeter.sampler.stats.HistogramLog;
+import smartrics.jmeter.sampler.stats.LatencyHistogram;
 
 public class ChartGenerator extends DataExtractor {
     private Map<String, ChartWrapper> jmxCharts = new HashMap<String, ChartWrapper>();
     private Map<String, ChartWrapper> perfCharts = new HashMap<String, ChartWrapper>();
+    private Map<String, ChartWrapper> phaseCharts = new HashMap<String, ChartWrapper>();
+    private Map<String, ChartWrapper> jvmCharts = new LinkedHashMap<String, ChartWrapper>();
     private File jmxGraphFile;
     private File perfGraphFile;
+    private File histogramFile;
+    private File percentileGraphFile;
+    private File phaseGraphFile;
+    private File jvmGraphFile;
 
     public ChartGenerator(File jtlFile, File jmxGraphFile, File perfGraphFile) {
+        this(jtlFile, jmxGraphFile, perfGraphFile, null, null);
+    }
+
+    /**
+     * @param histogramFile
+     *            latency histograms written by the RestSampler, see
+     *            {@link HistogramLog}; may be null
+     * @param percentileGraphFile
+     *            where to chart the latency distribution of each label in the
+     *            histogram file; may be null
+     */
+    public ChartGenerator(File jtlFile, File jmxGraphFile, File perfGraphFile, File histogramFile, File percentileGraphFile) {
         super(jtlFile);
         this.jmxGraphFile = jmxGraphFile;
         this.perfGraphFile = perfGraphFile;
+        this.histogramFile = histogramFile;
+        this.percentileGraphFile = percentileGraphFile;
+    }
+
+    /**
+     * Sets where to chart, per host, the connection phases recorded by the
+     * RestSampler as sub results of its samples, see {@link PhaseTimer}.
+     */
+    public void setPhaseGraphFile(File phaseGraphFile) {
+        this.phaseGraphFile = phaseGraphFile;
+    }
+
+    /**
+     * Sets where to chart, per server and set, the JVM figures recorded by
+     * the JmxSampler as sub results of its samples, see {@link JvmMetrics}.
+     */
+    public void setJvmGraphFile(File jvmGraphFile) {
+        this.jvmGraphFile = jvmGraphFile;
     }
 
     public void handle(SampleResult res) {
@@ -44,18 +89,45 @@ public class ChartGenerator extends DataExtractor {
             handle((JmxSampleResult) res);
         else if (res instanceof HTTPSampleResult)
             handle((HTTPSampleResult) res);
+        else if (!JvmMetrics.figuresOf(res).isEmpty())
+            // a JMX sample read back as a plain result: the label stands for the server
+            handleJvmFigures(res.getSampleLabel(), res);
         else {
             throw new IllegalArgumentException("Unable to handle SampleResult of type " + res.getClass().getName());
         }
     }
 
     public void generate() {
-        if (jmxGraphFile == null && perfGraphFile == null) {
-            return;
+        if (jmxGraphFile != null || perfGraphFile != null || phaseGraphFile != null || jvmGraphFile != null) {
+            handleResults();
+            produceGraphFiles(jmxCharts, jmxGraphFile);
+            produceGraphFiles(perfCharts, perfGraphFile);
+            produceGraphFiles(phaseCharts, phaseGraphFile);
+            produceGraphFiles(jvmCharts, jvmGraphFile);
+        }
+        if (histogramFile != null && percentileGraphFile != null) {
+            producePercentileGraphFiles();
         }
-        handleResults();
-        produceGraphFiles(jmxCharts, jmxGraphFile);
-        produceGraphFiles(perfCharts, perfGraphFile);
+    }
+
+    private void producePercentileGraphFiles() {
+        Map<String, LatencyHistogram> histograms;
+        try {
+            histograms = HistogramLog.read(histogramFile);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to load latency histograms from " + histogramFile.getAbsolutePath(), e);
+        }
+        Map<String, ChartWrapper> charts = new LinkedHashMap<String, ChartWrapper>();
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram histogram = e.getValue();
+            PercentileChartWrapper chart = new PercentileChartWrapper();
+            String title = String.format("%s (%d samples, mean %.1f ms, max %d ms)", e.getKey(), histogram.getTotalCount(), histogram.getMean(),
+                    histogram.getMaxValue());
+            configure(chart, title, new String[] { "Time" }, "ms", "percentile");
+            chart.setHistogram(histogram);
+            charts.put(e.getKey(), chart);
+        }
+        produceGraphFiles(charts, percentileGraphFile);
     }
 
     private void produceGraphFiles(Map<String, ChartWrapper> charts, File graphFile) {
@@ -93,10 +165,27 @@ public class ChartGenerator extends DataExtractor {
             jmxCharts.put(res.getJmxUri(), jmxChart);
         }
         jmxChart.putRawData(res.getTimeStamp(), Long.parseLong(res.getSamplerData()));
+        handleJvmFigures(res.getJmxUri(), res);
+    }
+
+    private void handleJvmFigures(String uri, SampleResult res) {
+        for (Map.Entry<String, Map<String, Long>> set : JvmMetrics.figuresOf(res).entrySet()) {
+            String key = uri + " " + set.getKey();
+            MetricsChartWrapper chart = (MetricsChartWrapper) jvmCharts.get(key);
+            if (chart == null) {
+                chart = new MetricsChartWrapper();
+                configure(chart, JvmMetrics.getTitle(set.getKey()) + " for " + uri, new String[0], JvmMetrics.getUnit(set.getKey()), "time");
+                jvmCharts.put(key, chart);
+            }
+            chart.putFigures(res.getTimeStamp(), set.getValue());
+        }
     }
 
     private ChartWrapper createChartWrapper(String title, String[] label, String yaTitle, String xaTitle) {
-        ChartWrapper chart = new ChartWrapper();
+        return configure(new ChartWrapper(), title, label, yaTitle, xaTitle);
+    }
+
+    private ChartWrapper configure(ChartWrapper chart, String title, String[] label, String yaTitle, String xaTitle) {
         chart.setHeight(600);
         chart.setWidth(800);
         chart.setTitle(title);
@@ -121,6 +210,41 @@ public class ChartGenerator extends DataExtractor {
             perfCharts.put(uri, timeChart);
         }
         timeChart.putRawData(res.getTimeStamp(), res.getEndTime() - res.getStartTime());
+        handlePhases(uri, res);
+    }
+
+    private void handlePhases(String uri, SampleResult res) {
+        long[] times = new long[PhaseTimer.NAMES.length];
+        if (!collectPhases(res, times)) {
+            return;
+        }
+        PhaseChartWrapper phaseChart = (PhaseChartWrapper) phaseCharts.get(uri);
+        if (phaseChart == null) {
+            phaseChart = new PhaseChartWrapper();
+            configure(phaseChart, uri + " phases", PhaseTimer.NAMES, "ms", "time");
+            phaseCharts.put(uri, phaseChart);
+        }
+        phaseChart.putPhases(res.getTimeStamp(), times);
+    }
+
+    /**
+     * Sums the phases found in the sub results, at any depth, so that the
+     * requests of a sample sending many at once add up.
+     *
+     * @return true if any phase was found
+     */
+    private boolean collectPhases(SampleResult res, long[] times) {
+        boolean found = false;
+        for (SampleResult sub : res.getSubResults()) {
+            int phase = PhaseTimer.phaseOf(sub.getSampleLabel());
+            if (phase >= 0) {
+                times[phase] += sub.getTime();
+                found = true;
+            } else {
+                found |= collectPhases(sub, times);
+            }
+        }
+        return found;
     }
 
     public static void main(String[] args) {
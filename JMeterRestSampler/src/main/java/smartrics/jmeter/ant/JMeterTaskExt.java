@@ -24,6 +24,8 @@ import org.apache.soap.providers.com.Log;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 
+import smartrics.jmeter.sampler.stats.HistogramLog;
+
 public class JMeterTaskExt extends JMeterTask {
 
     private String succecssThresholdPerc;
@@ -74,10 +76,23 @@ public class JMeterTaskExt extends JMeterTask {
                 File jmxChartFile = new File(chartsOutputDir, name + "_jmxChart.png");
                 File perfChartFile = new File(chartsOutputDir, name + "_perfChart.png");
                 File fullResult = new File(getResultLogDir(), result.getName());
-                ChartGenerator dataExtractor = new ChartGenerator(fullResult, jmxChartFile, perfChartFile);
+                // latency histograms are expected next to the results, see HistogramLog
+                File histogramFile = new File(getResultLogDir(), name + HistogramLog.EXTENSION);
+                File percentileChartFile = null;
+                if (histogramFile.isFile()) {
+                    percentileChartFile = new File(chartsOutputDir, name + "_percentileChart.png");
+                } else {
+                    histogramFile = null;
+                }
+                ChartGenerator dataExtractor = new ChartGenerator(fullResult, jmxChartFile, perfChartFile, histogramFile, percentileChartFile);
+                dataExtractor.setPhaseGraphFile(new File(chartsOutputDir, name + "_phaseChart.png"));
+                dataExtractor.setJvmGraphFile(new File(chartsOutputDir, name + "_jvmChart.png"));
                 log("Generating charts with data extracted from " + fullResult.getAbsolutePath(), Project.MSG_VERBOSE);
                 dataExtractor.generate();
                 log("Charts generated in '" + jmxChartFile.getAbsolutePath() + "' and '" + perfChartFile.getAbsolutePath() + "'", Project.MSG_VERBOSE);
+                if (percentileChartFile != null) {
+                    log("Latency distribution charted in '" + percentileChartFile.getAbsolutePath() + "'", Project.MSG_VERBOSE);
+                }
             }
         }
     }
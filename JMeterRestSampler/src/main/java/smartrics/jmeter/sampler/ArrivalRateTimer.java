@@ -0,0 +1,254 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jmeter.engine.event.LoopIterationEvent;
+import org.apache.jmeter.testelement.AbstractTestElement;
+import org.apache.jmeter.testelement.TestListener;
+import org.apache.jmeter.timers.Timer;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Paces the samplers in its scope on an open model: requests are started at
+ * a target rate, constant or ramping linearly from a start rate, whatever the
+ * time taken by the previous responses.
+ *
+ * All the threads in scope share one schedule: before each sample a thread
+ * takes the next arrival of the schedule and sleeps until its intended start
+ * time. When the threads cannot keep up the intended start time is already
+ * past and the sample starts immediately; the RestSampler then records, next
+ * to the service time, the time elapsed since the intended start, so that the
+ * queueing is not hidden from the reported latencies (coordinated omission).
+ * Enough threads must be configured for the target rate to be reachable.
+ */
+public class ArrivalRateTimer extends AbstractTestElement implements Timer, TestListener {
+    private static final long serialVersionUID = 4187512984501750915L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String RATE = "ArrivalRateTimer.rate";
+
+    public static final String START_RATE = "ArrivalRateTimer.start_rate";
+
+    public static final String RAMP_TIME = "ArrivalRateTimer.ramp_time";
+
+    public static final String CORRECTED_ELAPSED = "ArrivalRateTimer.corrected_elapsed";
+
+    // starting later than this is not reported as a missed schedule
+    private static final long LAG_TOLERANCE = 10;
+
+    private static final ThreadLocal<Arrival> arrivals = new ThreadLocal<Arrival>();
+
+    // shared by all the clones of this timer, see clone()
+    private transient Schedule schedule = new Schedule();
+
+    /**
+     * The intended start of a sample, handed from the timer to the sampler
+     * running next in the same thread.
+     */
+    public static final class Arrival {
+        private final long intendedStart;
+        private final boolean correctedElapsed;
+
+        Arrival(long intendedStart, boolean correctedElapsed) {
+            this.intendedStart = intendedStart;
+            this.correctedElapsed = correctedElapsed;
+        }
+
+        /**
+         * @return the time the sample was meant to start according to the
+         *         schedule
+         */
+        public long getIntendedStart() {
+            return intendedStart;
+        }
+
+        /**
+         * @return true if the elapsed time of the sample must be measured from
+         *         the intended start rather than from the actual start
+         */
+        public boolean isCorrectedElapsed() {
+            return correctedElapsed;
+        }
+    }
+
+    /**
+     * The arrivals of a test: the n-th arrival is intended at the time the
+     * rate profile reaches n requests since the start of the schedule.
+     */
+    private static final class Schedule {
+        private final AtomicLong next = new AtomicLong();
+        private final AtomicLong late = new AtomicLong();
+        private final AtomicLong maxLag = new AtomicLong();
+        private volatile long start;
+
+        long nextIntendedStart(double startRate, double rate, double rampSeconds) {
+            if (start == 0) {
+                synchronized (this) {
+                    if (start == 0) {
+                        start = System.currentTimeMillis();
+                    }
+                }
+            }
+            long n = next.getAndIncrement();
+            return start + Math.round(1000 * secondsToArrival(n, startRate, rate, rampSeconds));
+        }
+
+        void recordLag(long lag) {
+            late.incrementAndGet();
+            long max;
+            while (lag > (max = maxLag.get()) && !maxLag.compareAndSet(max, lag)) {
+                // retry
+            }
+        }
+    }
+
+    public ArrivalRateTimer() {
+    }
+
+    /**
+     * Returns the seconds from the start of the schedule to the n-th arrival
+     * (counting from 0), for a rate ramping linearly from startRate to rate
+     * in rampSeconds and constant afterwards.
+     */
+    static double secondsToArrival(long n, double startRate, double rate, double rampSeconds) {
+        if (rampSeconds <= 0 || startRate == rate) {
+            return n / rate;
+        }
+        // arrivals during the ramp: startRate * t + (rate - startRate) * t^2 / (2 * ramp)
+        double inRamp = (startRate + rate) * rampSeconds / 2;
+        if (n >= inRamp) {
+            return rampSeconds + (n - inRamp) / rate;
+        }
+        double a = (rate - startRate) / (2 * rampSeconds);
+        return (Math.sqrt(startRate * startRate + 4 * a * n) - startRate) / (2 * a);
+    }
+
+    /**
+     * Takes the arrival recorded by the timer for the current thread, if any.
+     * Each arrival is returned only once.
+     */
+    public static Arrival takeArrival() {
+        Arrival arrival = arrivals.get();
+        if (arrival != null) {
+            arrivals.remove();
+        }
+        return arrival;
+    }
+
+    public long delay() {
+        double rate = getRate();
+        if (rate <= 0) {
+            return 0;
+        }
+        double startRate = Math.max(getStartRate(), 0);
+        long intended = schedule.nextIntendedStart(startRate, rate, getRampTime());
+        arrivals.set(new Arrival(intended, getCorrectedElapsed()));
+        long delay = intended - System.currentTimeMillis();
+        if (delay < 0) {
+            if (-delay > LAG_TOLERANCE) {
+                schedule.recordLag(-delay);
+            }
+            return 0;
+        }
+        return delay;
+    }
+
+    /**
+     * Clones share the schedule of the original, so that all the threads
+     * draw their arrivals from the same sequence.
+     */
+    public Object clone() {
+        ArrivalRateTimer clone = (ArrivalRateTimer) super.clone();
+        clone.schedule = schedule;
+        return clone;
+    }
+
+    /**
+     * Sets the target rate, in requests per second.
+     */
+    public void setRate(double rate) {
+        setProperty(RATE, Double.toString(rate));
+    }
+
+    public double getRate() {
+        return getPropertyAsDouble(RATE);
+    }
+
+    /**
+     * Sets the rate, in requests per second, the ramp starts from.
+     */
+    public void setStartRate(double rate) {
+        setProperty(START_RATE, Double.toString(rate));
+    }
+
+    public double getStartRate() {
+        return getPropertyAsDouble(START_RATE);
+    }
+
+    /**
+     * Sets the seconds taken to ramp from the start rate to the target rate;
+     * 0 for a constant rate.
+     */
+    public void setRampTime(double seconds) {
+        setProperty(RAMP_TIME, Double.toString(seconds));
+    }
+
+    public double getRampTime() {
+        return getPropertyAsDouble(RAMP_TIME);
+    }
+
+    public void setCorrectedElapsed(boolean corrected) {
+        setProperty(CORRECTED_ELAPSED, corrected);
+    }
+
+    /**
+     * @return true if the elapsed time of the samples is measured from their
+     *         intended start, so that all the listeners see the corrected
+     *         time; the service time is then only kept in the result.
+     */
+    public boolean getCorrectedElapsed() {
+        return getPropertyAsBoolean(CORRECTED_ELAPSED);
+    }
+
+    public void testStarted() {
+        schedule = new Schedule();
+    }
+
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    public void testEnded() {
+        long total = schedule.next.get();
+        long late = schedule.late.get();
+        if (late > 0) {
+            log.warn(getName() + ": " + late + " of " + total + " requests started more than " + LAG_TOLERANCE + "ms late, by up to " + schedule.maxLag.get()
+                    + "ms: add threads to reach the target rate");
+        } else {
+            log.info(getName() + ": " + total + " requests started on schedule");
+        }
+    }
+
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    public void testIterationStart(LoopIterationEvent event) {
+    }
+}
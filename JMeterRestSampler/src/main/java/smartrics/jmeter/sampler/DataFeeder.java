@@ -0,0 +1,340 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jmeter.config.ConfigTestElement;
+import org.apache.jmeter.engine.event.LoopIterationEvent;
+import org.apache.jmeter.engine.event.LoopIterationListener;
+import org.apache.jmeter.testelement.TestListener;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import smartrics.jmeter.sampler.feed.MappedLines;
+
+/**
+ * Feeds the threads in its scope with the rows of a large data file, for
+ * example the ids of the resources a RestSampler requests, as JMeter
+ * variables set at the start of each iteration.
+ *
+ * The file is memory mapped and indexed once, see {@link MappedLines}, and
+ * the rows are handed to the threads without locking:
+ * <ul>
+ * <li>{@link #SEQUENTIAL}: the threads share a cursor, advanced atomically.</li>
+ * <li>{@link #RANDOM}: each thread picks rows at random.</li>
+ * <li>{@link #PARTITIONED}: the rows are split in as many contiguous ranges as
+ * partitions, each thread reading the range of its number in order.</li>
+ * </ul>
+ * A row is split on the delimiter in as many values as variable names, the
+ * last one taking the rest of the row; with a single name, as for NDJSON
+ * files, the whole row is the value. Quotes are not interpreted. Without
+ * variable names, the names are read from the first row. Blank lines are
+ * skipped.
+ *
+ * Once the rows are exhausted they are read again from the start, unless
+ * recycling is off: the variables are then set to {@link #EOF}.
+ */
+public class DataFeeder extends ConfigTestElement implements LoopIterationListener, TestListener {
+    private static final long serialVersionUID = -6140224817703553261L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String FILENAME = "DataFeeder.filename";
+
+    public static final String VARIABLE_NAMES = "DataFeeder.variable_names";
+
+    public static final String DELIMITER = "DataFeeder.delimiter";
+
+    public static final String FILE_ENCODING = "DataFeeder.file_encoding";
+
+    public static final String MODE = "DataFeeder.mode";
+
+    public static final String PARTITIONS = "DataFeeder.partitions";
+
+    public static final String RECYCLE = "DataFeeder.recycle";
+
+    public static final String SEQUENTIAL = "sequential";
+
+    public static final String RANDOM = "random";
+
+    public static final String PARTITIONED = "partitioned";
+
+    public static final String[] MODES = new String[] { SEQUENTIAL, RANDOM, PARTITIONED };
+
+    public static final String EOF = "<EOF>";
+
+    private static final String DEFAULT_ENCODING = "UTF-8";
+
+    // shared by all the clones of this feeder, see clone()
+    private transient Feed feed;
+
+    // state of the thread owning this clone
+    private transient Random random;
+    private transient long start;
+    private transient long next = -1;
+    private transient long end;
+
+    /**
+     * The rows of a test and the cursor shared by the threads.
+     */
+    private static final class Feed {
+        private final MappedLines lines;
+        private final String[] names;
+        private final int first;
+        private final AtomicLong cursor = new AtomicLong();
+
+        Feed(MappedLines lines, String[] names, int first) {
+            this.lines = lines;
+            this.names = names;
+            this.first = first;
+        }
+
+        int rows() {
+            return lines.size() - first;
+        }
+    }
+
+    public DataFeeder() {
+    }
+
+    /**
+     * Clones share the feed of the original, so that all the threads draw
+     * their rows from the same file and cursor.
+     */
+    public Object clone() {
+        DataFeeder clone = (DataFeeder) super.clone();
+        clone.feed = feed;
+        return clone;
+    }
+
+    public void setFilename(String filename) {
+        setProperty(FILENAME, filename);
+    }
+
+    public String getFilename() {
+        return getPropertyAsString(FILENAME);
+    }
+
+    /**
+     * Sets the comma separated names of the variables set from each row;
+     * empty to read them from the first row.
+     */
+    public void setVariableNames(String names) {
+        setProperty(VARIABLE_NAMES, names);
+    }
+
+    public String getVariableNames() {
+        return getPropertyAsString(VARIABLE_NAMES);
+    }
+
+    public void setDelimiter(String delimiter) {
+        setProperty(DELIMITER, delimiter);
+    }
+
+    /**
+     * @return the delimiter of the values in a row, a comma if not set;
+     *         <code>\t</code> stands for a tab
+     */
+    public String getDelimiter() {
+        String delimiter = getPropertyAsString(DELIMITER);
+        if (delimiter == null || delimiter.length() == 0) {
+            return ",";
+        }
+        return "\\t".equals(delimiter) ? "\t" : delimiter;
+    }
+
+    public void setFileEncoding(String encoding) {
+        setProperty(FILE_ENCODING, encoding);
+    }
+
+    public String getFileEncoding() {
+        String encoding = getPropertyAsString(FILE_ENCODING);
+        if (encoding == null || encoding.trim().length() == 0) {
+            return DEFAULT_ENCODING;
+        }
+        return encoding.trim();
+    }
+
+    /**
+     * Sets how rows are handed to the threads, one of {@link #MODES}.
+     */
+    public void setMode(String mode) {
+        setProperty(MODE, mode);
+    }
+
+    public String getMode() {
+        String mode = getPropertyAsString(MODE);
+        if (mode == null || mode.length() == 0) {
+            return SEQUENTIAL;
+        }
+        return mode;
+    }
+
+    /**
+     * Sets the number of ranges the rows are split in, in partitioned mode;
+     * usually the number of threads. 0 for the number of threads running
+     * when a thread reads its first row.
+     */
+    public void setPartitions(int partitions) {
+        setProperty(PARTITIONS, Integer.toString(partitions));
+    }
+
+    public int getPartitions() {
+        return getPropertyAsInt(PARTITIONS);
+    }
+
+    public void setRecycle(boolean recycle) {
+        setProperty(RECYCLE, recycle);
+    }
+
+    public boolean getRecycle() {
+        return getPropertyAsBoolean(RECYCLE, true);
+    }
+
+    public void testStarted() {
+        feed = null;
+        String filename = getFilename();
+        if (filename == null || filename.trim().length() == 0) {
+            log.error(getName() + ": no data file set");
+            return;
+        }
+        try {
+            MappedLines lines = MappedLines.forFile(filename.trim());
+            String names = getVariableNames();
+            int first = 0;
+            if (names == null || names.trim().length() == 0) {
+                if (lines.size() == 0) {
+                    log.error(getName() + ": no variable names in empty file " + filename);
+                    return;
+                }
+                names = lines.get(0, getFileEncoding());
+                first = 1;
+            }
+            // names from the file are delimited as the rows are
+            String[] split = names.split(Pattern.quote(first == 0 ? "," : getDelimiter()));
+            for (int i = 0; i < split.length; i++) {
+                split[i] = split[i].trim();
+            }
+            feed = new Feed(lines, split, first);
+            log.info(getName() + ": " + feed.rows() + " rows in " + lines.getPath());
+        } catch (IOException e) {
+            log.error(getName() + ": unable to read " + filename, e);
+        }
+    }
+
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    public void testEnded() {
+        feed = null;
+        MappedLines.releaseAll();
+    }
+
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    public void testIterationStart(LoopIterationEvent event) {
+    }
+
+    /**
+     * Sets the variables from the next row of the thread.
+     */
+    public void iterationStart(LoopIterationEvent event) {
+        Feed f = feed;
+        JMeterContext context = JMeterContextService.getContext();
+        JMeterVariables vars = context.getVariables();
+        if (f == null || vars == null) {
+            return;
+        }
+
+        int rows = f.rows();
+        long row = rows > 0 ? nextRow(f, rows, context) : -1;
+        if (row < 0) {
+            for (String name : f.names) {
+                vars.put(name, EOF);
+            }
+            return;
+        }
+        String line;
+        try {
+            line = f.lines.get(f.first + (int) row, getFileEncoding());
+        } catch (IOException e) {
+            log.error(getName() + ": unable to decode row " + row, e);
+            return;
+        }
+        String[] names = f.names;
+        if (names.length == 1) {
+            vars.put(names[0], line);
+            return;
+        }
+        String delimiter = getDelimiter();
+        int from = 0;
+        for (int i = 0; i < names.length; i++) {
+            int to = i == names.length - 1 ? -1 : line.indexOf(delimiter, from);
+            if (to < 0) {
+                vars.put(names[i], from < line.length() ? line.substring(from) : "");
+                from = line.length() + 1;
+            } else {
+                vars.put(names[i], line.substring(from, to));
+                from = to + delimiter.length();
+            }
+        }
+    }
+
+    /**
+     * @return the index of the next row for the current thread, -1 if the
+     *         rows are exhausted
+     */
+    private long nextRow(Feed f, int rows, JMeterContext context) {
+        String mode = getMode();
+        if (RANDOM.equals(mode)) {
+            if (random == null) {
+                random = new Random();
+            }
+            return random.nextInt(rows);
+        }
+        if (PARTITIONED.equals(mode)) {
+            if (next < 0) {
+                int partitions = getPartitions() > 0 ? getPartitions() : Math.max(JMeterContextService.getNumberOfThreads(), 1);
+                int partition = context.getThreadNum() % partitions;
+                next = (long) rows * partition / partitions;
+                end = (long) rows * (partition + 1) / partitions;
+                start = next;
+            }
+            if (next >= end) {
+                if (!getRecycle() || start == end) {
+                    return -1;
+                }
+                next = start;
+            }
+            return next++;
+        }
+        long n = f.cursor.getAndIncrement();
+        if (n >= rows && !getRecycle()) {
+            return -1;
+        }
+        return n % rows;
+    }
+}
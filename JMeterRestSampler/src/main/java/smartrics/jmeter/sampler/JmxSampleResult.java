@@ -14,8 +14,12 @@
 
 package smartrics.jmeter.sampler;
 
+import java.util.Map;
+
 import org.apache.jmeter.samplers.SampleResult;
 
+import smartrics.jmeter.sampler.jmx.JvmMetrics;
+
 /**
  * The result of a sample on a JMX server.
  * 
@@ -54,4 +58,20 @@ public class JmxSampleResult extends SampleResult {
     public void setJmxUri(String uri) {
         this.jmxUri = uri;
     }
+
+    /**
+     * @return the JVM figures sampled besides the memory, by set and then by
+     *         name, see {@link JvmMetrics}
+     */
+    public Map<String, Map<String, Long>> getMetrics() {
+        return JvmMetrics.figuresOf(this);
+    }
+
+    /**
+     * Adds the figures as sub results, see
+     * {@link JvmMetrics#addTo(SampleResult, Map)}.
+     */
+    public void setMetrics(Map<String, Map<String, Long>> metrics) {
+        JvmMetrics.addTo(this, metrics);
+    }
 }
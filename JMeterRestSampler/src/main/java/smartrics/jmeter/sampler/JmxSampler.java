@@ -14,15 +14,19 @@
 
 package smartrics.jmeter.sampler;
 
-import java.util.HashMap;
-import java.util.Map;
-
+import org.apache.jmeter.engine.event.LoopIterationEvent;
 import org.apache.jmeter.samplers.AbstractSampler;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestListener;
 
+import smartrics.jmeter.sampler.jmx.JmxConnection;
+import smartrics.jmeter.sampler.jmx.JmxPoller;
+import smartrics.jmeter.sampler.jmx.JmxSnapshot;
+import smartrics.jmeter.sampler.jmx.JvmMetrics;
 import smartrics.jmeter.sampler.jmx.MemUsageJmxClient;
 import smartrics.jmeter.sampler.jmx.MemUsageJmxClient.MemoryData;
+import smartrics.jmeter.sampler.jmx.RateGate;
 
 /**
  * This samples a JMX server for memory usage. At the moment only for Heap
@@ -30,17 +34,29 @@ import smartrics.jmeter.sampler.jmx.MemUsageJmxClient.MemoryData;
  * the server, whether and where to save a graph file of the results and the
  * sample frequency.
  * 
+ * Other health figures of the JVM can be sampled along with the memory, see
+ * {@link JvmMetrics} for the sets that can be selected.
+ * 
  * It's a bit odd as a sampler because it should not be used to gather
  * performance measures on a JMX server.
  * 
  * It's main usage, in fact, is for reporting on memory usage, functional to
  * robustness builds.
+ * 
+ * The connections to the JMX servers are kept open for the whole test and
+ * shared by all the samplers, see {@link JmxConnection}.
+ * 
+ * However many threads run the sampler, a server is sampled at most once
+ * per sample frequency: each sample waits for its slot, see {@link RateGate}.
+ * 
+ * Alternatively the server can be polled in the background, at a fixed rate,
+ * see {@link JmxPoller}: the sampler then only reports the readings taken,
+ * one per sample, and the timings do not depend on the JMeter threads.
  */
-public class JmxSampler extends AbstractSampler {
+public class JmxSampler extends AbstractSampler implements TestListener {
     public static String HEAP_MEM = "heap";
     public static String NON_HEAP_MEM = "non heap";
     private static final long serialVersionUID = -5877623539165274730L;
-    private static Map<String, Long> lastSampleTs = new HashMap<String, Long>();
 
     public static final String JMX_URI = "JmxSampler.jmx_uri";
 
@@ -50,9 +66,41 @@ public class JmxSampler extends AbstractSampler {
 
     public static final String JMX_LAST_SAMPLE_TS = "JmxSampler.jmx_last_sample_ts";
 
+    public static final String JMX_BACKGROUND_POLLING = "JmxSampler.jmx_background_polling";
+
+    public static final String JMX_METRICS = "JmxSampler.jmx_metrics";
+
+    private transient MemUsageJmxClient client;
+
+    private transient String clientUri;
+
+    private transient JvmMetrics metrics;
+
+    private transient String metricsFrom;
+
     public JmxSampler() {
     }
 
+    public void testStarted() {
+    }
+
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    public void testEnded() {
+        JmxPoller.stopAll();
+        JmxConnection.closeAll();
+        RateGate.clearAll();
+    }
+
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    public void testIterationStart(LoopIterationEvent event) {
+    }
+
     public int getSampleFrequency() {
         return getPropertyAsInt(JMX_SAMPLE_FREQUENCY);
     }
@@ -61,15 +109,35 @@ public class JmxSampler extends AbstractSampler {
         setProperty(JMX_SAMPLE_FREQUENCY, Integer.toString(data));
     }
 
-    public void setLastSampleTs(String uri, long data) {
-        lastSampleTs.put(uri, data);
+    /**
+     * @return true if the server is polled in the background and the samples
+     *         report the readings taken
+     */
+    public boolean isBackgroundPolling() {
+        return getPropertyAsBoolean(JMX_BACKGROUND_POLLING);
     }
 
+    public void setBackgroundPolling(boolean data) {
+        setProperty(JMX_BACKGROUND_POLLING, data);
+    }
+
+    /**
+     * @return the sets of JVM figures sampled besides the memory, as a comma
+     *         separated list, see {@link JvmMetrics#SETS}
+     */
+    public String getJmxMetrics() {
+        return getPropertyAsString(JMX_METRICS);
+    }
+
+    public void setJmxMetrics(String data) {
+        setProperty(JMX_METRICS, data);
+    }
+
+    /**
+     * @return when the server at the uri was last sampled, 0 if never
+     */
     public long getLastSampleTs(String uri) {
-        Long ts = lastSampleTs.get(uri);
-        if (ts == null)
-            return 0;
-        return ts.longValue();
+        return RateGate.forTarget(uri).getLastClaim();
     }
 
     public void setJmxUri(String data) {
@@ -97,39 +165,127 @@ public class JmxSampler extends AbstractSampler {
     }
 
     /**
+     * Waits for the slot of this sample, then samples; or, if polling in the
+     * background, waits for the next reading.
      * 
-     * @return a standard sample result of type JmxSampleResult.
+     * @return a standard sample result of type JmxSampleResult, null if the
+     *         thread was interrupted while waiting.
      */
     public SampleResult sample() {
-        long startdate = System.currentTimeMillis();
-        long lastSampleTs = getLastSampleTs(getJmxUri());
-        if ((startdate - lastSampleTs) < getSampleFrequency() * 1000) {
-            // sampling more frequently than the set frequency
+        if (isBackgroundPolling()) {
+            return takeReading();
+        }
+        long startdate = RateGate.forTarget(getJmxUri()).claim(getSampleFrequency() * 1000L);
+        if (startdate < 0) {
             return null;
         }
-        setLastSampleTs(getJmxUri(), startdate);
         JmxSampleResult newRes = new JmxSampleResult();
-        MemUsageJmxClient c = new MemUsageJmxClient();
-        c.setUrl(getJmxUri());
-        MemoryData d = c.getData();
         newRes.setSampleLabel("jmx");
-        long mem = byte2Kbyte(d.getUsedNonHeap());
-        if (HEAP_MEM.equals(getJmxMemType())) {
-            // transform in Kb by default (mem is returned in bytes)
-            mem = byte2Kbyte(d.getUsedHeap());
-        }
         newRes.setMemType(getJmxMemType());
-        newRes.setValue(mem);
         newRes.setJmxUri(getJmxUri());
-        newRes.setSamplerData(Long.toString(mem));
+        try {
+            MemoryData d = getClient().getData();
+            JvmMetrics m = getJvmMetrics();
+            long mem;
+            if (m.isEmpty()) {
+                // only the figure needed is read: one round trip
+                mem = HEAP_MEM.equals(getJmxMemType()) ? d.getUsedHeap() : d.getUsedNonHeap();
+            } else {
+                JmxSnapshot s = d.read(m.getBatch());
+                mem = HEAP_MEM.equals(getJmxMemType()) ? MemoryData.getUsedHeap(s) : MemoryData.getUsedNonHeap(s);
+                newRes.setMetrics(m.extract(s));
+            }
+            // transform in Kb by default (mem is returned in bytes)
+            mem = byte2Kbyte(mem);
+            newRes.setValue(mem);
+            newRes.setSamplerData(Long.toString(mem));
+            // obviously it's always successful as we're capturing data for
+            // report purposes
+            newRes.setSuccessful(true);
+        } catch (IllegalStateException ex) {
+            // the server could not be reached: nothing to report
+            newRes.setSuccessful(false);
+            newRes.setResponseMessage(ex.getCause() == null ? ex.getMessage() : ex.getMessage() + ": " + ex.getCause());
+        } catch (IllegalArgumentException ex) {
+            newRes.setSuccessful(false);
+            newRes.setResponseMessage(ex.getMessage());
+        }
         long enddate = System.currentTimeMillis();
         newRes.setStampAndTime(enddate, enddate - startdate);
-        // obviously it's always successful as we're capturing data for report
-        // purposes
-        newRes.setSuccessful(true);
         return newRes;
     }
 
+    /**
+     * Reports the oldest reading of the poller not yet reported by a sampler
+     * of the same name. The poller reads at least every second.
+     */
+    private SampleResult takeReading() {
+        JmxSampleResult newRes = new JmxSampleResult();
+        newRes.setSampleLabel("jmx");
+        newRes.setMemType(getJmxMemType());
+        newRes.setJmxUri(getJmxUri());
+        long period = Math.max(1, getSampleFrequency()) * 1000L;
+        JmxPoller.Reading r;
+        JvmMetrics m;
+        try {
+            m = getJvmMetrics();
+            JmxPoller poller = JmxPoller.forUrl(getJmxUri(), period, m.getBatch());
+            r = poller.take(getName(), 2 * period);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IllegalArgumentException ex) {
+            newRes.setSuccessful(false);
+            newRes.setResponseMessage(ex.getMessage());
+            newRes.setStampAndTime(System.currentTimeMillis(), 0);
+            return newRes;
+        }
+        if (r == null) {
+            newRes.setSuccessful(false);
+            newRes.setResponseMessage("No reading from " + getJmxUri() + " in time");
+            newRes.setStampAndTime(System.currentTimeMillis(), 0);
+            return newRes;
+        }
+        if (r.getError() != null) {
+            newRes.setSuccessful(false);
+            newRes.setResponseMessage(r.getError());
+        } else {
+            long mem = HEAP_MEM.equals(getJmxMemType()) ? r.getHeapUsed() : r.getNonHeapUsed();
+            mem = byte2Kbyte(mem);
+            newRes.setValue(mem);
+            newRes.setSamplerData(Long.toString(mem));
+            // only the figures of the sets read by the poller are found
+            newRes.setMetrics(m.extract(r.getSnapshot()));
+            newRes.setSuccessful(true);
+        }
+        newRes.setStampAndTime(r.getEnd(), r.getTime());
+        return newRes;
+    }
+
+    private MemUsageJmxClient getClient() {
+        String uri = getJmxUri();
+        if (client == null || !uri.equals(clientUri)) {
+            MemUsageJmxClient c = new MemUsageJmxClient();
+            c.setUrl(uri);
+            client = c;
+            clientUri = uri;
+        }
+        return client;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if a set is not known
+     */
+    private JvmMetrics getJvmMetrics() {
+        String list = getJmxMetrics();
+        if (metrics == null || !list.equals(metricsFrom)) {
+            metrics = JvmMetrics.parse(list);
+            metricsFrom = list;
+        }
+        return metrics;
+    }
+
     private long byte2Kbyte(long n) {
         return n / 1024;
     }
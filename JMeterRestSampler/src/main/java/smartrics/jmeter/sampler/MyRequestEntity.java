@@ -16,25 +16,247 @@ package smartrics.jmeter.sampler;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.httpclient.methods.RequestEntity;
 
+import smartrics.jmeter.sampler.http.BodyTemplate;
+import smartrics.jmeter.sampler.http.ContentCoding;
+import smartrics.jmeter.sampler.http.FileBody;
+
 /**
  * Holds the body content of a PUT/POST as requested by the apache HttpClient.
+ *
+ * The body is encoded once, in the charset given, and the same bytes are used
+ * for the content length and for writing. Bodies that do not change from a
+ * sample to the next (no variables) can be encoded via
+ * {@link #forStaticBody(String, String, String)} so that all threads share the
+ * same bytes.
+ *
+ * Alternatively the body can be streamed from a file, see {@link FileBody}, or
+ * written in parts, as rendered by a {@link BodyTemplate}.
+ *
+ * The body can be sent compressed, see {@link #compress(String, boolean)}.
  */
 public class MyRequestEntity implements RequestEntity {
 
-    private String data;
-    private String contentType;
+    public static final String DEFAULT_CONTENT_TYPE = "text/xml";
+
+    public static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final Map<BodyKey, byte[]> staticBodies = new ConcurrentHashMap<BodyKey, byte[]>();
+
+    private static final Map<CodedKey, byte[]> codedBodies = new ConcurrentHashMap<CodedKey, byte[]>();
+
+    private final byte[] content;
+    private final FileBody file;
+    private final byte[][] parts;
+    private final long length;
+    private final String contentType;
+    private final String contentEncoding;
+
+    private static class BodyKey {
+        private final String charset;
+        private final String data;
+
+        BodyKey(String charset, String data) {
+            this.charset = charset;
+            this.data = data;
+        }
+
+        public int hashCode() {
+            return 31 * charset.hashCode() + data.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof BodyKey)) {
+                return false;
+            }
+            BodyKey other = (BodyKey) o;
+            return charset.equals(other.charset) && data.equals(other.data);
+        }
+    }
+
+    /**
+     * A body, shared or streamed from a file, compressed with a coding.
+     * Bodies are compared by identity, as shared bodies are the same
+     * instance for all threads.
+     */
+    private static class CodedKey {
+        private final Object body;
+        private final String coding;
+
+        CodedKey(Object body, String coding) {
+            this.body = body;
+            this.coding = coding;
+        }
+
+        public int hashCode() {
+            return 31 * coding.hashCode() + System.identityHashCode(body);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof CodedKey)) {
+                return false;
+            }
+            CodedKey other = (CodedKey) o;
+            return body == other.body && coding.equals(other.coding);
+        }
+    }
 
     public MyRequestEntity(String data) {
-        this("text/xml", data);
+        this(DEFAULT_CONTENT_TYPE, data);
     }
 
     public MyRequestEntity(String type, String data) {
-        this.data = data;
+        this(type, encode(data, DEFAULT_CHARSET));
+    }
+
+    public MyRequestEntity(String type, byte[] content) {
+        this(type, content, null);
+    }
+
+    /**
+     * @param contentEncoding
+     *            the content coding the content is compressed with, null if
+     *            not compressed
+     */
+    public MyRequestEntity(String type, byte[] content, String contentEncoding) {
+        this.content = content;
+        this.file = null;
+        this.parts = null;
+        this.length = content.length;
         this.contentType = type;
+        this.contentEncoding = contentEncoding;
+    }
+
+    public MyRequestEntity(String type, FileBody file) {
+        this.content = null;
+        this.file = file;
+        this.parts = null;
+        this.length = file.getLength();
+        this.contentType = type;
+        this.contentEncoding = null;
+    }
+
+    /**
+     * @param parts
+     *            the body as the sequence of its parts, written one after
+     *            the other
+     */
+    public MyRequestEntity(String type, byte[][] parts) {
+        long total = 0;
+        for (byte[] part : parts) {
+            total += part.length;
+        }
+        this.content = null;
+        this.file = null;
+        this.parts = parts;
+        this.length = total;
+        this.contentType = type;
+        this.contentEncoding = null;
+    }
+
+    /**
+     * Builds an entity for a body that never changes, reusing the bytes
+     * already encoded for the same body and charset by any thread.
+     */
+    public static MyRequestEntity forStaticBody(String type, String data, String charset) {
+        BodyKey key = new BodyKey(charset, data);
+        byte[] content = staticBodies.get(key);
+        if (content == null) {
+            content = encode(data, charset);
+            staticBodies.put(key, content);
+        }
+        return new MyRequestEntity(type, content);
+    }
+
+    /**
+     * Forgets the bodies shared across threads.
+     */
+    public static void clearStaticBodies() {
+        staticBodies.clear();
+        codedBodies.clear();
+    }
+
+    /**
+     * Returns an entity with this body compressed with the given content
+     * coding, see {@link ContentCoding}; with identity this entity itself.
+     *
+     * @param shared
+     *            true if the body is shared across threads or streamed from
+     *            a file, in which case it is compressed only once and the
+     *            compressed bytes are shared too. A file is compressed a
+     *            region at a time, only the compressed body is held in memory
+     * @throws IllegalArgumentException
+     *             if the coding is not supported
+     */
+    public MyRequestEntity compress(String coding, boolean shared) throws IOException {
+        String c = ContentCoding.parse(coding);
+        if (c == null) {
+            return this;
+        }
+        byte[] compressed;
+        if (shared) {
+            CodedKey key = new CodedKey(file != null ? file : content, c);
+            compressed = codedBodies.get(key);
+            if (compressed == null) {
+                compressed = ContentCoding.encode(toBuffers(), c);
+                codedBodies.put(key, compressed);
+            }
+        } else {
+            compressed = ContentCoding.encode(toBuffers(), c);
+        }
+        return new MyRequestEntity(contentType, compressed, c);
+    }
+
+    /**
+     * Encodes the body in the given charset.
+     *
+     * @throws IllegalArgumentException
+     *             if the charset is not supported
+     */
+    public static byte[] encode(String data, String charset) {
+        try {
+            return data.getBytes(charset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Unsupported encoding: " + charset);
+        }
+    }
+
+    /**
+     * @return the encoded body, or null if the body is streamed from a file
+     *         or made of parts. The array is shared and must not be changed.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return the file the body is streamed from, or null
+     */
+    public FileBody getFile() {
+        return file;
+    }
+
+    /**
+     * @return fresh buffers holding the whole body, to be written in order
+     */
+    public ByteBuffer[] toBuffers() {
+        if (file != null) {
+            return file.views();
+        }
+        if (parts != null) {
+            ByteBuffer[] buffers = new ByteBuffer[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                buffers[i] = ByteBuffer.wrap(parts[i]);
+            }
+            return buffers;
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap(content) };
     }
 
     public boolean isRepeatable() {
@@ -42,17 +264,32 @@ public class MyRequestEntity implements RequestEntity {
     }
 
     public void writeRequest(OutputStream out) throws IOException {
-        PrintWriter printer = new PrintWriter(out);
-        printer.print(data);
-        printer.flush();
+        if (file != null) {
+            file.writeTo(out);
+        } else if (parts != null) {
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        } else {
+            out.write(content);
+        }
+        out.flush();
     }
 
     public long getContentLength() {
         // so we don't generate chunked encoding
-        return data.getBytes().length;
+        return length;
     }
 
     public String getContentType() {
         return contentType;
     }
+
+    /**
+     * @return the content coding the body is compressed with, null if it is
+     *         not compressed
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
 }
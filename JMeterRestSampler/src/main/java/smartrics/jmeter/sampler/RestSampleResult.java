@@ -0,0 +1,190 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler;
+
+import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
+
+import smartrics.jmeter.sampler.http.DnsCache;
+import smartrics.jmeter.sampler.http.SharedConnectionPool;
+import smartrics.jmeter.sampler.http.TlsSessions;
+
+/**
+ * The result of a sample of the RestSampler.
+ *
+ * On top of the standard HTTP data it carries what the RestSampler measures
+ * about the transport used to perform the request.
+ */
+public class RestSampleResult extends HTTPSampleResult {
+
+    private static final long serialVersionUID = -1409582749616522342L;
+
+    private boolean pooled;
+    private int poolLeased;
+    private int poolAvailable;
+    private long poolWaitTime;
+    private long intendedStart;
+    private long serviceTime;
+    private long correctedTime;
+    private String resolvedAddress;
+    private boolean dnsCacheHit;
+    private long dnsTime;
+    private boolean tlsHandshake;
+    private boolean tlsResumed;
+    private long tlsTime;
+    private long decodedBytes = -1;
+    private long allocatedBytes = -1;
+
+    /**
+     * @return true if the connection used by this sample was leased from the
+     *         shared connection pool.
+     */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public void setPoolStats(SharedConnectionPool.Stats stats) {
+        this.pooled = true;
+        this.poolLeased = stats.getLeased();
+        this.poolAvailable = stats.getAvailable();
+        this.poolWaitTime = stats.getWaitTime();
+    }
+
+    public int getPoolLeased() {
+        return poolLeased;
+    }
+
+    public int getPoolAvailable() {
+        return poolAvailable;
+    }
+
+    public long getPoolWaitTime() {
+        return poolWaitTime;
+    }
+
+    /**
+     * Sets the timings of a sample paced by an ArrivalRateTimer.
+     *
+     * @param intendedStart
+     *            when the sample should have started
+     * @param serviceTime
+     *            milliseconds from the actual start to the end of the sample
+     * @param correctedTime
+     *            milliseconds from the intended start to the end of the sample
+     */
+    public void setArrival(long intendedStart, long serviceTime, long correctedTime) {
+        this.intendedStart = intendedStart;
+        this.serviceTime = serviceTime;
+        this.correctedTime = correctedTime;
+    }
+
+    /**
+     * @return when the sample should have started, 0 if it was not paced by
+     *         an ArrivalRateTimer
+     */
+    public long getIntendedStart() {
+        return intendedStart;
+    }
+
+    public long getServiceTime() {
+        return serviceTime;
+    }
+
+    public long getCorrectedTime() {
+        return correctedTime;
+    }
+
+    /**
+     * Sets the resolution of the host name done to open the connection of
+     * this sample.
+     */
+    public void setLookup(DnsCache.Lookup lookup) {
+        this.resolvedAddress = lookup.getAddress().getHostAddress();
+        this.dnsCacheHit = lookup.isCacheHit();
+        this.dnsTime = lookup.getTime();
+    }
+
+    /**
+     * @return the address the connection was opened to, null if the host
+     *         name was not resolved by this sample, e.g. because a kept
+     *         alive connection was used
+     */
+    public String getResolvedAddress() {
+        return resolvedAddress;
+    }
+
+    public boolean isDnsCacheHit() {
+        return dnsCacheHit;
+    }
+
+    public long getDnsTime() {
+        return dnsTime;
+    }
+
+    /**
+     * Sets the TLS handshake done to open the connection of this sample.
+     */
+    public void setHandshake(TlsSessions.Handshake handshake) {
+        this.tlsHandshake = true;
+        this.tlsResumed = handshake.isResumed();
+        this.tlsTime = handshake.getTime();
+    }
+
+    /**
+     * @return true if this sample opened a TLS connection under the control
+     *         of {@link TlsSessions}
+     */
+    public boolean isTlsHandshake() {
+        return tlsHandshake;
+    }
+
+    public boolean isTlsResumed() {
+        return tlsResumed;
+    }
+
+    public long getTlsTime() {
+        return tlsTime;
+    }
+
+    /**
+     * Sets the number of bytes of the response body once decoded from its
+     * content coding; {@link #getBytes()} holds the bytes as received.
+     */
+    public void setDecodedBytes(long decodedBytes) {
+        this.decodedBytes = decodedBytes;
+    }
+
+    /**
+     * @return the bytes of the decoded response body, those received if not
+     *         set
+     */
+    public long getDecodedBytes() {
+        return decodedBytes < 0 ? getBytes() : decodedBytes;
+    }
+
+    /**
+     * Sets the bytes allocated by the sampling thread to perform this sample,
+     * see {@link smartrics.jmeter.sampler.http.AllocationMeter}.
+     */
+    public void setAllocatedBytes(long allocatedBytes) {
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * @return the bytes allocated to perform this sample, -1 if not measured
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+}
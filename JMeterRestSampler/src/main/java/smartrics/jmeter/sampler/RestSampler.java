@@ -16,13 +16,16 @@ package smartrics.jmeter.sampler;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -31,14 +34,45 @@ import org.apache.commons.httpclient.methods.OptionsMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.TraceMethod;
+import org.apache.jmeter.assertions.AssertionResult;
+import org.apache.jmeter.engine.util.CompoundVariable;
 import org.apache.jmeter.protocol.http.control.CacheManager;
 import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
 import org.apache.jmeter.protocol.http.sampler.HTTPSampler2;
 import org.apache.jmeter.protocol.http.util.EncoderCache;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.testelement.property.FunctionProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.jorphan.util.JOrphanUtils;
 import org.apache.log.Logger;
 
+import smartrics.jmeter.sampler.assertion.StreamAssertion;
+import smartrics.jmeter.sampler.assertion.StreamAssertions;
+import smartrics.jmeter.sampler.assertion.StreamCheck;
+import smartrics.jmeter.sampler.http.AllocationMeter;
+import smartrics.jmeter.sampler.http.AsyncHttpEngine;
+import smartrics.jmeter.sampler.http.BodyTemplate;
+import smartrics.jmeter.sampler.http.ContentCoding;
+import smartrics.jmeter.sampler.http.DnsCache;
+import smartrics.jmeter.sampler.http.FileBody;
+import smartrics.jmeter.sampler.http.HeaderList;
+import smartrics.jmeter.sampler.http.Http2Engine;
+import smartrics.jmeter.sampler.http.HttpPipeline;
+import smartrics.jmeter.sampler.http.PhaseTimer;
+import smartrics.jmeter.sampler.http.PhaseTimingSocketFactory;
+import smartrics.jmeter.sampler.http.RawHttpRequest;
+import smartrics.jmeter.sampler.http.RawHttpResponse;
+import smartrics.jmeter.sampler.http.ResponseReader;
+import smartrics.jmeter.sampler.http.SharedConnectionPool;
+import smartrics.jmeter.sampler.http.TlsSessions;
+import smartrics.jmeter.sampler.http.UrlTemplate;
+import smartrics.jmeter.sampler.http.VirtualUserExecutor;
+import smartrics.jmeter.sampler.stats.HistogramLog;
+import smartrics.jmeter.sampler.stats.LatencyHistogram;
+
 /**
  * Models a REST request for sampling purposes.
  */
@@ -57,6 +91,184 @@ public class RestSampler extends HTTPSampler2 {
 
     public static final String REQUEST_HEADERS = "RestSampler.request_headers";
 
+    public static final String REQUEST_BODY_FILE = "RestSampler.request_body_file";
+
+    public static final String REQUEST_CODING = "RestSampler.request_coding";
+
+    public static final String RESPONSE_RETENTION = "RestSampler.response_retention";
+
+    public static final String RESPONSE_MAX_BYTES = "RestSampler.response_max_bytes";
+
+    public static final String ASYNC_IN_FLIGHT = "RestSampler.async_in_flight";
+
+    public static final String ASYNC_TIMEOUT = "RestSampler.async_timeout";
+
+    public static final long DEFAULT_ASYNC_TIMEOUT = 60000;
+
+    public static final String VIRTUAL_USERS = "RestSampler.virtual_users";
+
+    public static final String USE_HTTP2 = "RestSampler.use_http2";
+
+    public static final String HTTP2_STREAMS = "RestSampler.http2_streams";
+
+    public static final String HTTP2_CONNECTIONS = "RestSampler.http2_connections";
+
+    public static final String PIPELINE_REQUESTS = "RestSampler.pipeline_requests";
+
+    public static final String PIPELINE_WINDOW = "RestSampler.pipeline_window";
+
+    public static final String HISTOGRAM_FILE = "RestSampler.histogram_file";
+
+    public static final String HISTOGRAM_DIGITS = "RestSampler.histogram_digits";
+
+    public static final String RECORD_PHASES = "RestSampler.record_phases";
+
+    public static final String DNS_SELECTION = "RestSampler.dns_selection";
+
+    public static final String DNS_TTL = "RestSampler.dns_ttl";
+
+    public static final String TLS_SESSIONS = "RestSampler.tls_sessions";
+
+    public static final String USE_CONNECTION_POOL = "RestSampler.use_connection_pool";
+
+    public static final String POOL_MAX_TOTAL = "RestSampler.pool_max_total";
+
+    public static final String POOL_MAX_PER_HOST = "RestSampler.pool_max_per_host";
+
+    public static final String POOL_IDLE_TIMEOUT = "RestSampler.pool_idle_timeout";
+
+    public static final String LEAN_RESULTS = "RestSampler.lean_results";
+
+    public static final String MEASURE_ALLOCATION = "RestSampler.measure_allocation";
+
+    public static final String ASSERTIONS = "RestSampler.assertions";
+
+    /**
+     * Variable holding the service time of the last sample paced by an
+     * {@link ArrivalRateTimer}.
+     */
+    public static final String SERVICE_TIME_VAR = "RestSampler.service_time";
+
+    /**
+     * Variable holding the time since the intended start of the last sample
+     * paced by an {@link ArrivalRateTimer}.
+     */
+    public static final String CORRECTED_TIME_VAR = "RestSampler.corrected_time";
+
+    /**
+     * Prefix of the variables holding the time spent in each phase of the
+     * last sample, when phases are recorded; the name of the phase follows.
+     */
+    public static final String PHASE_VAR_PREFIX = "RestSampler.phase_";
+
+    /**
+     * Variable holding the address the last sample connected to, unset if it
+     * used a kept alive connection.
+     */
+    public static final String ADDRESS_VAR = "RestSampler.address";
+
+    /**
+     * Variable holding the milliseconds the last sample spent resolving the
+     * host name, unset if it used a kept alive connection.
+     */
+    public static final String DNS_TIME_VAR = "RestSampler.dns_time";
+
+    /**
+     * Variable holding whether the {@link DnsCache} resolved the host name of
+     * the last sample, unset if it used a kept alive connection.
+     */
+    public static final String DNS_HIT_VAR = "RestSampler.dns_hit";
+
+    /**
+     * Variable holding whether the last sample resumed a TLS session, unset
+     * if it made no handshake under the control of {@link TlsSessions}.
+     */
+    public static final String TLS_RESUMED_VAR = "RestSampler.tls_resumed";
+
+    /**
+     * Variable holding the milliseconds of the TLS handshake of the last
+     * sample, unset if it made no handshake under the control of
+     * {@link TlsSessions}.
+     */
+    public static final String TLS_TIME_VAR = "RestSampler.tls_time";
+
+    /**
+     * Variable holding the bytes of the response body of the last sample
+     * once decoded from its content coding; the bytes of the result are the
+     * ones received.
+     */
+    public static final String DECODED_BYTES_VAR = "RestSampler.decoded_bytes";
+
+    /**
+     * Variable holding the bytes allocated by the thread to perform the last
+     * sample, when allocation is measured.
+     */
+    public static final String ALLOCATED_BYTES_VAR = "RestSampler.allocated_bytes";
+
+    /**
+     * Variable holding the connections of the shared pool, or of the virtual
+     * users, leased when the last sample completed; unset if the sample used
+     * no shared pool.
+     */
+    public static final String POOL_LEASED_VAR = "RestSampler.pool_leased";
+
+    /**
+     * Variable holding the idle connections of the pool available when the
+     * last sample completed; unset if the sample used no shared pool.
+     */
+    public static final String POOL_AVAILABLE_VAR = "RestSampler.pool_available";
+
+    /**
+     * Variable holding the milliseconds the last sample waited to lease a
+     * connection from the pool; unset if the sample used no shared pool.
+     */
+    public static final String POOL_WAIT_TIME_VAR = "RestSampler.pool_wait_time";
+
+    // the response codes, so that results share them
+    private static final String[] STATUS_CODES = new String[600];
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = Integer.toString(i);
+        }
+    }
+
+    private static final int USER_BUFFER_SIZE = 8 * 1024;
+
+    private transient HeaderList headerList;
+
+    private transient UrlTemplate urlTemplate;
+
+    private transient BodyTemplate bodyTemplate;
+
+    private transient FileBody fileBody;
+
+    private transient String fileBodyName;
+
+    private transient boolean asyncUnsupportedLogged;
+
+    private transient boolean http2UnsupportedLogged;
+
+    private transient boolean pipelineUnsupportedLogged;
+
+    private transient boolean allocationUnsupportedLogged;
+
+    private transient HttpPipeline pipeline;
+
+    private transient HistogramLog histogramLog;
+
+    private transient boolean histogramLogRejected;
+
+    private transient AllocationMeter allocationMeter;
+
+    private transient boolean connectionControlsResolved;
+
+    private transient DnsCache dnsCache;
+
+    private transient TlsSessions tlsSessions;
+
+    private transient StreamAssertions streamAssertions;
+
     public RestSampler() {
     	log.debug("initialised new RestSampler");
     }
@@ -67,6 +279,7 @@ public class RestSampler extends HTTPSampler2 {
 
     public void setRequestHeaders(String headers) {
         setProperty(REQUEST_HEADERS, headers);
+        headerList = null;
     }
 
     public String getRequestBody() {
@@ -77,8 +290,39 @@ public class RestSampler extends HTTPSampler2 {
         return getPropertyAsString(REQUEST_HEADERS);
     }
 
+    /**
+     * Sets the file the body is streamed from. When set, the body typed in the
+     * GUI is ignored.
+     */
+    public void setRequestBodyFile(String fileName) {
+        setProperty(REQUEST_BODY_FILE, fileName);
+        fileBody = null;
+    }
+
+    public String getRequestBodyFile() {
+        return getPropertyAsString(REQUEST_BODY_FILE);
+    }
+
+    /**
+     * Sets the content coding the request body is compressed with, one of
+     * {@link ContentCoding#REQUEST_CODINGS}. Bodies without variables and
+     * body files are compressed once for all the threads.
+     */
+    public void setRequestCoding(String coding) {
+        setProperty(REQUEST_CODING, coding);
+    }
+
+    public String getRequestCoding() {
+        String coding = getPropertyAsString(REQUEST_CODING);
+        if (coding == null || coding.trim().length() == 0) {
+            return ContentCoding.IDENTITY;
+        }
+        return coding;
+    }
+
     public void setResource(String data) {
         setProperty(RESOURCE, data);
+        urlTemplate = null;
     }
 
     public String getResource() {
@@ -87,6 +331,7 @@ public class RestSampler extends HTTPSampler2 {
 
     public void setQueryString(String data) {
         setProperty(QUERY_STRING, data);
+        urlTemplate = null;
         getArguments().clear();
         parseArguments(data, EncoderCache.URL_ARGUMENT_ENCODING);
     }
@@ -97,6 +342,7 @@ public class RestSampler extends HTTPSampler2 {
 
     public void setHostBaseUrl(final String data) {
         setProperty(BASE_HOST, data);
+        urlTemplate = null;
     }
 
     public String getHostBaseUrl() {
@@ -104,201 +350,911 @@ public class RestSampler extends HTTPSampler2 {
     }
 
     /**
-     * Returns the full resource URI concatenating the base url and the resource
-     * id. If either components are missing or invalid, it returns a canned
-     * value of <code>"http://undefined.com"</code>
+     * Sets how much of the response body is kept in the result, one of the
+     * modes defined in {@link ResponseReader}.
      */
-    public URL getUrl() {
-        String validHost = toValidUrl(getHostBaseUrl());
-        URL u = toURL("http://undefined.com");
-        if (validHost != null && getResource() != null) {
-            String fullUrl = validHost + getResource();
-            u = toURL(fullUrl);
+    public void setResponseRetention(String mode) {
+        setProperty(RESPONSE_RETENTION, mode);
+    }
+
+    public String getResponseRetention() {
+        String mode = getPropertyAsString(RESPONSE_RETENTION);
+        if (mode == null || mode.length() == 0) {
+            return ResponseReader.FULL;
         }
-        return u;
+        return mode;
     }
 
-    public String toString() {
-        return "Base host url: " + getHostBaseUrl() + ", resource: " + getResource() + ", Method: " + getMethod();
+    /**
+     * Sets the number of bytes kept when the response retention is
+     * {@link ResponseReader#TRUNCATED}.
+     */
+    public void setResponseMaxBytes(int max) {
+        setProperty(RESPONSE_MAX_BYTES, Integer.toString(max));
     }
 
-    private String toValidUrl(String u) {
-        try {
-            URL url = new URL(u);
-            String urlStr = url.toString();
-            if (urlStr.endsWith("/")) {
-                url = toURL(urlStr.substring(0, urlStr.length() - 1));
-                urlStr = url.toString();
-            }
-            return urlStr;
-        } catch (MalformedURLException e) {
-            return null;
-        }
+    public int getResponseMaxBytes() {
+        return getPropertyAsInt(RESPONSE_MAX_BYTES);
     }
 
-    private URL toURL(String u) {
-        try {
-            return new URL(u);
-        } catch (MalformedURLException e) {
-            return null;
-        }
+    /**
+     * Sets the number of requests each sample keeps in flight. With more than
+     * one, requests are performed by the non blocking {@link AsyncHttpEngine}
+     * and reported as sub results.
+     */
+    public void setAsyncInFlight(int n) {
+        setProperty(ASYNC_IN_FLIGHT, Integer.toString(n));
     }
 
-    private void overrideHeaders(HttpMethodBase httpMethod) {
-        String headers = getRequestHeaders();
-        String[] header = headers.split(System.getProperty("line.separator"));
-        for (String kvp : header) {
-            int pos = kvp.indexOf(':');
-            if (pos < 0)
-                pos = kvp.indexOf('=');
-            if (pos > 0) {
-                String k = kvp.substring(0, pos).trim();
-                String v = "";
-                if (kvp.length() > pos + 1)
-                    v = kvp.substring(pos + 1).trim();
-                httpMethod.addRequestHeader(k, v);
-            }
-        }
+    public int getAsyncInFlight() {
+        return getPropertyAsInt(ASYNC_IN_FLIGHT);
     }
 
     /**
-     * Method invoked by JMeter when a sample needs to happen. It's actually an
-     * indirect call from the main sampler interface. it's resolved in the base
-     * class.
-     * 
-     * This is a copy and paste from the HTTPSampler2 - quick and dirty hack as
-     * that class is not very extensible. The reason to extend and slightly
-     * modify is that I needed to get the body content from a text field in the
-     * GUI rather than a file.
+     * Sets the milliseconds after which a request in flight fails.
      */
-    protected HTTPSampleResult sample(URL url, String method, boolean areFollowingRedirect, int frameDepth) {
+    public void setAsyncTimeout(long timeout) {
+        setProperty(ASYNC_TIMEOUT, Long.toString(timeout));
+    }
 
-        String urlStr = url.toString();
+    public long getAsyncTimeout() {
+        return getPropertyAsLong(ASYNC_TIMEOUT);
+    }
 
-        log.debug("Start : sample " + urlStr);
-        log.debug("method " + method);
+    /**
+     * Sets the number of users each sample simulates. With more than one, each
+     * user performs the request on its own virtual thread, see
+     * {@link VirtualUserExecutor}, and is reported as a sub result. The
+     * connection pool limits and the in flight timeout apply to the users.
+     */
+    public void setVirtualUsers(int n) {
+        setProperty(VIRTUAL_USERS, Integer.toString(n));
+    }
 
-        HttpMethodBase httpMethod = null;
+    public int getVirtualUsers() {
+        return getPropertyAsInt(VIRTUAL_USERS);
+    }
 
-        HTTPSampleResult res = new HTTPSampleResult();
-        res.setMonitor(isMonitor());
+    /**
+     * Sets whether requests go over HTTP/2 without TLS, see
+     * {@link Http2Engine}. Each sample then sends as many requests at once as
+     * streams per connection times connections per host, each reported as a
+     * sub result.
+     */
+    public void setUseHttp2(boolean http2) {
+        setProperty(USE_HTTP2, http2);
+    }
 
-        res.setSampleLabel(urlStr); // May be replaced later
-        res.setHTTPMethod(method);
-        res.setURL(url);
-        res.sampleStart(); // Count the retries as well in the time
-        HttpClient client = null;
-        InputStream instream = null;
-        try {
-            httpMethod = createHttpMethod(method, urlStr);
-            // Set any default request headers
-            setDefaultRequestHeaders(httpMethod);
-            // Setup connection
-            client = setupConnection(url, httpMethod, res);
-            // Handle the various methods
-            if (httpMethod instanceof EntityEnclosingMethod) {
-                String postBody = sendData((EntityEnclosingMethod) httpMethod);
-                res.setResponseData(postBody.getBytes());
-            }
-            overrideHeaders(httpMethod);
-            res.setRequestHeaders(getConnectionHeaders(httpMethod));
+    public boolean getUseHttp2() {
+        return getPropertyAsBoolean(USE_HTTP2);
+    }
 
-            int statusCode = -1;
-            try {
-                statusCode = client.executeMethod(httpMethod);
-            } catch (RuntimeException e) {
-                log.error("Exception when executing '" + httpMethod + "'", e);
-                throw e;
-            }
+    public void setHttp2Streams(int streams) {
+        setProperty(HTTP2_STREAMS, Integer.toString(streams));
+    }
 
-            // Request sent. Now get the response:
-            instream = httpMethod.getResponseBodyAsStream();
+    /**
+     * @return the number of concurrent streams per HTTP/2 connection
+     */
+    public int getHttp2Streams() {
+        return Math.max(getPropertyAsInt(HTTP2_STREAMS), 1);
+    }
 
-            if (instream != null) {// will be null for HEAD
+    public void setHttp2Connections(int connections) {
+        setProperty(HTTP2_CONNECTIONS, Integer.toString(connections));
+    }
 
-                Header responseHeader = httpMethod.getResponseHeader(HEADER_CONTENT_ENCODING);
-                if (responseHeader != null && ENCODING_GZIP.equals(responseHeader.getValue())) {
-                    instream = new GZIPInputStream(instream);
-                }
-                res.setResponseData(readResponse(res, instream, (int) httpMethod.getResponseContentLength()));
-            }
+    /**
+     * @return the number of HTTP/2 connections per host
+     */
+    public int getHttp2Connections() {
+        return Math.max(getPropertyAsInt(HTTP2_CONNECTIONS), 1);
+    }
 
-            res.sampleEnd();
-            // Done with the sampling proper.
+    /**
+     * Sets the number of requests each sample sends on one kept alive
+     * connection, without waiting for the responses, see
+     * {@link HttpPipeline}. With more than one, each request is reported as
+     * a sub result.
+     */
+    public void setPipelineRequests(int n) {
+        setProperty(PIPELINE_REQUESTS, Integer.toString(n));
+    }
 
-            // Now collect the results into the HTTPSampleResult:
+    public int getPipelineRequests() {
+        return getPropertyAsInt(PIPELINE_REQUESTS);
+    }
 
-            res.setSampleLabel(httpMethod.getURI().toString());
-            // Pick up Actual path (after redirects)
+    /**
+     * Sets the maximum number of pipelined requests left unanswered, 0 to
+     * write them all before reading the responses.
+     */
+    public void setPipelineWindow(int window) {
+        setProperty(PIPELINE_WINDOW, Integer.toString(window));
+    }
 
-            res.setResponseCode(Integer.toString(statusCode));
-            res.setSuccessful(isSuccessCode(statusCode));
+    public int getPipelineWindow() {
+        return getPropertyAsInt(PIPELINE_WINDOW);
+    }
 
-            res.setResponseMessage(httpMethod.getStatusText());
+    /**
+     * Sets the file the latency histograms are written to at the end of the
+     * test, see {@link HistogramLog}; none are recorded if not set.
+     */
+    public void setHistogramFile(String fileName) {
+        setProperty(HISTOGRAM_FILE, fileName);
+        histogramLog = null;
+        histogramLogRejected = false;
+    }
 
-            String ct = null;
-            org.apache.commons.httpclient.Header h = httpMethod.getResponseHeader(HEADER_CONTENT_TYPE);
-            if (h != null)// Can be missing, e.g. on redirect
-            {
-                ct = h.getValue();
-                res.setContentType(ct);// e.g. text/html; charset=ISO-8859-1
-                res.setEncodingAndType(ct);
-            }
+    public String getHistogramFile() {
+        return getPropertyAsString(HISTOGRAM_FILE);
+    }
 
-            String responseHeaders = getResponseHeaders(httpMethod);
-            res.setResponseHeaders(responseHeaders);
-            if (res.isRedirect()) {
-                final Header headerLocation = httpMethod.getResponseHeader(HEADER_LOCATION);
-                if (headerLocation == null) { // HTTP protocol violation, but
-                    // avoids NPE
-                    throw new IllegalArgumentException("Missing location header");
-                }
-                res.setRedirectLocation(headerLocation.getValue());
-            }
+    /**
+     * Sets the significant digits of the latency histograms, from 1 to 5.
+     * Samplers writing to the same file must use the same digits; the
+     * latencies of a sampler that does not are not recorded, and an error is
+     * logged.
+     */
+    public void setHistogramDigits(int digits) {
+        setProperty(HISTOGRAM_DIGITS, Integer.toString(digits));
+        histogramLog = null;
+        histogramLogRejected = false;
+    }
 
-            // If we redirected automatically, the URL may have changed
-            if (getAutoRedirects()) {
-                res.setURL(new URL(httpMethod.getURI().toString()));
-            }
+    public int getHistogramDigits() {
+        int digits = getPropertyAsInt(HISTOGRAM_DIGITS);
+        if (digits < 1 || digits > 5) {
+            return LatencyHistogram.DEFAULT_SIGNIFICANT_DIGITS;
+        }
+        return digits;
+    }
 
-            // Store any cookies received in the cookie manager:
-            saveConnectionCookies(httpMethod, res.getURL(), getCookieManager());
+    /**
+     * Sets whether the phases of each request, see {@link PhaseTimer}, are
+     * recorded as sub results of the sample.
+     */
+    public void setRecordPhases(boolean record) {
+        setProperty(RECORD_PHASES, record);
+    }
 
-            // Save cache information
-            final CacheManager cacheManager = getCacheManager();
-            if (cacheManager != null) {
-                cacheManager.saveDetails(httpMethod, res);
-            }
+    public boolean getRecordPhases() {
+        return getPropertyAsBoolean(RECORD_PHASES);
+    }
 
-            // Follow redirects and download page resources if appropriate:
-            res = resultProcessing(areFollowingRedirect, frameDepth, res);
+    /**
+     * Sets how the address to connect to is chosen among those of the host,
+     * one of the selections defined in {@link DnsCache}. Samplers with the
+     * same selection and time to live share a cache; the others are not
+     * affected by it.
+     */
+    public void setDnsSelection(String selection) {
+        setProperty(DNS_SELECTION, selection);
+    }
 
-            log.debug("End : sample");
-            httpMethod.releaseConnection();
-            return res;
-        } catch (IllegalArgumentException e)// e.g. some kinds of invalid URL
-        {
-            res.sampleEnd();
-            HTTPSampleResult err = errorResult(e, res);
-            err.setSampleLabel("Error: " + url.toString());
-            return err;
-        } catch (IOException e) {
-            res.sampleEnd();
-            HTTPSampleResult err = errorResult(e, res);
-            err.setSampleLabel("Error: " + url.toString());
-            return err;
-        } finally {
-            JOrphanUtils.closeQuietly(instream);
-            if (httpMethod != null) {
-                httpMethod.releaseConnection();
-            }
+    public String getDnsSelection() {
+        String selection = getPropertyAsString(DNS_SELECTION);
+        if (selection == null || selection.length() == 0) {
+            return DnsCache.JVM;
         }
+        return selection;
     }
 
-    private HttpMethodBase createHttpMethod(String method, String urlStr) {
-        HttpMethodBase httpMethod;
-        // May generate IllegalArgumentException
-        if (method.equals(POST)) {
+    /**
+     * Sets the milliseconds the addresses of a host are cached for.
+     */
+    public void setDnsTtl(long ttl) {
+        setProperty(DNS_TTL, Long.toString(ttl));
+    }
+
+    public long getDnsTtl() {
+        return getPropertyAsLong(DNS_TTL);
+    }
+
+    /**
+     * Sets how TLS sessions are resumed by this sampler, one of the modes
+     * defined in {@link TlsSessions}.
+     */
+    public void setTlsSessions(String mode) {
+        setProperty(TLS_SESSIONS, mode);
+    }
+
+    public String getTlsSessions() {
+        String mode = getPropertyAsString(TLS_SESSIONS);
+        if (mode == null || mode.length() == 0) {
+            return TlsSessions.JMETER;
+        }
+        return mode;
+    }
+
+    public void setUseConnectionPool(boolean pool) {
+        setProperty(USE_CONNECTION_POOL, pool);
+    }
+
+    /**
+     * @return true if connections are leased from the pool shared by all the
+     *         threads of the test rather than opened by each thread. The
+     *         limits of the pool are those of the first sampler using it,
+     *         see {@link SharedConnectionPool}.
+     */
+    public boolean getUseConnectionPool() {
+        return getPropertyAsBoolean(USE_CONNECTION_POOL);
+    }
+
+    public void setPoolMaxTotal(int max) {
+        setProperty(POOL_MAX_TOTAL, Integer.toString(max));
+    }
+
+    public int getPoolMaxTotal() {
+        return getPropertyAsInt(POOL_MAX_TOTAL);
+    }
+
+    public void setPoolMaxPerHost(int max) {
+        setProperty(POOL_MAX_PER_HOST, Integer.toString(max));
+    }
+
+    public int getPoolMaxPerHost() {
+        return getPropertyAsInt(POOL_MAX_PER_HOST);
+    }
+
+    public void setPoolIdleTimeout(long timeout) {
+        setProperty(POOL_IDLE_TIMEOUT, Long.toString(timeout));
+    }
+
+    /**
+     * @return milliseconds after which an idle pooled connection is closed
+     */
+    public long getPoolIdleTimeout() {
+        return getPropertyAsLong(POOL_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Sets whether results are kept lean: the request and response headers
+     * are only collected if saved in result files, as set by the
+     * jmeter.save.saveservice properties, the body is always read through
+     * the per thread buffers of {@link ResponseReader} and the variables
+     * repeating what the result holds are not set. Listeners showing the
+     * headers, as the View Results Tree, then show none.
+     */
+    public void setLeanResults(boolean lean) {
+        setProperty(LEAN_RESULTS, lean);
+    }
+
+    public boolean getLeanResults() {
+        return getPropertyAsBoolean(LEAN_RESULTS);
+    }
+
+    /**
+     * Sets whether the bytes allocated by each sample are measured, see
+     * {@link AllocationMeter}. The figure of the last sample is held by the
+     * {@link #ALLOCATED_BYTES_VAR} variable, the mean per sample is logged
+     * when the thread finishes.
+     *
+     * Only the sampling thread is measured: samples whose requests are
+     * performed by other threads, with virtual users, HTTP/2 or requests in
+     * flight, are not measured.
+     */
+    public void setMeasureAllocation(boolean measure) {
+        setProperty(MEASURE_ALLOCATION, measure);
+    }
+
+    public boolean getMeasureAllocation() {
+        return getPropertyAsBoolean(MEASURE_ALLOCATION);
+    }
+
+    /**
+     * Sets the assertions checked on each response while it is read, one per
+     * line, see {@link StreamAssertions} for the syntax. They do not need
+     * the body to be kept.
+     */
+    public void setAssertions(String assertions) {
+        setProperty(ASSERTIONS, assertions);
+    }
+
+    public String getAssertions() {
+        return getPropertyAsString(ASSERTIONS);
+    }
+
+    public void testStarted() {
+        super.testStarted();
+        if (getUseConnectionPool()) {
+            SharedConnectionPool.getInstance().configure(getName(), getPoolMaxTotal(), getPoolMaxPerHost(), getPoolIdleTimeout());
+        }
+        if (getVirtualUsers() > 1) {
+            VirtualUserExecutor.getInstance(getPoolMaxTotal(), getPoolMaxPerHost(), getInFlightTimeout());
+        }
+        DnsCache cache = DnsCache.forSettings(getDnsTtl(), getDnsSelection());
+        TlsSessions sessions = TlsSessions.forMode(getTlsSessions());
+        if (getRecordPhases() || cache != null || sessions != null) {
+            PhaseTimingSocketFactory.install();
+        }
+    }
+
+    public void threadFinished() {
+        super.threadFinished();
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        if (allocationMeter != null && allocationMeter.getSamples() > 0) {
+            log.info(getName() + ": " + allocationMeter.getMean() + " bytes allocated per sample, " + allocationMeter.getMax() + " max, over "
+                    + allocationMeter.getSamples() + " samples" + (getLeanResults() ? " with lean results" : ""));
+        }
+        allocationMeter = null;
+        connectionControlsResolved = false;
+        dnsCache = null;
+        tlsSessions = null;
+    }
+
+    public void testEnded() {
+        super.testEnded();
+        SharedConnectionPool.shutdown();
+        AsyncHttpEngine.shutdown();
+        Http2Engine.shutdown();
+        VirtualUserExecutor.shutdown();
+        MyRequestEntity.clearStaticBodies();
+        FileBody.releaseAll();
+        HistogramLog.writeAll();
+        PhaseTimingSocketFactory.uninstall();
+        DnsCache.clearAll();
+        TlsSessions.clearAll();
+    }
+
+    /**
+     * Returns the full resource URI concatenating the base url, the resource
+     * id and the query string, if any. If either of the first two components
+     * are missing or invalid, it returns a canned value of
+     * <code>"http://undefined.com"</code>
+     *
+     * The components are compiled once in a {@link UrlTemplate}.
+     */
+    public URL getUrl() {
+        return getUrlTemplate().toURL();
+    }
+
+    public String toString() {
+        return "Base host url: " + getHostBaseUrl() + ", resource: " + getResource() + ", Method: " + getMethod();
+    }
+
+    /**
+     * Returns the template of the url, compiled only when the base url, the
+     * resource or the query string change. As for the headers, the text is taken before any
+     * variable replacement.
+     */
+    private UrlTemplate getUrlTemplate() {
+        String base = getRawPropertyAsString(BASE_HOST);
+        String resource = getRawPropertyAsString(RESOURCE);
+        String query = getRawPropertyAsString(QUERY_STRING);
+        if (urlTemplate == null || !urlTemplate.isCompiledFrom(base, resource, query)) {
+            urlTemplate = UrlTemplate.compile(base, resource, query);
+        }
+        return urlTemplate;
+    }
+
+    private void overrideHeaders(HttpMethodBase httpMethod) {
+        getHeaderList().addTo(httpMethod);
+    }
+
+    /**
+     * Returns the request headers, parsed only when the text defining them
+     * changes. The text is taken before any variable replacement, so that
+     * headers without variables are not evaluated at every sample.
+     */
+    private HeaderList getHeaderList() {
+        String raw = getRawPropertyAsString(REQUEST_HEADERS);
+        if (headerList == null || !headerList.getSource().equals(raw)) {
+            headerList = HeaderList.parse(raw);
+        }
+        return headerList;
+    }
+
+    /**
+     * Returns the value of a property as typed in the GUI: when running, a
+     * property containing variables or functions is replaced by a
+     * FunctionProperty that would evaluate it at each access.
+     */
+    private String getRawPropertyAsString(String name) {
+        JMeterProperty prop = getProperty(name);
+        if (prop instanceof FunctionProperty) {
+            Object function = prop.getObjectValue();
+            if (function instanceof CompoundVariable) {
+                return ((CompoundVariable) function).getRawParameters();
+            }
+        }
+        return prop.getStringValue();
+    }
+
+    /**
+     * Method invoked by JMeter when a sample needs to happen. It's actually an
+     * indirect call from the main sampler interface. it's resolved in the base
+     * class.
+     *
+     * If an {@link ArrivalRateTimer} scheduled the sample, the time since its
+     * intended start is recorded as well, see {@link #recordArrival}. The
+     * elapsed time is added to the latency histogram of the sampler label, if
+     * histograms are recorded.
+     *
+     * When allocation is measured, the bytes allocated to perform the sample
+     * and build its result are recorded as well, see
+     * {@link #recordAllocation}.
+     */
+    protected HTTPSampleResult sample(URL url, String method, boolean areFollowingRedirect, int frameDepth) {
+        ArrivalRateTimer.Arrival arrival = null;
+        AllocationMeter meter = null;
+        if (!areFollowingRedirect && frameDepth == 0) {
+            arrival = ArrivalRateTimer.takeArrival();
+            meter = getAllocationMeter(url);
+        }
+        if (meter != null) {
+            meter.start();
+        }
+        HTTPSampleResult result;
+        if (areFollowingRedirect || frameDepth > 0) {
+            // bound by the sample that follows
+            result = sampleRequest(url, method, areFollowingRedirect, frameDepth);
+        } else {
+            bindConnectionControls();
+            try {
+                result = sampleRequest(url, method, areFollowingRedirect, frameDepth);
+            } finally {
+                DnsCache.bind(null);
+                TlsSessions.bind(null);
+            }
+        }
+        if (meter != null) {
+            recordAllocation(result, meter.stop());
+        }
+        if (arrival != null) {
+            recordArrival(result, arrival);
+        }
+        if (!areFollowingRedirect && frameDepth == 0) {
+            HistogramLog hlog = getHistogramLog();
+            if (hlog != null) {
+                hlog.recordValue(getName(), result.getTime());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Performs the sample.
+     * 
+     * This is a copy and paste from the HTTPSampler2 - quick and dirty hack as
+     * that class is not very extensible. The reason to extend and slightly
+     * modify is that I needed to get the body content from a text field in the
+     * GUI rather than a file.
+     */
+    private HTTPSampleResult sampleRequest(URL url, String method, boolean areFollowingRedirect, int frameDepth) {
+
+        if (getVirtualUsers() > 1) {
+            return sampleVirtualUsers(url, method);
+        }
+        if (getUseHttp2()) {
+            if (PROTOCOL_HTTP.equalsIgnoreCase(url.getProtocol())) {
+                return sampleHttp2(url, method);
+            }
+            if (!http2UnsupportedLogged) {
+                log.warn("HTTP/2 only supported without TLS, sampling " + url + " over HTTP/1.1");
+                http2UnsupportedLogged = true;
+            }
+        }
+        if (getPipelineRequests() > 1) {
+            if (PROTOCOL_HTTP.equalsIgnoreCase(url.getProtocol())) {
+                return samplePipelined(url, method);
+            }
+            if (!pipelineUnsupportedLogged) {
+                log.warn("Pipelining only supported for http, sampling " + url + " one request at a time");
+                pipelineUnsupportedLogged = true;
+            }
+        }
+        if (getAsyncInFlight() > 1) {
+            if (PROTOCOL_HTTP.equalsIgnoreCase(url.getProtocol())) {
+                return sampleAsync(url, method);
+            }
+            if (!asyncUnsupportedLogged) {
+                log.warn("Requests in flight only supported for http, sampling " + url + " one request at a time");
+                asyncUnsupportedLogged = true;
+            }
+        }
+
+        String urlStr = url.toString();
+        boolean lean = getLeanResults();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Start : sample " + urlStr);
+            log.debug("method " + method);
+        }
+
+        HttpMethodBase httpMethod = null;
+
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+
+        res.setSampleLabel(urlStr); // May be replaced later
+        res.setHTTPMethod(method);
+        res.setURL(url);
+        res.sampleStart(); // Count the retries as well in the time
+        HttpClient client = null;
+        InputStream instream = null;
+        PhaseTimer phases = getRecordPhases() ? PhaseTimer.begin() : null;
+        try {
+            StreamCheck check = newCheck();
+            httpMethod = createHttpMethod(method, urlStr);
+            // Set any default request headers
+            setDefaultRequestHeaders(httpMethod);
+            // Setup connection
+            client = setupConnection(url, httpMethod, res);
+            // Handle the various methods
+            if (httpMethod instanceof EntityEnclosingMethod) {
+                MyRequestEntity entity = sendData((EntityEnclosingMethod) httpMethod);
+                if (entity.getContent() != null) {
+                    res.setResponseData(entity.getContent());
+                }
+            }
+            overrideHeaders(httpMethod);
+            if (keepRequestHeaders()) {
+                res.setRequestHeaders(getConnectionHeaders(httpMethod));
+            }
+
+            int statusCode = -1;
+            long sent = System.currentTimeMillis();
+            try {
+                statusCode = executeMethod(client, httpMethod, res);
+            } catch (RuntimeException e) {
+                log.error("Exception when executing '" + httpMethod + "'", e);
+                throw e;
+            }
+            long received = System.currentTimeMillis();
+            if (phases != null) {
+                phases.mark(PhaseTimer.TTFB, Math.max(phases.getConnectedTime(), sent), received);
+            }
+
+            // Request sent. Now get the response:
+            instream = httpMethod.getResponseBodyAsStream();
+
+            if (instream != null) {// will be null for HEAD
+
+                Header responseHeader = httpMethod.getResponseHeader(HEADER_CONTENT_ENCODING);
+                String coding = responseHeader == null ? null : responseHeader.getValue();
+                int length = (int) httpMethod.getResponseContentLength();
+                String retention = getResponseRetention();
+                if (!lean && check == null && ResponseReader.FULL.equals(retention) && !ContentCoding.isSupported(coding)) {
+                    res.setResponseData(readResponse(res, instream, length));
+                } else {
+                    res.setResponseData(ResponseReader.read(res, instream, retention, getResponseMaxBytes(), length, coding, check));
+                }
+                if (phases != null) {
+                    phases.mark(PhaseTimer.TRANSFER, received, System.currentTimeMillis());
+                }
+            }
+
+            res.sampleEnd();
+            // Done with the sampling proper.
+            recordPhases(phases, res);
+            recordConnection(res);
+            if (!lean) {
+                recordDecodedBytes(res);
+            }
+
+            // Now collect the results into the HTTPSampleResult:
+
+            if (!lean || getAutoRedirects()) {
+                res.setSampleLabel(httpMethod.getURI().toString());
+                // Pick up Actual path (after redirects)
+            }
+
+            res.setResponseCode(statusCode(statusCode));
+            res.setSuccessful(isSuccessCode(statusCode));
+
+            res.setResponseMessage(httpMethod.getStatusText());
+
+            String ct = null;
+            org.apache.commons.httpclient.Header h = httpMethod.getResponseHeader(HEADER_CONTENT_TYPE);
+            if (h != null)// Can be missing, e.g. on redirect
+            {
+                ct = h.getValue();
+                res.setContentType(ct);// e.g. text/html; charset=ISO-8859-1
+                res.setEncodingAndType(ct);
+            }
+
+            if (keepResponseHeaders()) {
+                res.setResponseHeaders(getResponseHeaders(httpMethod));
+            }
+            verify(res, check, statusCode, new MethodHeaders(httpMethod));
+            if (res.isRedirect()) {
+                final Header headerLocation = httpMethod.getResponseHeader(HEADER_LOCATION);
+                if (headerLocation == null) { // HTTP protocol violation, but
+                    // avoids NPE
+                    throw new IllegalArgumentException("Missing location header");
+                }
+                res.setRedirectLocation(headerLocation.getValue());
+            }
+
+            // If we redirected automatically, the URL may have changed
+            if (getAutoRedirects()) {
+                res.setURL(new URL(httpMethod.getURI().toString()));
+            }
+
+            // Store any cookies received in the cookie manager:
+            saveConnectionCookies(httpMethod, res.getURL(), getCookieManager());
+
+            // Save cache information
+            final CacheManager cacheManager = getCacheManager();
+            if (cacheManager != null) {
+                cacheManager.saveDetails(httpMethod, res);
+            }
+
+            // Follow redirects and download page resources if appropriate:
+            HTTPSampleResult result = resultProcessing(areFollowingRedirect, frameDepth, res);
+
+            if (log.isDebugEnabled()) {
+                log.debug("End : sample");
+            }
+            httpMethod.releaseConnection();
+            return result;
+        } catch (IllegalArgumentException e)// e.g. some kinds of invalid URL
+        {
+            res.sampleEnd();
+            recordPhases(phases, res);
+            recordConnection(res);
+            HTTPSampleResult err = errorResult(e, res);
+            err.setSampleLabel("Error: " + url.toString());
+            return err;
+        } catch (IOException e) {
+            res.sampleEnd();
+            recordPhases(phases, res);
+            recordConnection(res);
+            HTTPSampleResult err = errorResult(e, res);
+            err.setSampleLabel("Error: " + url.toString());
+            return err;
+        } finally {
+            if (phases != null) {
+                PhaseTimer.end();
+            }
+            JOrphanUtils.closeQuietly(instream);
+            if (httpMethod != null) {
+                httpMethod.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * Adds the phases recorded to the result and exposes them to the thread
+     * as variables prefixed by {@link #PHASE_VAR_PREFIX}, so that they can be
+     * saved with the sample_variables property in CSV result files.
+     */
+    private void recordPhases(PhaseTimer phases, HTTPSampleResult res) {
+        if (phases == null) {
+            return;
+        }
+        phases.addTo(res);
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        if (vars != null) {
+            for (int phase = 0; phase < PhaseTimer.NAMES.length; phase++) {
+                vars.put(PHASE_VAR_PREFIX + PhaseTimer.NAMES[phase], Long.toString(phases.getTime(phase)));
+            }
+        }
+    }
+
+    /**
+     * Records on the result the resolution of the host name and the TLS
+     * handshake done to connect, if any, and exposes them to the thread as
+     * the {@link #ADDRESS_VAR}, {@link #DNS_TIME_VAR}, {@link #DNS_HIT_VAR},
+     * {@link #TLS_RESUMED_VAR} and {@link #TLS_TIME_VAR} variables. The
+     * statistics of the pool the connection came from are exposed as well,
+     * see {@link #recordPool}.
+     */
+    private void recordConnection(RestSampleResult res) {
+        DnsCache.Lookup lookup = DnsCache.takeLookup();
+        if (lookup != null) {
+            res.setLookup(lookup);
+        }
+        TlsSessions.Handshake handshake = TlsSessions.takeHandshake();
+        if (handshake != null) {
+            res.setHandshake(handshake);
+        }
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        if (vars == null) {
+            return;
+        }
+        if (lookup != null) {
+            vars.put(ADDRESS_VAR, lookup.getAddress().getHostAddress());
+            vars.put(DNS_TIME_VAR, Long.toString(lookup.getTime()));
+            vars.put(DNS_HIT_VAR, Boolean.toString(lookup.isCacheHit()));
+        } else {
+            vars.remove(ADDRESS_VAR);
+            vars.remove(DNS_TIME_VAR);
+            vars.remove(DNS_HIT_VAR);
+        }
+        if (handshake != null) {
+            vars.put(TLS_RESUMED_VAR, Boolean.toString(handshake.isResumed()));
+            vars.put(TLS_TIME_VAR, Long.toString(handshake.getTime()));
+        } else {
+            vars.remove(TLS_RESUMED_VAR);
+            vars.remove(TLS_TIME_VAR);
+        }
+        recordPool(res);
+    }
+
+    /**
+     * Exposes the statistics of the pool recorded on the result, if any, as
+     * the {@link #POOL_LEASED_VAR}, {@link #POOL_AVAILABLE_VAR} and
+     * {@link #POOL_WAIT_TIME_VAR} variables, which sample_variables can save
+     * with the result.
+     */
+    private void recordPool(RestSampleResult res) {
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        if (vars == null) {
+            return;
+        }
+        if (res.isPooled()) {
+            vars.put(POOL_LEASED_VAR, Integer.toString(res.getPoolLeased()));
+            vars.put(POOL_AVAILABLE_VAR, Integer.toString(res.getPoolAvailable()));
+            vars.put(POOL_WAIT_TIME_VAR, Long.toString(res.getPoolWaitTime()));
+        } else {
+            vars.remove(POOL_LEASED_VAR);
+            vars.remove(POOL_AVAILABLE_VAR);
+            vars.remove(POOL_WAIT_TIME_VAR);
+        }
+    }
+
+    private void recordDecodedBytes(RestSampleResult res) {
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        if (vars != null) {
+            vars.put(DECODED_BYTES_VAR, Long.toString(res.getDecodedBytes()));
+        }
+    }
+
+    /**
+     * Binds the name cache and TLS sessions control of this sampler to the
+     * thread, for the connections opened while sampling.
+     */
+    private void bindConnectionControls() {
+        if (!connectionControlsResolved) {
+            dnsCache = DnsCache.forSettings(getDnsTtl(), getDnsSelection());
+            tlsSessions = TlsSessions.forMode(getTlsSessions());
+            connectionControlsResolved = true;
+        }
+        DnsCache.bind(dnsCache);
+        TlsSessions.bind(tlsSessions);
+    }
+
+    private AllocationMeter getAllocationMeter(URL url) {
+        if (!getMeasureAllocation()) {
+            return null;
+        }
+        if (isSampledOffThread(url)) {
+            if (!allocationUnsupportedLogged) {
+                log.warn(getName() + ": requests to " + url + " performed by other threads, allocation not measured");
+                allocationUnsupportedLogged = true;
+            }
+            return null;
+        }
+        if (allocationMeter == null && AllocationMeter.isSupported()) {
+            allocationMeter = new AllocationMeter();
+        }
+        return allocationMeter;
+    }
+
+    /**
+     * @return true if the requests of a sample of the url are performed by
+     *         threads other than the sampling one, see
+     *         {@link #sampleRequest}
+     */
+    private boolean isSampledOffThread(URL url) {
+        if (getVirtualUsers() > 1) {
+            return true;
+        }
+        if (!PROTOCOL_HTTP.equalsIgnoreCase(url.getProtocol())) {
+            return false;
+        }
+        return getUseHttp2() || (getPipelineRequests() <= 1 && getAsyncInFlight() > 1);
+    }
+
+    /**
+     * Records on the result the bytes allocated to perform the sample and
+     * exposes them to the thread as the {@link #ALLOCATED_BYTES_VAR} variable.
+     */
+    private void recordAllocation(HTTPSampleResult result, long bytes) {
+        if (bytes < 0) {
+            return;
+        }
+        if (result instanceof RestSampleResult) {
+            ((RestSampleResult) result).setAllocatedBytes(bytes);
+        }
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        if (vars != null) {
+            vars.put(ALLOCATED_BYTES_VAR, Long.toString(bytes));
+        }
+    }
+
+    /**
+     * @return true unless results are lean and the request headers are not
+     *         saved
+     */
+    private boolean keepRequestHeaders() {
+        return !getLeanResults() || SampleSaveConfiguration.staticConfig().saveRequestHeaders();
+    }
+
+    /**
+     * @return true unless results are lean and the response headers are not
+     *         saved
+     */
+    private boolean keepResponseHeaders() {
+        return !getLeanResults() || SampleSaveConfiguration.staticConfig().saveResponseHeaders();
+    }
+
+    private static String statusCode(int code) {
+        return code >= 0 && code < STATUS_CODES.length ? STATUS_CODES[code] : Integer.toString(code);
+    }
+
+    private HistogramLog getHistogramLog() {
+        if (histogramLog == null && !histogramLogRejected) {
+            String file = getHistogramFile();
+            if (file != null && file.trim().length() > 0) {
+                try {
+                    histogramLog = HistogramLog.forFile(file.trim(), getHistogramDigits());
+                } catch (IllegalArgumentException e) {
+                    log.error(getName() + ": latencies not recorded. " + e.getMessage());
+                    histogramLogRejected = true;
+                }
+            }
+        }
+        return histogramLog;
+    }
+
+    /**
+     * Records on the result the service time and the time elapsed since the
+     * intended start of the sample, and exposes them to the thread as the
+     * {@link #SERVICE_TIME_VAR} and {@link #CORRECTED_TIME_VAR} variables, so
+     * that they can be saved with the sample_variables property. If the timer
+     * asks for it, the elapsed time of the sample becomes the corrected one.
+     */
+    private void recordArrival(HTTPSampleResult result, ArrivalRateTimer.Arrival arrival) {
+        long start = result.getStartTime();
+        long intended = Math.min(arrival.getIntendedStart(), start);
+        long service = result.getTime();
+        long corrected = result.getEndTime() - intended;
+        if (result instanceof RestSampleResult) {
+            ((RestSampleResult) result).setArrival(intended, service, corrected);
+        }
+        if (arrival.isCorrectedElapsed()) {
+            long latency = result.getLatency();
+            result.setStampAndTime(intended, corrected);
+            if (latency > 0) {
+                result.setLatency(latency + start - intended);
+            }
+        }
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        if (vars != null) {
+            vars.put(SERVICE_TIME_VAR, Long.toString(service));
+            vars.put(CORRECTED_TIME_VAR, Long.toString(corrected));
+        }
+    }
+
+    /**
+     * Executes the method either on the client of this thread or, when pooling
+     * is enabled, on a connection leased from the shared pool. The pooled
+     * execution still uses host configuration and state (cookies,
+     * credentials) prepared by setupConnection for this thread.
+     */
+    private int executeMethod(HttpClient client, HttpMethodBase httpMethod, RestSampleResult res) throws IOException {
+        if (!getUseConnectionPool()) {
+            return client.executeMethod(httpMethod);
+        }
+        SharedConnectionPool pool = SharedConnectionPool.getInstance();
+        try {
+            return pool.getHttpClient().executeMethod(client.getHostConfiguration(), httpMethod, client.getState());
+        } finally {
+            res.setPoolStats(pool.collectStats());
+        }
+    }
+
+    private HttpMethodBase createHttpMethod(String method, String urlStr) {
+        HttpMethodBase httpMethod;
+        // May generate IllegalArgumentException
+        if (method.equals(POST)) {
             httpMethod = new PostMethod(urlStr);
         } else if (method.equals(PUT)) {
             httpMethod = new PutMethod(urlStr);
@@ -321,13 +1277,714 @@ public class RestSampler extends HTTPSampler2 {
 
     /**
      * Set up the PUT/POST data.
-     * 
-     * <b>TODO</b>: should parse request headers and pass the Content-Type. For
-     * now it will always assume text/xml
+     *
+     * The body is encoded with the content encoding of the sampler (UTF-8 if
+     * not set) and sent with the Content-Type given in the request headers,
+     * text/xml if none is given. A body without variables is encoded only once
+     * for all the threads. A body with variables is compiled once in a
+     * {@link BodyTemplate}: its literal parts are encoded once and written
+     * as they are, along with the values of the variables.
+     *
+     * If a body file is set, the body is streamed from its memory mapping,
+     * shared by all the threads; its content is not kept in the result.
+     */
+    private MyRequestEntity sendData(EntityEnclosingMethod method) throws IOException {
+        MyRequestEntity entity = createRequestEntity();
+        method.setRequestEntity(entity);
+        if (entity.getContentEncoding() != null) {
+            method.setRequestHeader(HEADER_CONTENT_ENCODING, entity.getContentEncoding());
+        }
+        return entity;
+    }
+
+    /**
+     * Returns the template of a body with variables, compiled only when the
+     * body text or the charset change.
+     */
+    private BodyTemplate getBodyTemplate(String charset) {
+        String raw = getRawPropertyAsString(REQUEST_BODY);
+        if (bodyTemplate == null || !bodyTemplate.isCompiledFrom(raw, charset)) {
+            bodyTemplate = BodyTemplate.compile(raw, charset);
+        }
+        return bodyTemplate;
+    }
+
+    /**
+     * Returns the assertions of the sampler, compiled only when their text
+     * changes.
+     *
+     * @throws IllegalArgumentException
+     *             if an assertion is not valid
+     */
+    private StreamAssertions getStreamAssertions() {
+        String text = getAssertions();
+        if (streamAssertions == null || !streamAssertions.isCompiledFrom(text)) {
+            streamAssertions = StreamAssertions.compile(text);
+        }
+        return streamAssertions;
+    }
+
+    /**
+     * @return a check of a response against the assertions of the sampler,
+     *         null if there are none
+     */
+    private StreamCheck newCheck() {
+        StreamAssertions assertions = getStreamAssertions();
+        return assertions.isEmpty() ? null : assertions.newCheck();
+    }
+
+    /**
+     * Verifies the response of the result against the assertions, adding an
+     * assertion result for each; the result fails if any does.
+     */
+    private static void verify(HTTPSampleResult res, StreamCheck check, int statusCode, StreamCheck.Headers headers) {
+        if (check == null) {
+            return;
+        }
+        String[] failures = check.verify(statusCode, headers);
+        List<StreamAssertion> assertions = check.getAssertions().getAssertions();
+        for (int i = 0; i < failures.length; i++) {
+            AssertionResult assertion = new AssertionResult(assertions.get(i).getSource());
+            if (failures[i] != null) {
+                assertion.setFailure(true);
+                assertion.setFailureMessage(failures[i]);
+                res.setSuccessful(false);
+            }
+            res.addAssertionResult(assertion);
+        }
+    }
+
+    /**
+     * The headers of a response read by commons-httpclient.
+     */
+    private static class MethodHeaders implements StreamCheck.Headers {
+        private final HttpMethodBase method;
+
+        MethodHeaders(HttpMethodBase method) {
+            this.method = method;
+        }
+
+        public String getHeader(String name) {
+            Header h = method.getResponseHeader(name);
+            return h == null ? null : h.getValue();
+        }
+    }
+
+    private MyRequestEntity createRequestEntity() throws IOException {
+        String type = getHeaderList().getValue(HEADER_CONTENT_TYPE);
+        if (type == null) {
+            type = MyRequestEntity.DEFAULT_CONTENT_TYPE;
+        }
+        String charset = getContentEncoding();
+        if (charset == null || charset.trim().length() == 0) {
+            charset = MyRequestEntity.DEFAULT_CHARSET;
+        }
+        MyRequestEntity entity;
+        String bodyFile = getRequestBodyFile();
+        if (bodyFile != null && bodyFile.trim().length() > 0) {
+            if (fileBody == null || !bodyFile.equals(fileBodyName)) {
+                fileBody = FileBody.forFile(bodyFile.trim());
+                fileBodyName = bodyFile;
+            }
+            entity = new MyRequestEntity(type, fileBody);
+        } else if (getProperty(REQUEST_BODY) instanceof FunctionProperty) {
+            entity = new MyRequestEntity(type, getBodyTemplate(charset.trim()).render());
+            return entity.compress(getRequestCoding(), false);
+        } else {
+            entity = MyRequestEntity.forStaticBody(type, getRequestBody(), charset.trim());
+        }
+        return entity.compress(getRequestCoding(), true);
+    }
+
+    /**
+     * Samples the url with the non blocking engine: the configured number of
+     * requests are sent at once and each becomes a sub result of the
+     * returned result, with its own timings.
+     *
+     * Header, cookie and authorization managers are not applied in this mode.
+     */
+    private HTTPSampleResult sampleAsync(URL url, String method) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setSampleLabel(url.toString());
+        res.setHTTPMethod(method);
+        res.setURL(url);
+        res.sampleStart();
+        int inFlight = getAsyncInFlight();
+        long timeout = getInFlightTimeout();
+        AsyncHttpEngine.Exchange[] exchanges = new AsyncHttpEngine.Exchange[inFlight];
+        StreamCheck[] checks = new StreamCheck[inFlight];
+        CountDownLatch latch = new CountDownLatch(inFlight);
+        try {
+            AsyncHttpEngine engine = AsyncHttpEngine.getInstance();
+            for (int i = 0; i < inFlight; i++) {
+                RawHttpRequest request = createRawRequest(url, method);
+                RawHttpResponse response = new RawHttpResponse(HEAD.equals(method), getResponseRetention(), getResponseMaxBytes());
+                checks[i] = newCheck();
+                response.inspect(checks[i]);
+                exchanges[i] = engine.submit(request, response, latch, timeout);
+            }
+            // the engine expires the exchanges itself, this is only a guard
+            latch.await(timeout + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalArgumentException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        } catch (IOException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        }
+        res.sampleEnd();
+        if (latch.getCount() > 0) {
+            return incomplete(res, inFlight, latch.getCount());
+        }
+        HTTPSampleResult[] subs = new HTTPSampleResult[inFlight];
+        for (int i = 0; i < inFlight; i++) {
+            subs[i] = toSampleResult(exchanges[i], checks[i]);
+        }
+        return aggregate(res, subs);
+    }
+
+    /**
+     * Samples the url sending the configured number of requests on the
+     * connection of this sampler, pipelined or within the configured window.
+     * Each request becomes a sub result of the returned result, timed from
+     * when it was written, so that the time spent behind the responses
+     * before it is included.
+     *
+     * Header, cookie and authorization managers are not applied in this mode.
+     */
+    private HTTPSampleResult samplePipelined(URL url, String method) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setSampleLabel(url.toString());
+        res.setHTTPMethod(method);
+        res.setURL(url);
+        res.sampleStart();
+        int n = getPipelineRequests();
+        RawHttpRequest[] requests = new RawHttpRequest[n];
+        RawHttpResponse[] responses = new RawHttpResponse[n];
+        StreamCheck[] checks = new StreamCheck[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                requests[i] = createRawRequest(url, method);
+                responses[i] = new RawHttpResponse(HEAD.equals(method), getResponseRetention(), getResponseMaxBytes());
+                checks[i] = newCheck();
+                responses[i].inspect(checks[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        } catch (IOException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        }
+        if (pipeline == null) {
+            pipeline = new HttpPipeline();
+        }
+        HttpPipeline.Exchange[] exchanges = pipeline.execute(requests, responses, getPipelineWindow(), getInFlightTimeout());
+        res.sampleEnd();
+        HTTPSampleResult[] subs = new HTTPSampleResult[n];
+        for (int i = 0; i < n; i++) {
+            subs[i] = toSampleResult(exchanges[i], checks[i]);
+        }
+        return aggregate(res, subs);
+    }
+
+    private HTTPSampleResult toSampleResult(HttpPipeline.Exchange ex, StreamCheck check) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setStampAndTime(ex.getStartTime(), ex.getEndTime() - ex.getStartTime());
+        if (ex.getFirstByteTime() > 0) {
+            res.setLatency(ex.getFirstByteTime() - ex.getStartTime());
+        }
+        if (getRecordPhases()) {
+            toPhaseTimer(ex).addTo(res);
+        }
+        return toSampleResult(ex.getRequest(), ex.getResponse(), ex.getError(), res, check);
+    }
+
+    /**
+     * The phases of a pipelined request: connect only if the request opened
+     * the connection, and the time to the first byte includes the wait for
+     * the responses before it.
+     */
+    private PhaseTimer toPhaseTimer(HttpPipeline.Exchange ex) {
+        PhaseTimer phases = new PhaseTimer();
+        long sent = ex.getStartTime();
+        if (ex.getConnectTime() > 0) {
+            phases.mark(PhaseTimer.CONNECT, ex.getStartTime(), ex.getConnectTime());
+            sent = ex.getConnectTime();
+        }
+        if (ex.getFirstByteTime() > 0) {
+            phases.mark(PhaseTimer.TTFB, sent, ex.getFirstByteTime());
+            phases.mark(PhaseTimer.TRANSFER, ex.getFirstByteTime(), ex.getEndTime());
+        }
+        return phases;
+    }
+
+    /**
+     * Samples the url over HTTP/2: as many requests as streams per connection
+     * times connections per host are sent at once, each becoming a sub result
+     * of the returned result with its own timings.
+     *
+     * Header, cookie and authorization managers are not applied in this mode.
+     */
+    private HTTPSampleResult sampleHttp2(URL url, String method) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setSampleLabel(url.toString());
+        res.setHTTPMethod(method);
+        res.setURL(url);
+        res.sampleStart();
+        int streams = getHttp2Streams() * getHttp2Connections();
+        long timeout = getInFlightTimeout();
+        Http2Engine.Exchange[] exchanges = new Http2Engine.Exchange[streams];
+        StreamCheck[] checks = new StreamCheck[streams];
+        CountDownLatch latch = new CountDownLatch(streams);
+        Http2Engine engine = Http2Engine.getInstance(getHttp2Streams(), getHttp2Connections());
+        try {
+            MyRequestEntity entity = null;
+            if (POST.equals(method) || PUT.equals(method)) {
+                entity = createRequestEntity();
+            }
+            List<String[]> headers = getHeaderList().evaluate();
+            String retention = getResponseRetention();
+            for (int i = 0; i < streams; i++) {
+                ResponseReader.Sink sink = ResponseReader.newSink(retention, getResponseMaxBytes(), -1);
+                checks[i] = newCheck();
+                sink.inspect(checks[i]);
+                exchanges[i] = engine.submit(url, method, headers, entity, sink, latch, timeout);
+            }
+            // the engine expires the exchanges itself, this is only a guard
+            latch.await(timeout + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalArgumentException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        } catch (IOException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        }
+        res.sampleEnd();
+        if (latch.getCount() > 0) {
+            return incomplete(res, streams, latch.getCount());
+        }
+        HTTPSampleResult[] subs = new HTTPSampleResult[streams];
+        for (int i = 0; i < streams; i++) {
+            subs[i] = toSampleResult(exchanges[i], checks[i]);
+        }
+        return aggregate(res, subs);
+    }
+
+    private HTTPSampleResult toSampleResult(final Http2Engine.Exchange ex, StreamCheck check) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setHTTPMethod(ex.getMethod());
+        res.setURL(ex.getUrl());
+        res.setStampAndTime(ex.getStartTime(), ex.getEndTime() - ex.getStartTime());
+        if (ex.getFirstByteTime() > 0) {
+            res.setLatency(ex.getFirstByteTime() - ex.getStartTime());
+        }
+        if (keepRequestHeaders()) {
+            res.setRequestHeaders(ex.getRequestHeadersAsString());
+        }
+        if (getRecordPhases()) {
+            toPhaseTimer(ex).addTo(res);
+        }
+        if (ex.getLookup() != null) {
+            res.setLookup(ex.getLookup());
+        }
+        if (ex.getError() != null) {
+            errorResult(ex.getError(), res);
+            res.setSampleLabel("Error: " + ex.getUrl());
+            return res;
+        }
+        res.setSampleLabel(ex.getUrl().toString());
+        int statusCode = ex.getStatusCode();
+        res.setResponseCode(statusCode(statusCode));
+        res.setResponseMessage("HTTP/2 stream " + ex.getStreamId() + " on connection " + ex.getConnectionId());
+        res.setSuccessful(isSuccessCode(statusCode));
+        if (keepResponseHeaders()) {
+            StringBuilder headers = new StringBuilder("HTTP/2 ").append(statusCode).append('\n');
+            for (String[] h : ex.getResponseHeaders()) {
+                headers.append(h[0]).append(": ").append(h[1]).append('\n');
+            }
+            res.setResponseHeaders(headers.toString());
+        }
+        String type = ex.getResponseHeader(HEADER_CONTENT_TYPE);
+        if (type != null) {
+            res.setContentType(type);
+            res.setEncodingAndType(type);
+        }
+        res.setResponseData(ex.getSink().getData());
+        res.setBytes((int) Math.min(ex.getSink().getWireCount(), Integer.MAX_VALUE));
+        res.setDecodedBytes(ex.getSink().getCount());
+        verify(res, check, statusCode, new StreamCheck.Headers() {
+            public String getHeader(String name) {
+                return ex.getResponseHeader(name);
+            }
+        });
+        String location = ex.getResponseHeader(HEADER_LOCATION);
+        if (res.isRedirect() && location != null) {
+            res.setRedirectLocation(location);
+        }
+        return res;
+    }
+
+    /**
+     * The phases of a request over HTTP/2: connect only if the request opened
+     * its connection, and no TLS.
+     */
+    private PhaseTimer toPhaseTimer(Http2Engine.Exchange ex) {
+        PhaseTimer phases = new PhaseTimer();
+        long sent = ex.getStartTime();
+        if (ex.getConnectTime() > 0) {
+            phases.mark(PhaseTimer.CONNECT, ex.getStartTime(), ex.getConnectTime());
+            sent = ex.getConnectTime();
+        }
+        if (ex.getFirstByteTime() > 0) {
+            phases.mark(PhaseTimer.TTFB, sent, ex.getFirstByteTime());
+            phases.mark(PhaseTimer.TRANSFER, ex.getFirstByteTime(), ex.getEndTime());
+        }
+        return phases;
+    }
+
+    /**
+     * @return the milliseconds after which a request of a sample sending many
+     *         at once fails
+     */
+    private long getInFlightTimeout() {
+        return getAsyncTimeout() > 0 ? getAsyncTimeout() : DEFAULT_ASYNC_TIMEOUT;
+    }
+
+    private HTTPSampleResult incomplete(RestSampleResult res, int total, long pending) {
+        res.setSuccessful(false);
+        res.setResponseCode("Non HTTP response code: interrupted");
+        res.setResponseMessage((total - pending) + " of " + total + " requests completed");
+        return res;
+    }
+
+    /**
+     * Adds the results of the requests of a sample as its sub results. The
+     * sample fails with the code of the first failed request, if any.
+     */
+    private HTTPSampleResult aggregate(RestSampleResult res, HTTPSampleResult[] subs) {
+        int failures = 0;
+        String code = "200";
+        for (HTTPSampleResult sub : subs) {
+            if (!sub.isSuccessful()) {
+                if (failures == 0) {
+                    code = sub.getResponseCode();
+                }
+                failures++;
+            }
+            res.addSubResult(sub);
+        }
+        res.setSuccessful(failures == 0);
+        res.setResponseCode(code);
+        res.setResponseMessage(subs.length + " requests, " + failures + " failed");
+        res.setDataType(HTTPSampleResult.TEXT);
+        res.setResponseData(new byte[0]);
+        return res;
+    }
+
+    /**
+     * Samples the url on behalf of the configured number of users, each
+     * running on its own virtual thread with its own HttpState. The request
+     * is evaluated once, in the sampling thread, and shared by the users.
+     *
+     * Header, cookie and authorization managers are not applied in this mode.
+     */
+    private HTTPSampleResult sampleVirtualUsers(URL url, String method) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setSampleLabel(url.toString());
+        res.setHTTPMethod(method);
+        res.setURL(url);
+        res.sampleStart();
+        int users = getVirtualUsers();
+        long timeout = getInFlightTimeout();
+        RestSampleResult[] subs = new RestSampleResult[users];
+        CountDownLatch latch = new CountDownLatch(users);
+        VirtualUserExecutor executor = VirtualUserExecutor.getInstance(getPoolMaxTotal(), getPoolMaxPerHost(), timeout);
+        try {
+            MyRequestEntity entity = null;
+            if (POST.equals(method) || PUT.equals(method)) {
+                entity = createRequestEntity();
+            }
+            List<String[]> headers = getHeaderList().evaluate();
+            String retention = getResponseRetention();
+            String thread = Thread.currentThread().getName();
+            for (int i = 0; i < users; i++) {
+                subs[i] = new RestSampleResult();
+                subs[i].setMonitor(isMonitor());
+                subs[i].setSampleLabel(url.toString());
+                subs[i].setHTTPMethod(method);
+                subs[i].setURL(url);
+                UserRequest request = new UserRequest(thread + "#" + i, executor.getHttpClient(), url.toString(), method, headers, entity, retention,
+                        newCheck(), subs[i], latch);
+                try {
+                    executor.execute(request);
+                } catch (RejectedExecutionException e) {
+                    subs[i].sampleStart();
+                    subs[i].sampleEnd();
+                    errorResult(e, subs[i]);
+                    latch.countDown();
+                }
+            }
+            latch.await(2 * timeout + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalArgumentException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        } catch (IOException e) {
+            res.sampleEnd();
+            return errorResult(e, res);
+        }
+        res.sampleEnd();
+        res.setPoolStats(executor.collectStats());
+        recordPool(res);
+        if (latch.getCount() > 0) {
+            return incomplete(res, users, latch.getCount());
+        }
+        return aggregate(res, subs);
+    }
+
+    /**
+     * The request of one simulated user. It runs on a virtual thread, so it
+     * must not read the sampler properties, which may be evaluated against
+     * the variables of the sampling thread, nor block holding a monitor.
+     */
+    private class UserRequest implements Runnable {
+        private final String user;
+        private final HttpClient client;
+        private final String url;
+        private final String method;
+        private final List<String[]> headers;
+        private final MyRequestEntity entity;
+        private final String retention;
+        private final int maxBytes;
+        private final boolean keepAlive;
+        private final boolean recordPhases;
+        private final boolean requestHeaders;
+        private final boolean responseHeaders;
+        private final StreamCheck check;
+        private final RestSampleResult res;
+        private final CountDownLatch latch;
+        private final DnsCache userDnsCache;
+        private final TlsSessions userTlsSessions;
+
+        UserRequest(String user, HttpClient client, String url, String method, List<String[]> headers, MyRequestEntity entity, String retention,
+                StreamCheck check, RestSampleResult res, CountDownLatch latch) {
+            this.user = user;
+            this.client = client;
+            this.url = url;
+            this.method = method;
+            this.headers = headers;
+            this.entity = entity;
+            this.retention = retention;
+            this.maxBytes = getResponseMaxBytes();
+            this.keepAlive = getUseKeepAlive();
+            this.recordPhases = getRecordPhases();
+            this.requestHeaders = keepRequestHeaders();
+            this.responseHeaders = keepResponseHeaders();
+            this.check = check;
+            this.res = res;
+            this.latch = latch;
+            // those of the sampling thread
+            this.userDnsCache = DnsCache.getBound();
+            this.userTlsSessions = TlsSessions.getBound();
+        }
+
+        public void run() {
+            HttpMethodBase httpMethod = null;
+            InputStream instream = null;
+            PhaseTimer phases = recordPhases ? PhaseTimer.begin() : null;
+            DnsCache.bind(userDnsCache);
+            TlsSessions.bind(userTlsSessions);
+            TlsSessions.bindUser(user);
+            res.sampleStart();
+            try {
+                httpMethod = createHttpMethod(method, url);
+                for (String[] h : headers) {
+                    httpMethod.addRequestHeader(h[0], h[1]);
+                }
+                if (!keepAlive) {
+                    httpMethod.setRequestHeader(HEADER_CONNECTION, CONNECTION_CLOSE);
+                }
+                if (entity != null && httpMethod instanceof EntityEnclosingMethod) {
+                    ((EntityEnclosingMethod) httpMethod).setRequestEntity(entity);
+                    if (entity.getContentEncoding() != null) {
+                        httpMethod.setRequestHeader(HEADER_CONTENT_ENCODING, entity.getContentEncoding());
+                    }
+                }
+                if (requestHeaders) {
+                    res.setRequestHeaders(getConnectionHeaders(httpMethod));
+                }
+                long sent = System.currentTimeMillis();
+                int statusCode = client.executeMethod(null, httpMethod, new HttpState());
+                long received = System.currentTimeMillis();
+                if (phases != null) {
+                    phases.mark(PhaseTimer.TTFB, Math.max(phases.getConnectedTime(), sent), received);
+                }
+                instream = httpMethod.getResponseBodyAsStream();
+                if (instream != null) {
+                    Header encoding = httpMethod.getResponseHeader(HEADER_CONTENT_ENCODING);
+                    int length = (int) httpMethod.getResponseContentLength();
+                    ResponseReader.Sink sink = ResponseReader.newSink(retention, maxBytes, length);
+                    sink.decode(encoding == null ? null : encoding.getValue());
+                    sink.inspect(check);
+                    res.setResponseData(ResponseReader.read(res, instream, sink, new byte[USER_BUFFER_SIZE]));
+                    if (phases != null) {
+                        phases.mark(PhaseTimer.TRANSFER, received, System.currentTimeMillis());
+                    }
+                } else {
+                    res.latencyEnd();
+                }
+                res.sampleEnd();
+                res.setResponseCode(statusCode(statusCode));
+                res.setSuccessful(isSuccessCode(statusCode));
+                res.setResponseMessage(httpMethod.getStatusText());
+                Header type = httpMethod.getResponseHeader(HEADER_CONTENT_TYPE);
+                if (type != null) {
+                    res.setContentType(type.getValue());
+                    res.setEncodingAndType(type.getValue());
+                }
+                if (responseHeaders) {
+                    res.setResponseHeaders(getResponseHeaders(httpMethod));
+                }
+                verify(res, check, statusCode, new MethodHeaders(httpMethod));
+                Header location = httpMethod.getResponseHeader(HEADER_LOCATION);
+                if (res.isRedirect() && location != null) {
+                    res.setRedirectLocation(location.getValue());
+                }
+            } catch (IOException e) {
+                failed(e);
+            } catch (RuntimeException e) {
+                failed(e);
+            } finally {
+                if (phases != null) {
+                    phases.addTo(res);
+                    PhaseTimer.end();
+                }
+                DnsCache.Lookup lookup = DnsCache.takeLookup();
+                if (lookup != null) {
+                    res.setLookup(lookup);
+                }
+                TlsSessions.Handshake handshake = TlsSessions.takeHandshake();
+                if (handshake != null) {
+                    res.setHandshake(handshake);
+                }
+                TlsSessions.bindUser(null);
+                TlsSessions.bind(null);
+                DnsCache.bind(null);
+                JOrphanUtils.closeQuietly(instream);
+                if (httpMethod != null) {
+                    httpMethod.releaseConnection();
+                }
+                latch.countDown();
+            }
+        }
+
+        private void failed(Exception e) {
+            if (res.getEndTime() == 0) {
+                res.sampleEnd();
+            }
+            errorResult(e, res);
+            res.setSampleLabel("Error: " + url);
+        }
+    }
+
+    private RawHttpRequest createRawRequest(URL url, String method) throws IOException {
+        MyRequestEntity entity = null;
+        if (POST.equals(method) || PUT.equals(method)) {
+            entity = createRequestEntity();
+        }
+        return new RawHttpRequest(url, method, getHeaderList().evaluate(), getUseKeepAlive(), entity);
+    }
+
+    private HTTPSampleResult toSampleResult(AsyncHttpEngine.Exchange ex, StreamCheck check) {
+        RestSampleResult res = new RestSampleResult();
+        res.setMonitor(isMonitor());
+        res.setStampAndTime(ex.getStartTime(), ex.getEndTime() - ex.getStartTime());
+        if (ex.getFirstByteTime() > 0) {
+            res.setLatency(ex.getFirstByteTime() - ex.getStartTime());
+        }
+        if (getRecordPhases()) {
+            toPhaseTimer(ex).addTo(res);
+        }
+        return toSampleResult(ex.getRequest(), ex.getResponse(), ex.getError(), res, check);
+    }
+
+    /**
+     * Completes the result of a request sent by the sampler itself with its
+     * response, or its failure.
+     */
+    private HTTPSampleResult toSampleResult(RawHttpRequest request, final RawHttpResponse response, IOException error, RestSampleResult res,
+            StreamCheck check) {
+        res.setHTTPMethod(request.getMethod());
+        res.setURL(request.getUrl());
+        if (keepRequestHeaders()) {
+            res.setRequestHeaders(request.getHeadAsString());
+        }
+        if (request.getLookup() != null) {
+            res.setLookup(request.getLookup());
+        }
+        if (error != null) {
+            errorResult(error, res);
+            res.setSampleLabel("Error: " + request.getUrl());
+            return res;
+        }
+        res.setSampleLabel(request.getUrl().toString());
+        int statusCode = response.getStatusCode();
+        res.setResponseCode(statusCode(statusCode));
+        res.setResponseMessage(response.getStatusText());
+        res.setSuccessful(isSuccessCode(statusCode));
+        if (keepResponseHeaders()) {
+            res.setResponseHeaders(response.getHeaders());
+        }
+        if (response.getContentType() != null) {
+            res.setContentType(response.getContentType());
+            res.setEncodingAndType(response.getContentType());
+        }
+        res.setResponseData(response.getBody());
+        res.setBytes((int) Math.min(response.getBodyWireLength(), Integer.MAX_VALUE));
+        res.setDecodedBytes(response.getBodyLength());
+        verify(res, check, statusCode, new StreamCheck.Headers() {
+            public String getHeader(String name) {
+                return response.getHeader(name);
+            }
+        });
+        if (res.isRedirect() && response.getLocation() != null) {
+            res.setRedirectLocation(response.getLocation());
+        }
+        return res;
+    }
+
+    /**
+     * The phases of a request of the non blocking engine: the address is
+     * resolved when the request is created, and no TLS is involved.
      */
-    private String sendData(EntityEnclosingMethod method) throws IOException {
-        method.setRequestEntity(new MyRequestEntity(getRequestBody()));
-        return getRequestBody();
+    private PhaseTimer toPhaseTimer(AsyncHttpEngine.Exchange ex) {
+        PhaseTimer phases = new PhaseTimer();
+        RawHttpRequest request = ex.getRequest();
+        phases.mark(PhaseTimer.DNS, request.getResolveStart(), request.getResolveEnd());
+        long sent = ex.getStartTime();
+        if (ex.getConnectTime() > 0) {
+            phases.mark(PhaseTimer.CONNECT, ex.getStartTime(), ex.getConnectTime());
+            sent = ex.getConnectTime();
+        }
+        if (ex.getFirstByteTime() > 0) {
+            phases.mark(PhaseTimer.TTFB, sent, ex.getFirstByteTime());
+            if (ex.getEndTime() > 0) {
+                phases.mark(PhaseTimer.TRANSFER, ex.getFirstByteTime(), ex.getEndTime());
+            }
+        }
+        return phases;
     }
 
 }
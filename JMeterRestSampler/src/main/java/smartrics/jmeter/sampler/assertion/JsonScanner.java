@@ -0,0 +1,437 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.assertion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans a JSON document pushed to it a chunk at a time and picks the values
+ * at a set of paths, without building the document.
+ *
+ * Paths are JSON pointers, as <code>/items/0/id</code>, or their JSONPath
+ * equivalent, as <code>$.items[0].id</code>; wildcards and filters are not
+ * supported. Strings are unescaped; numbers, booleans and null are given as
+ * written; objects and arrays are found but have no value. Only the first
+ * document of the body is scanned.
+ */
+final class JsonScanner {
+    private static final int VALUE = 0;
+    private static final int KEY = 1;
+    private static final int COLON = 2;
+    private static final int AFTER = 3;
+    private static final int STRING = 4;
+    private static final int ESCAPE = 5;
+    private static final int TOKEN = 6;
+    private static final int DONE = 7;
+    private static final int ERROR = 8;
+
+    private final String[][] paths;
+    private final int[][] indexes;
+    private final int maxDepth;
+    private final boolean[] found;
+    private final String[] values;
+
+    private int state = VALUE;
+    private boolean key;
+    private boolean first;
+    private int depth;
+    private boolean[] arrays = new boolean[16];
+    private int[] positions = new int[16];
+    private String[] keys = new String[16];
+    private int capturing = -1;
+    private ByteArrayOutputStream captured;
+    private long offset;
+    private String error;
+
+    /**
+     * @param paths
+     *            the paths, as given in the assertions
+     * @throws IllegalArgumentException
+     *             if a path is not valid
+     */
+    JsonScanner(String[] paths) {
+        this.paths = new String[paths.length][];
+        this.indexes = new int[paths.length][];
+        int max = 0;
+        for (int i = 0; i < paths.length; i++) {
+            this.paths[i] = parse(paths[i]);
+            this.indexes[i] = new int[this.paths[i].length];
+            for (int j = 0; j < this.paths[i].length; j++) {
+                this.indexes[i][j] = toIndex(this.paths[i][j]);
+            }
+            max = Math.max(max, this.paths[i].length);
+        }
+        this.maxDepth = max;
+        this.found = new boolean[paths.length];
+        this.values = new String[paths.length];
+    }
+
+    /**
+     * Splits a JSON pointer or a JSONPath in its steps.
+     */
+    static String[] parse(String path) {
+        List<String> steps = new ArrayList<String>();
+        if (path.startsWith("$")) {
+            int i = 1;
+            while (i < path.length()) {
+                char c = path.charAt(i);
+                if (c == '.') {
+                    int end = i + 1;
+                    while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                        end++;
+                    }
+                    if (end == i + 1) {
+                        throw new IllegalArgumentException("Empty step in " + path);
+                    }
+                    steps.add(path.substring(i + 1, end));
+                    i = end;
+                } else if (c == '[') {
+                    int end = path.indexOf(']', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed [ in " + path);
+                    }
+                    String step = path.substring(i + 1, end).trim();
+                    if (step.length() >= 2 && (step.charAt(0) == '\'' || step.charAt(0) == '"') && step.charAt(step.length() - 1) == step.charAt(0)) {
+                        step = step.substring(1, step.length() - 1);
+                    } else if (toIndex(step) < 0) {
+                        throw new IllegalArgumentException("Unsupported step [" + step + "] in " + path);
+                    }
+                    steps.add(step);
+                    i = end + 1;
+                } else {
+                    throw new IllegalArgumentException("Unexpected '" + c + "' in " + path);
+                }
+            }
+        } else if (path.length() > 0) {
+            if (!path.startsWith("/")) {
+                throw new IllegalArgumentException("A JSON pointer starts with /: " + path);
+            }
+            for (String step : path.substring(1).split("/", -1)) {
+                steps.add(step.replace("~1", "/").replace("~0", "~"));
+            }
+        }
+        return steps.toArray(new String[steps.size()]);
+    }
+
+    private static int toIndex(String step) {
+        if (step.length() == 0 || step.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < step.length(); i++) {
+            if (step.charAt(i) < '0' || step.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(step);
+    }
+
+    void update(byte[] b, int off, int len) {
+        for (int i = off; i < off + len && state < DONE; i++) {
+            consume(b[i]);
+            offset++;
+        }
+    }
+
+    private void consume(byte c) {
+        switch (state) {
+        case STRING:
+            if (c == '"') {
+                endString();
+            } else {
+                if (c == '\\') {
+                    state = ESCAPE;
+                }
+                capture(c);
+            }
+            return;
+        case ESCAPE:
+            capture(c);
+            state = STRING;
+            return;
+        case TOKEN:
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c == '+' || c == '.') {
+                capture(c);
+                return;
+            }
+            endValue(capturing >= 0 ? string(false) : null);
+            consume(c);
+            return;
+        }
+        if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+            return;
+        }
+        switch (state) {
+        case VALUE:
+            if (c == ']' && first && arrays[depth]) {
+                close();
+            } else if (c == '{' || c == '[') {
+                start();
+                // containers are found, but have no value
+                capturing = -1;
+                push(c == '[');
+                state = c == '[' ? VALUE : KEY;
+                first = true;
+            } else if (c == '"') {
+                start();
+                state = STRING;
+            } else if ((c >= '0' && c <= '9') || c == '-' || c == 't' || c == 'f' || c == 'n') {
+                start();
+                capture(c);
+                state = TOKEN;
+            } else {
+                fail(c);
+            }
+            return;
+        case KEY:
+            if (c == '}' && first) {
+                close();
+            } else if (c == '"') {
+                key = true;
+                if (depth <= maxDepth) {
+                    captured = newBuffer();
+                }
+                state = STRING;
+            } else {
+                fail(c);
+            }
+            return;
+        case COLON:
+            if (c == ':') {
+                state = VALUE;
+                first = false;
+            } else {
+                fail(c);
+            }
+            return;
+        case AFTER:
+            if (c == ',') {
+                if (arrays[depth]) {
+                    positions[depth]++;
+                    state = VALUE;
+                } else {
+                    state = KEY;
+                }
+                first = false;
+            } else if ((c == ']' && arrays[depth]) || (c == '}' && !arrays[depth])) {
+                close();
+            } else {
+                fail(c);
+            }
+            return;
+        }
+    }
+
+    /**
+     * A value starts at the current path: captures it if it is one of
+     * those searched.
+     */
+    private void start() {
+        capturing = -1;
+        if (depth > maxDepth) {
+            return;
+        }
+        for (int i = 0; i < paths.length; i++) {
+            if (!found[i] && matches(i)) {
+                found[i] = true;
+                if (capturing < 0) {
+                    capturing = i;
+                    captured = newBuffer();
+                }
+            }
+        }
+    }
+
+    private boolean matches(int p) {
+        String[] steps = paths[p];
+        if (steps.length != depth) {
+            return false;
+        }
+        for (int level = 1; level <= depth; level++) {
+            if (arrays[level]) {
+                if (indexes[p][level - 1] != positions[level]) {
+                    return false;
+                }
+            } else if (!steps[level - 1].equals(keys[level])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteArrayOutputStream newBuffer() {
+        if (captured == null) {
+            return new ByteArrayOutputStream(64);
+        }
+        captured.reset();
+        return captured;
+    }
+
+    private void capture(byte c) {
+        if ((key && depth <= maxDepth) || capturing >= 0) {
+            captured.write(c);
+        }
+    }
+
+    private void endString() {
+        if (key) {
+            keys[depth] = depth <= maxDepth ? string(true) : null;
+            key = false;
+            state = COLON;
+            return;
+        }
+        endValue(capturing >= 0 ? string(true) : null);
+    }
+
+    private void endValue(String value) {
+        if (capturing >= 0) {
+            // all the paths equal to the one captured
+            for (int i = capturing; i < paths.length; i++) {
+                if (found[i] && values[i] == null && matches(i)) {
+                    values[i] = value;
+                }
+            }
+            capturing = -1;
+        }
+        state = depth == 0 ? DONE : AFTER;
+    }
+
+    private void push(boolean array) {
+        depth++;
+        if (depth == arrays.length) {
+            boolean[] a = new boolean[depth * 2];
+            System.arraycopy(arrays, 0, a, 0, depth);
+            arrays = a;
+            int[] p = new int[depth * 2];
+            System.arraycopy(positions, 0, p, 0, depth);
+            positions = p;
+            String[] k = new String[depth * 2];
+            System.arraycopy(keys, 0, k, 0, depth);
+            keys = k;
+        }
+        arrays[depth] = array;
+        positions[depth] = 0;
+        keys[depth] = null;
+    }
+
+    private void close() {
+        depth--;
+        state = depth == 0 ? DONE : AFTER;
+        first = false;
+    }
+
+    private void fail(byte c) {
+        error = "invalid JSON at byte " + offset + ": '" + (char) (c & 0xff) + "'";
+        state = ERROR;
+    }
+
+    private String string(boolean quoted) {
+        String s;
+        try {
+            s = captured == null ? "" : captured.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return quoted ? unescape(s) : s;
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i == s.length() - 1) {
+                sb.append(c);
+                continue;
+            }
+            char e = s.charAt(++i);
+            switch (e) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                if (i + 4 < s.length()) {
+                    try {
+                        sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    } catch (NumberFormatException ex) {
+                        // kept as written
+                    }
+                }
+                sb.append("\\u");
+                break;
+            default:
+                sb.append(e);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the value at the path of the given index was found
+     */
+    boolean isFound(int path) {
+        return found[path];
+    }
+
+    /**
+     * @return the value at the path of the given index, null if not found or
+     *         if an object or an array
+     */
+    String getValue(int path) {
+        return values[path];
+    }
+
+    /**
+     * @return why the body could not be scanned, null if it could; a body
+     *         ending before the document does is reported too
+     */
+    String getError() {
+        if (error != null) {
+            return error;
+        }
+        if (state != DONE) {
+            return offset == 0 ? "no JSON body" : "JSON body ends at byte " + offset + " before the document does";
+        }
+        return null;
+    }
+
+    /**
+     * Ends the scan, completing a number or literal at the end of the body.
+     */
+    void finish() {
+        if (state == TOKEN) {
+            endValue(capturing >= 0 ? string(false) : null);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.assertion;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * One assertion declared on a RestSampler, checked while the response is
+ * read so that the body need not be kept. See {@link StreamAssertions} for
+ * the syntax.
+ */
+public final class StreamAssertion {
+    public static final String STATUS = "status";
+    public static final String HEADER = "header";
+    public static final String CONTAINS = "contains";
+    public static final String LENGTH = "length";
+    public static final String JSON = "json";
+    public static final String XPATH = "xpath";
+
+    static final String EXISTS = "";
+    static final String EQUALS = "=";
+    static final String NOT_EQUALS = "!=";
+    static final String MATCHES = "~";
+    static final String LESS = "<";
+    static final String LESS_OR_EQUAL = "<=";
+    static final String GREATER = ">";
+    static final String GREATER_OR_EQUAL = ">=";
+
+    private static final String[] VALUE_OPERATORS = new String[] { NOT_EQUALS, EQUALS, MATCHES };
+
+    private static final String[] LENGTH_OPERATORS = new String[] { LESS_OR_EQUAL, GREATER_OR_EQUAL, NOT_EQUALS, EQUALS, LESS, GREATER };
+
+    private final String source;
+    private final String kind;
+    private final boolean negated;
+    private final String target;
+    private final String operator;
+    private final String expected;
+
+    // contains: the needle and its partial match table
+    private final byte[] needle;
+    private final int[] fallback;
+
+    private StreamAssertion(String source, String kind, boolean negated, String target, String operator, String expected) {
+        this.source = source;
+        this.kind = kind;
+        this.negated = negated;
+        this.target = target;
+        this.operator = operator;
+        this.expected = expected;
+        if (CONTAINS.equals(kind)) {
+            needle = utf8(expected);
+            fallback = fallback(needle);
+        } else {
+            needle = null;
+            fallback = null;
+        }
+    }
+
+    /**
+     * Parses one declaration.
+     *
+     * @throws IllegalArgumentException
+     *             if the declaration is not valid
+     */
+    static StreamAssertion parse(String line) {
+        String rest = line.trim();
+        boolean negated = false;
+        if (rest.startsWith("not ")) {
+            negated = true;
+            rest = rest.substring(4).trim();
+        }
+        int sp = indexOfSpace(rest);
+        String kind = (sp < 0 ? rest : rest.substring(0, sp)).toLowerCase();
+        rest = sp < 0 ? "" : rest.substring(sp + 1).trim();
+        if (STATUS.equals(kind)) {
+            if (!rest.matches("[0-9xX]{3}")) {
+                throw invalid(line, "status expects a code as 200 or 2xx");
+            }
+            return new StreamAssertion(line, kind, negated, null, EQUALS, rest.toLowerCase());
+        }
+        if (CONTAINS.equals(kind)) {
+            String text = unquote(rest);
+            if (text.length() == 0) {
+                throw invalid(line, "contains expects a text");
+            }
+            return new StreamAssertion(line, kind, negated, null, MATCHES, text);
+        }
+        if (LENGTH.equals(kind)) {
+            String op = operator(rest, LENGTH_OPERATORS);
+            if (op == null) {
+                throw invalid(line, "length expects a comparison as > 100");
+            }
+            String n = rest.substring(op.length()).trim();
+            try {
+                Long.parseLong(n);
+            } catch (NumberFormatException e) {
+                throw invalid(line, "length expects a number of bytes");
+            }
+            return new StreamAssertion(line, kind, negated, null, op, n);
+        }
+        if (HEADER.equals(kind) || JSON.equals(kind) || XPATH.equals(kind)) {
+            sp = indexOfSpace(rest);
+            String target = sp < 0 ? rest : rest.substring(0, sp);
+            if (target.length() == 0) {
+                throw invalid(line, kind + " expects a " + (HEADER.equals(kind) ? "name" : "path"));
+            }
+            rest = sp < 0 ? "" : rest.substring(sp + 1).trim();
+            if (HEADER.equals(kind) && target.endsWith(":")) {
+                target = target.substring(0, target.length() - 1);
+            }
+            try {
+                if (JSON.equals(kind)) {
+                    JsonScanner.parse(target);
+                } else if (XPATH.equals(kind)) {
+                    new XmlScanner(new String[] { target });
+                }
+            } catch (IllegalArgumentException e) {
+                throw invalid(line, e.getMessage());
+            }
+            if (rest.length() == 0) {
+                return new StreamAssertion(line, kind, negated, target, EXISTS, null);
+            }
+            String op = operator(rest, VALUE_OPERATORS);
+            if (op == null) {
+                throw invalid(line, "expected one of =, != or ~ after " + target);
+            }
+            return new StreamAssertion(line, kind, negated, target, op, unquote(rest.substring(op.length()).trim()));
+        }
+        throw invalid(line, "unknown assertion " + kind);
+    }
+
+    private static int indexOfSpace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String operator(String s, String[] operators) {
+        for (String op : operators) {
+            if (s.startsWith(op)) {
+                return op;
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String s) {
+        if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")) {
+            return s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+    private static IllegalArgumentException invalid(String line, String reason) {
+        return new IllegalArgumentException("Invalid assertion '" + line.trim() + "': " + reason);
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The Knuth-Morris-Pratt table of the needle: where to resume matching
+     * after a mismatch, so that a match spanning two reads is found without
+     * looking back.
+     */
+    private static int[] fallback(byte[] needle) {
+        int[] table = new int[needle.length];
+        int k = 0;
+        for (int i = 1; i < needle.length; i++) {
+            while (k > 0 && needle[i] != needle[k]) {
+                k = table[k - 1];
+            }
+            if (needle[i] == needle[k]) {
+                k++;
+            }
+            table[i] = k;
+        }
+        return table;
+    }
+
+    /**
+     * Advances the search of the needle of a contains assertion.
+     *
+     * @param matched
+     *            the bytes of the needle matched so far
+     * @return the bytes matched after the given ones, the needle length if
+     *         found
+     */
+    int search(int matched, byte[] b, int off, int len) {
+        int k = matched;
+        for (int i = off; i < off + len && k < needle.length; i++) {
+            while (k > 0 && b[i] != needle[k]) {
+                k = fallback[k - 1];
+            }
+            if (b[i] == needle[k]) {
+                k++;
+            }
+        }
+        return k;
+    }
+
+    int getNeedleLength() {
+        return needle.length;
+    }
+
+    /**
+     * @return the declaration as written
+     */
+    public String getSource() {
+        return source.trim();
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public boolean isNegated() {
+        return negated;
+    }
+
+    /**
+     * @return the header name or the path checked, null for other kinds
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    String getOperator() {
+        return operator;
+    }
+
+    String getExpected() {
+        return expected;
+    }
+
+    /**
+     * Checks a value found, or not, in the response.
+     *
+     * @param actual
+     *            the value, null if missing
+     * @return null if the check passes, the reason otherwise
+     */
+    String check(String actual) {
+        boolean ok;
+        if (EXISTS.equals(operator)) {
+            ok = actual != null;
+        } else if (actual == null) {
+            ok = false;
+        } else if (EQUALS.equals(operator)) {
+            ok = actual.equals(expected);
+        } else if (NOT_EQUALS.equals(operator)) {
+            ok = !actual.equals(expected);
+        } else {
+            ok = actual.indexOf(expected) >= 0;
+        }
+        if (ok != negated) {
+            return null;
+        }
+        String found = actual == null ? "missing" : "'" + actual + "'";
+        return getSource() + " failed: " + found;
+    }
+
+    /**
+     * Checks the status code of the response.
+     */
+    String checkStatus(int code) {
+        String actual = Integer.toString(code);
+        boolean ok = actual.length() == 3;
+        for (int i = 0; ok && i < 3; i++) {
+            ok = expected.charAt(i) == 'x' || expected.charAt(i) == actual.charAt(i);
+        }
+        if (ok != negated) {
+            return null;
+        }
+        return getSource() + " failed: " + actual;
+    }
+
+    /**
+     * Checks the length of the body, once decoded.
+     */
+    String checkLength(long length) {
+        long n = Long.parseLong(expected);
+        boolean ok;
+        if (EQUALS.equals(operator)) {
+            ok = length == n;
+        } else if (NOT_EQUALS.equals(operator)) {
+            ok = length != n;
+        } else if (LESS.equals(operator)) {
+            ok = length < n;
+        } else if (LESS_OR_EQUAL.equals(operator)) {
+            ok = length <= n;
+        } else if (GREATER.equals(operator)) {
+            ok = length > n;
+        } else {
+            ok = length >= n;
+        }
+        if (ok != negated) {
+            return null;
+        }
+        return getSource() + " failed: " + length + " bytes";
+    }
+
+    /**
+     * Checks whether the needle of a contains assertion was found.
+     */
+    String checkFound(boolean found) {
+        if (found != negated) {
+            return null;
+        }
+        return getSource() + " failed";
+    }
+}
@@ -0,0 +1,135 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.assertion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The assertions declared on a RestSampler, one per line, checked while the
+ * response is read so that the body can be discarded and still verified.
+ *
+ * <pre>
+ * status 2xx
+ * header Content-Type ~ json
+ * contains "orderId"
+ * length &lt;= 65536
+ * json /items/0/id = 42
+ * json $.status != FAILED
+ * xpath //order/@id
+ * not contains error
+ * </pre>
+ *
+ * <ul>
+ * <li><code>status</code>: the status code, <code>x</code> matching any
+ * digit.</li>
+ * <li><code>header</code>: a response header, by name.</li>
+ * <li><code>contains</code>: a text in the body, encoded as UTF-8.</li>
+ * <li><code>length</code>: the bytes of the body, once decoded, compared
+ * with <code>=</code>, <code>!=</code>, <code>&lt;</code>,
+ * <code>&lt;=</code>, <code>&gt;</code> or <code>&gt;=</code>.</li>
+ * <li><code>json</code>: a value of a JSON body, see {@link JsonScanner} for
+ * the paths.</li>
+ * <li><code>xpath</code>: a value of an XML body, see {@link XmlScanner} for
+ * the paths.</li>
+ * </ul>
+ * A header name or a path alone asserts that it is present; followed by
+ * <code>=</code>, <code>!=</code> or <code>~</code> (contains) and a value,
+ * that its value matches. Values and texts may be quoted to keep surrounding
+ * spaces. <code>not</code> negates an assertion; empty lines and lines
+ * starting with <code>#</code> are ignored.
+ *
+ * The assertions are compiled once, see {@link #compile(String)}; each
+ * response is then checked by its own {@link StreamCheck}.
+ */
+public final class StreamAssertions {
+
+    private final String source;
+    private final List<StreamAssertion> assertions;
+    private final String[] jsonPaths;
+    private final String[] xmlPaths;
+    private final boolean inspectsBody;
+
+    private StreamAssertions(String source, List<StreamAssertion> assertions) {
+        this.source = source;
+        this.assertions = Collections.unmodifiableList(assertions);
+        List<String> json = new ArrayList<String>();
+        List<String> xml = new ArrayList<String>();
+        boolean body = false;
+        for (StreamAssertion a : assertions) {
+            if (StreamAssertion.JSON.equals(a.getKind())) {
+                json.add(a.getTarget());
+            } else if (StreamAssertion.XPATH.equals(a.getKind())) {
+                xml.add(a.getTarget());
+            }
+            body |= StreamAssertion.CONTAINS.equals(a.getKind()) || StreamAssertion.JSON.equals(a.getKind())
+                    || StreamAssertion.XPATH.equals(a.getKind());
+        }
+        this.jsonPaths = json.toArray(new String[json.size()]);
+        this.xmlPaths = xml.toArray(new String[xml.size()]);
+        this.inspectsBody = body;
+    }
+
+    /**
+     * Compiles the assertions declared in the text.
+     *
+     * @throws IllegalArgumentException
+     *             if a declaration is not valid
+     */
+    public static StreamAssertions compile(String text) {
+        List<StreamAssertion> assertions = new ArrayList<StreamAssertion>();
+        if (text != null) {
+            for (String line : text.split("\r?\n")) {
+                String l = line.trim();
+                if (l.length() > 0 && !l.startsWith("#")) {
+                    assertions.add(StreamAssertion.parse(l));
+                }
+            }
+        }
+        return new StreamAssertions(text, assertions);
+    }
+
+    /**
+     * @return true if compiled from the given text
+     */
+    public boolean isCompiledFrom(String text) {
+        return source == null ? text == null : source.equals(text);
+    }
+
+    public boolean isEmpty() {
+        return assertions.isEmpty();
+    }
+
+    public List<StreamAssertion> getAssertions() {
+        return assertions;
+    }
+
+    /**
+     * @return true if some assertions need the body
+     */
+    public boolean inspectsBody() {
+        return inspectsBody;
+    }
+
+    /**
+     * @return a check of a response against these assertions
+     */
+    public StreamCheck newCheck() {
+        return new StreamCheck(this, jsonPaths.length == 0 ? null : new JsonScanner(jsonPaths), xmlPaths.length == 0 ? null
+                : new XmlScanner(xmlPaths));
+    }
+}
@@ -0,0 +1,136 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.assertion;
+
+import java.util.List;
+
+import smartrics.jmeter.sampler.http.ResponseReader;
+
+/**
+ * The check of one response against the {@link StreamAssertions} of a
+ * sampler. The body is inspected as it is read, see
+ * {@link ResponseReader.Sink#inspect(ResponseReader.Inspector)}; the status
+ * and headers are checked at the end, by {@link #verify(int, Headers)}.
+ *
+ * A check is used by one thread at a time.
+ */
+public final class StreamCheck implements ResponseReader.Inspector {
+
+    /**
+     * Access to the headers of the response checked.
+     */
+    public interface Headers {
+        /**
+         * @return the value of the header, null if missing
+         */
+        String getHeader(String name);
+    }
+
+    private final StreamAssertions assertions;
+    private final JsonScanner json;
+    private final XmlScanner xml;
+    private final int[] matched;
+    private long length;
+
+    StreamCheck(StreamAssertions assertions, JsonScanner json, XmlScanner xml) {
+        this.assertions = assertions;
+        this.json = json;
+        this.xml = xml;
+        this.matched = new int[assertions.getAssertions().size()];
+    }
+
+    public void inspect(byte[] b, int off, int len) {
+        length += len;
+        List<StreamAssertion> list = assertions.getAssertions();
+        for (int i = 0; i < matched.length; i++) {
+            StreamAssertion a = list.get(i);
+            if (StreamAssertion.CONTAINS.equals(a.getKind()) && matched[i] < a.getNeedleLength()) {
+                matched[i] = a.search(matched[i], b, off, len);
+            }
+        }
+        if (json != null) {
+            json.update(b, off, len);
+        }
+        if (xml != null) {
+            xml.update(b, off, len);
+        }
+    }
+
+    /**
+     * Checks the response once read.
+     *
+     * @param statusCode
+     *            the status code of the response
+     * @param headers
+     *            the headers of the response
+     * @return for each assertion, in order, null if it passed or why it
+     *         failed
+     */
+    public String[] verify(int statusCode, Headers headers) {
+        if (json != null) {
+            json.finish();
+        }
+        List<StreamAssertion> list = assertions.getAssertions();
+        String[] failures = new String[list.size()];
+        int jsonPath = 0;
+        int xmlPath = 0;
+        for (int i = 0; i < failures.length; i++) {
+            StreamAssertion a = list.get(i);
+            String kind = a.getKind();
+            if (StreamAssertion.STATUS.equals(kind)) {
+                failures[i] = a.checkStatus(statusCode);
+            } else if (StreamAssertion.HEADER.equals(kind)) {
+                failures[i] = a.check(headers.getHeader(a.getTarget()));
+            } else if (StreamAssertion.CONTAINS.equals(kind)) {
+                failures[i] = a.checkFound(matched[i] == a.getNeedleLength());
+            } else if (StreamAssertion.LENGTH.equals(kind)) {
+                failures[i] = a.checkLength(length);
+            } else if (StreamAssertion.JSON.equals(kind)) {
+                failures[i] = checkScanned(a, json.isFound(jsonPath), json.getValue(jsonPath), json.getError());
+                jsonPath++;
+            } else if (StreamAssertion.XPATH.equals(kind)) {
+                failures[i] = checkScanned(a, xml.isFound(xmlPath), xml.getValue(xmlPath), xml.getError());
+                xmlPath++;
+            }
+        }
+        return failures;
+    }
+
+    private static String checkScanned(StreamAssertion a, boolean found, String value, String error) {
+        if (!found && error != null) {
+            return a.getSource() + " failed: " + error;
+        }
+        if (found && value == null && !StreamAssertion.EXISTS.equals(a.getOperator())) {
+            // an object, an array or an element not ended
+            return a.isNegated() ? null : a.getSource() + " failed: no value at " + a.getTarget();
+        }
+        return a.check(found ? (value == null ? "" : value) : null);
+    }
+
+    /**
+     * @return the assertions checked
+     */
+    public StreamAssertions getAssertions() {
+        return assertions;
+    }
+
+    /**
+     * @return the bytes of the body inspected, once decoded
+     */
+    public long getLength() {
+        return length;
+    }
+}
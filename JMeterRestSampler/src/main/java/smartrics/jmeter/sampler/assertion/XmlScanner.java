@@ -0,0 +1,447 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.assertion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scans an XML document pushed to it a chunk at a time and picks the values
+ * at a set of paths, without building the document.
+ *
+ * Paths are a subset of XPath: absolute element paths, as
+ * <code>/order/item</code>, or paths starting with <code>//</code> to match
+ * the elements at any depth, optionally ending with <code>/@name</code> to
+ * pick an attribute or <code>/text()</code>. Steps match element names as
+ * written or, when the step has no prefix, their local name. The value of an
+ * element is its text, that of its descendants included; only the first
+ * element matching a path is considered.
+ *
+ * The document is not validated and entities other than the predefined and
+ * character ones are kept as written. Text is decoded as UTF-8.
+ */
+final class XmlScanner {
+    private static final int TEXT = 0;
+    private static final int OPEN = 1;
+    private static final int NAME = 2;
+    private static final int END_NAME = 3;
+    private static final int IN_TAG = 4;
+    private static final int ATTR_NAME = 5;
+    private static final int ATTR_EQ = 6;
+    private static final int ATTR_VALUE = 7;
+    private static final int BANG = 8;
+    private static final int COMMENT = 9;
+    private static final int CDATA = 10;
+    private static final int DECLARATION = 11;
+    private static final int INSTRUCTION = 12;
+
+    private static final byte[] CDATA_START = new byte[] { '[', 'C', 'D', 'A', 'T', 'A', '[' };
+
+    private final String[][] paths;
+    private final boolean[] anywhere;
+    private final String[] attributes;
+    private final boolean[] found;
+    private final String[] values;
+
+    private int state = TEXT;
+    private final List<String> elements = new ArrayList<String>();
+    private final ByteArrayOutputStream name = new ByteArrayOutputStream(32);
+    private final ByteArrayOutputStream attrValue = new ByteArrayOutputStream(64);
+    private String attrName;
+    private byte quote;
+    private boolean selfClosing;
+    private int bang;
+    private int tail;
+    private int bracketDepth;
+    private boolean root;
+
+    // the paths whose attributes are searched in the current start tag
+    private final List<Integer> tagMatches = new ArrayList<Integer>();
+
+    // the text of the elements matching the paths, since the first open
+    private int open;
+    private final int[] textDepths;
+    private final int[] textStarts;
+    private final ByteArrayOutputStream text = new ByteArrayOutputStream(64);
+    private final StringBuilder value = new StringBuilder();
+
+    /**
+     * @param paths
+     *            the paths, as given in the assertions
+     * @throws IllegalArgumentException
+     *             if a path is not supported
+     */
+    XmlScanner(String[] paths) {
+        this.paths = new String[paths.length][];
+        this.anywhere = new boolean[paths.length];
+        this.attributes = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            String p = paths[i];
+            if (p.endsWith("/text()")) {
+                p = p.substring(0, p.length() - "/text()".length());
+            }
+            if (p.startsWith("//")) {
+                anywhere[i] = true;
+                p = p.substring(2);
+            } else if (p.startsWith("/")) {
+                p = p.substring(1);
+            } else {
+                throw new IllegalArgumentException("Unsupported path, not starting with /: " + paths[i]);
+            }
+            String[] steps = p.split("/", -1);
+            String last = steps[steps.length - 1];
+            if (last.startsWith("@")) {
+                attributes[i] = last.substring(1);
+                String[] s = new String[steps.length - 1];
+                System.arraycopy(steps, 0, s, 0, s.length);
+                steps = s;
+            }
+            for (String step : steps) {
+                if (step.length() == 0 || step.indexOf('[') >= 0 || step.indexOf('*') >= 0 || step.indexOf('@') >= 0 || step.indexOf('(') >= 0) {
+                    throw new IllegalArgumentException("Unsupported path: " + paths[i]);
+                }
+            }
+            if (steps.length == 0) {
+                throw new IllegalArgumentException("Unsupported path: " + paths[i]);
+            }
+            this.paths[i] = steps;
+        }
+        this.found = new boolean[paths.length];
+        this.values = new String[paths.length];
+        this.textDepths = new int[paths.length];
+        this.textStarts = new int[paths.length];
+        Arrays.fill(textDepths, -1);
+    }
+
+    void update(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            consume(b[i]);
+        }
+    }
+
+    private void consume(byte c) {
+        switch (state) {
+        case TEXT:
+            if (c == '<') {
+                state = OPEN;
+            } else if (open > 0) {
+                text.write(c);
+            }
+            return;
+        case OPEN:
+            if (c == '/') {
+                name.reset();
+                state = END_NAME;
+            } else if (c == '!') {
+                bang = 0;
+                state = BANG;
+            } else if (c == '?') {
+                tail = 0;
+                state = INSTRUCTION;
+            } else {
+                name.reset();
+                name.write(c);
+                state = NAME;
+            }
+            return;
+        case NAME:
+            if (isSpace(c) || c == '>' || c == '/') {
+                startElement();
+                state = IN_TAG;
+                consume(c);
+            } else {
+                name.write(c);
+            }
+            return;
+        case IN_TAG:
+            if (c == '>') {
+                endStartTag();
+            } else if (c == '/') {
+                selfClosing = true;
+            } else if (!isSpace(c)) {
+                name.reset();
+                name.write(c);
+                state = ATTR_NAME;
+            }
+            return;
+        case ATTR_NAME:
+            if (c == '=' || isSpace(c)) {
+                attrName = tagMatches.isEmpty() ? null : utf8(name);
+                state = ATTR_EQ;
+            } else {
+                name.write(c);
+            }
+            return;
+        case ATTR_EQ:
+            if (c == '"' || c == '\'') {
+                quote = c;
+                attrValue.reset();
+                state = ATTR_VALUE;
+            }
+            return;
+        case ATTR_VALUE:
+            if (c == quote) {
+                attribute();
+                state = IN_TAG;
+            } else if (attrName != null) {
+                attrValue.write(c);
+            }
+            return;
+        case END_NAME:
+            if (c == '>') {
+                endElement();
+                state = TEXT;
+            }
+            return;
+        case BANG:
+            if (bang == 0 && c == '-') {
+                bang = -1;
+            } else if (bang == -1) {
+                tail = 0;
+                state = c == '-' ? COMMENT : DECLARATION;
+            } else if (bang < CDATA_START.length && c == CDATA_START[bang]) {
+                if (++bang == CDATA_START.length) {
+                    flushText();
+                    tail = 0;
+                    state = CDATA;
+                }
+            } else {
+                bracketDepth = c == '[' ? 1 : 0;
+                state = c == '>' ? TEXT : DECLARATION;
+            }
+            return;
+        case COMMENT:
+            if (c == '>' && tail >= 2) {
+                state = TEXT;
+            }
+            tail = c == '-' ? tail + 1 : 0;
+            return;
+        case CDATA:
+            if (c == ']') {
+                tail++;
+                return;
+            }
+            if (c == '>' && tail >= 2) {
+                writeBrackets(tail - 2);
+                if (open > 0) {
+                    // character data is taken as written
+                    value.append(utf8(text));
+                }
+                text.reset();
+                state = TEXT;
+                return;
+            }
+            writeBrackets(tail);
+            tail = 0;
+            if (open > 0) {
+                text.write(c);
+            }
+            return;
+        case DECLARATION:
+            if (c == '[') {
+                bracketDepth++;
+            } else if (c == ']') {
+                bracketDepth--;
+            } else if (c == '>' && bracketDepth <= 0) {
+                state = TEXT;
+            }
+            return;
+        case INSTRUCTION:
+            if (c == '>' && tail == 1) {
+                state = TEXT;
+            }
+            tail = c == '?' ? 1 : 0;
+            return;
+        }
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private void startElement() {
+        elements.add(utf8(name));
+        root = true;
+        selfClosing = false;
+        tagMatches.clear();
+        for (int i = 0; i < paths.length; i++) {
+            if (!found[i] && matches(i)) {
+                if (attributes[i] != null) {
+                    tagMatches.add(Integer.valueOf(i));
+                } else {
+                    found[i] = true;
+                    flushText();
+                    textDepths[i] = elements.size();
+                    textStarts[i] = value.length();
+                    open++;
+                }
+            }
+        }
+    }
+
+    private boolean matches(int p) {
+        String[] steps = paths[p];
+        int depth = elements.size();
+        if (anywhere[p] ? depth < steps.length : depth != steps.length) {
+            return false;
+        }
+        for (int i = 0; i < steps.length; i++) {
+            String element = elements.get(depth - steps.length + i);
+            String step = steps[i];
+            if (!step.equals(element) && !(step.indexOf(':') < 0 && element.endsWith(":" + step))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void attribute() {
+        if (attrName == null) {
+            return;
+        }
+        for (Integer i : tagMatches) {
+            String wanted = attributes[i.intValue()];
+            if (wanted.equals(attrName) || (wanted.indexOf(':') < 0 && attrName.endsWith(":" + wanted))) {
+                found[i.intValue()] = true;
+                values[i.intValue()] = unescape(utf8(attrValue));
+            }
+        }
+    }
+
+    private void endStartTag() {
+        tagMatches.clear();
+        state = TEXT;
+        if (selfClosing) {
+            endElement();
+        }
+    }
+
+    private void endElement() {
+        if (open > 0) {
+            flushText();
+            for (int i = 0; i < paths.length; i++) {
+                if (textDepths[i] == elements.size()) {
+                    values[i] = value.substring(textStarts[i]);
+                    textDepths[i] = -1;
+                    open--;
+                }
+            }
+            if (open == 0) {
+                value.setLength(0);
+            }
+        }
+        if (!elements.isEmpty()) {
+            elements.remove(elements.size() - 1);
+        }
+    }
+
+    /**
+     * Adds the text read so far to the values of the elements captured,
+     * decoding its references.
+     */
+    private void flushText() {
+        if (open > 0 && text.size() > 0) {
+            value.append(unescape(utf8(text)));
+        }
+        text.reset();
+    }
+
+    private void writeBrackets(int n) {
+        if (open > 0) {
+            for (int i = 0; i < n; i++) {
+                text.write(']');
+            }
+        }
+    }
+
+    private static String utf8(ByteArrayOutputStream out) {
+        try {
+            return out.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('&') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semi = c == '&' ? s.indexOf(';', i) : -1;
+            if (semi < 0) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            String ref = s.substring(i + 1, semi);
+            String decoded = null;
+            if ("lt".equals(ref)) {
+                decoded = "<";
+            } else if ("gt".equals(ref)) {
+                decoded = ">";
+            } else if ("amp".equals(ref)) {
+                decoded = "&";
+            } else if ("quot".equals(ref)) {
+                decoded = "\"";
+            } else if ("apos".equals(ref)) {
+                decoded = "'";
+            } else if (ref.startsWith("#")) {
+                try {
+                    int cp = ref.startsWith("#x") ? Integer.parseInt(ref.substring(2), 16) : Integer.parseInt(ref.substring(1));
+                    decoded = new String(Character.toChars(cp));
+                } catch (IllegalArgumentException e) {
+                    // kept as written
+                }
+            }
+            if (decoded == null) {
+                sb.append(c);
+                i++;
+            } else {
+                sb.append(decoded);
+                i = semi + 1;
+            }
+        }
+        return sb.toString();
+    }
+
+    boolean isFound(int path) {
+        return found[path];
+    }
+
+    /**
+     * @return the value at the path of the given index, null if not found
+     *         or if the element has not ended
+     */
+    String getValue(int path) {
+        return values[path];
+    }
+
+    /**
+     * @return why the body could not be scanned, null if it could
+     */
+    String getError() {
+        if (!root) {
+            return "no XML element in the body";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,216 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.feed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * The lines of a text file, memory mapped and indexed once so that any line
+ * can be read by any thread without locking.
+ *
+ * The index holds the start of each line that is not blank, as an int
+ * relative to the start of a block of lines, so that it takes four bytes per
+ * line whatever the size of the file. As for {@link smartrics.jmeter.sampler.http.FileBody}
+ * files larger than a single mapping are mapped in consecutive regions, and
+ * a file is mapped and indexed again only if its size or modification time
+ * change.
+ */
+public final class MappedLines {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final int REGION_SHIFT = 30;
+
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    private static final int BLOCK_SHIFT = 8;
+
+    private static final Map<String, MappedLines> files = new ConcurrentHashMap<String, MappedLines>();
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final MappedByteBuffer[] regions;
+    private long[] blockStarts = new long[16];
+    private int[] offsets = new int[16 << BLOCK_SHIFT];
+    private int count;
+
+    private MappedLines(File file) throws IOException {
+        this.path = file.getPath();
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            int regionCount = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+            regions = new MappedByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long pos = (long) i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(REGION_SIZE, length - pos));
+            }
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+        long start = System.currentTimeMillis();
+        index();
+        log.info("indexed " + count + " lines of " + path + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Returns the lines of the file at the given path, mapping and indexing
+     * it only if not already done or if it changed since.
+     */
+    public static MappedLines forFile(String fileName) throws IOException {
+        File file = new File(fileName).getCanonicalFile();
+        String key = file.getPath();
+        MappedLines lines = files.get(key);
+        if (lines == null || !lines.isCurrent(file)) {
+            synchronized (files) {
+                lines = files.get(key);
+                if (lines == null || !lines.isCurrent(file)) {
+                    if (!file.isFile()) {
+                        throw new IOException("Data file not found: " + fileName);
+                    }
+                    lines = new MappedLines(file);
+                    files.put(key, lines);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Forgets all the files. Their mappings are released by the JVM once no
+     * longer used.
+     */
+    public static void releaseAll() {
+        files.clear();
+    }
+
+    private boolean isCurrent(File file) {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    private void index() throws IOException {
+        long lineStart = 0;
+        boolean blank = true;
+        for (int r = 0; r < regions.length; r++) {
+            ByteBuffer region = regions[r].duplicate();
+            region.clear();
+            long base = (long) r << REGION_SHIFT;
+            int limit = region.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = region.get(i);
+                if (b == '\n') {
+                    if (!blank) {
+                        add(lineStart);
+                    }
+                    lineStart = base + i + 1;
+                    blank = true;
+                } else if (b != '\r' && b != ' ' && b != '\t') {
+                    blank = false;
+                }
+            }
+        }
+        if (!blank) {
+            add(lineStart);
+        }
+    }
+
+    private void add(long start) throws IOException {
+        int block = count >>> BLOCK_SHIFT;
+        if (block == blockStarts.length) {
+            long[] grown = new long[blockStarts.length * 2];
+            System.arraycopy(blockStarts, 0, grown, 0, blockStarts.length);
+            blockStarts = grown;
+        }
+        if (count == offsets.length) {
+            if (count == Integer.MAX_VALUE - 8) {
+                throw new IOException("Too many lines in " + path);
+            }
+            int[] grown = new int[(int) Math.min(offsets.length * 2L, Integer.MAX_VALUE - 8)];
+            System.arraycopy(offsets, 0, grown, 0, offsets.length);
+            offsets = grown;
+        }
+        if ((count & ((1 << BLOCK_SHIFT) - 1)) == 0) {
+            blockStarts[block] = start;
+        }
+        long offset = start - blockStarts[block];
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Lines too long to be indexed in " + path);
+        }
+        offsets[count++] = (int) offset;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the number of lines that are not blank
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the line of the given index, counting only the lines that are
+     *         not blank, without its terminator
+     */
+    public String get(int index, String charset) throws UnsupportedEncodingException {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + count + " in " + path);
+        }
+        long pos = blockStarts[index >>> BLOCK_SHIFT] + offsets[index];
+        byte[] buffer = buffers.get();
+        int n = 0;
+        while (pos < length) {
+            byte b = regions[(int) (pos >>> REGION_SHIFT)].get((int) (pos & (REGION_SIZE - 1)));
+            if (b == '\n') {
+                break;
+            }
+            if (n == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, n);
+                buffer = grown;
+                buffers.set(buffer);
+            }
+            buffer[n++] = b;
+            pos++;
+        }
+        if (n > 0 && buffer[n - 1] == '\r') {
+            n--;
+        }
+        return new String(buffer, 0, n, charset);
+    }
+}
@@ -0,0 +1,128 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.gui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JCheckBox;
+
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.timers.gui.AbstractTimerGui;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import smartrics.jmeter.sampler.ArrivalRateTimer;
+
+/**
+ * Frontend for the ArrivalRateTimer
+ */
+public class ArrivalRateTimerGui extends AbstractTimerGui {
+    private static final long serialVersionUID = -2376931840165730129L;
+
+    private JLabeledTextField rate;
+    private JLabeledTextField startRate;
+    private JLabeledTextField rampTime;
+    private JCheckBox correctedElapsed;
+
+    public ArrivalRateTimerGui() {
+        init();
+    }
+
+    public String getLabelResource() {
+        return "arrival_rate_timer_title"; //$NON-NLS-1$
+    }
+
+    public String getStaticLabel() {
+        return "Arrival Rate Timer";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#createTestElement()
+     */
+    public TestElement createTestElement() {
+        ArrivalRateTimer timer = new ArrivalRateTimer();
+        modifyTestElement(timer);
+        return timer;
+    }
+
+    /**
+     * Modifies a given TestElement to mirror the data in the gui components.
+     *
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#modifyTestElement(TestElement)
+     */
+    public void modifyTestElement(TestElement el) {
+        this.configureTestElement(el);
+        if (el instanceof ArrivalRateTimer) {
+            ArrivalRateTimer timer = (ArrivalRateTimer) el;
+            timer.setRate(toDouble(rate.getText()));
+            timer.setStartRate(toDouble(startRate.getText()));
+            timer.setRampTime(toDouble(rampTime.getText()));
+            timer.setCorrectedElapsed(correctedElapsed.isSelected());
+        }
+    }
+
+    public void configure(TestElement el) {
+        super.configure(el);
+        if (el instanceof ArrivalRateTimer) {
+            ArrivalRateTimer timer = (ArrivalRateTimer) el;
+            rate.setText(Double.toString(timer.getRate()));
+            startRate.setText(Double.toString(timer.getStartRate()));
+            rampTime.setText(Double.toString(timer.getRampTime()));
+            correctedElapsed.setSelected(timer.getCorrectedElapsed());
+        }
+    }
+
+    /**
+     * Implements JMeterGUIComponent.clearGui
+     */
+    public void clearGui() {
+        super.clearGui();
+        clear();
+    }
+
+    private void clear() {
+        rate.setText("10");
+        startRate.setText("0");
+        rampTime.setText("0");
+        correctedElapsed.setSelected(true);
+    }
+
+    private void init() {
+        setLayout(new BorderLayout());
+        setBorder(makeBorder());
+        add(makeTitlePanel(), BorderLayout.NORTH);
+        rate = new JLabeledTextField("Target rate (requests/s)", 8);
+        startRate = new JLabeledTextField("Ramp start rate (requests/s)", 8);
+        rampTime = new JLabeledTextField("Ramp time (s, 0 for constant rate)", 8);
+        correctedElapsed = new JCheckBox("Measure elapsed time from intended start");
+        VerticalPanel panel = new VerticalPanel();
+        panel.add(rate);
+        panel.add(startRate);
+        panel.add(rampTime);
+        panel.add(correctedElapsed);
+        add(panel, BorderLayout.CENTER);
+        clear();
+    }
+
+    private double toDouble(String text) {
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -66,6 +66,7 @@ public class ChartWrapper {
     protected Chart chart;
     protected BufferedImage image;
     private int xAxisScalingFactor = 1;
+    private boolean showAverage = true;
 
     /**
      *
@@ -92,6 +93,14 @@ public class ChartWrapper {
         this.xAxisScalingFactor = xAsf;
     }
 
+    /**
+     * Sets whether the running average of the data is drawn as a line over
+     * the data. Without it only the first of the y axis labels is used.
+     */
+    public void setShowAverage(boolean showAverage) {
+        this.showAverage = showAverage;
+    }
+
     public Chart getChart() {
         return chart;
     }
@@ -157,12 +166,12 @@ public class ChartWrapper {
             String[] xAxisLabels = formattedKeys();
             DataSeries dataSeries = new DataSeries(xAxisLabels, xAxisTitle, yAxisTitle, title);
             LineChartProperties lineChartProperties = createLineChartProperties();
-            double data[][] = createDatasetWithAverage();
+            double data[][] = createDataset();
             for (int i = 0; i < data.length; i++) {
                 String[] legendLabelsData = { yAxisLabels[i] };
-                Paint[] paints = new Paint[] { colours[i % poolsLength] };
+                Paint[] paints = new Paint[] { getPaint(i) };
                 double[][] extracted = extract(i, data);
-                AxisChartDataSet axisChartDataSet = new AxisChartDataSet(extracted, legendLabelsData, paints, chartTypes[i % poolsLength], lineChartProperties);
+                AxisChartDataSet axisChartDataSet = new AxisChartDataSet(extracted, legendLabelsData, paints, getChartType(i), lineChartProperties);
                 dataSeries.addIAxisPlotDataSet(axisChartDataSet);
             }
             chart = createAxisChart(dataSeries);
@@ -229,15 +238,35 @@ public class ChartWrapper {
         return fk.toArray(new String[fk.size()]);
     }
 
-    private double[][] createDatasetWithAverage() {
+    /**
+     * @return the colour of the series at the index
+     */
+    protected Paint getPaint(int series) {
+        return colours[series % poolsLength];
+    }
+
+    /**
+     * @return how the series at the index is drawn
+     */
+    protected ChartType getChartType(int series) {
+        return chartTypes[series % poolsLength];
+    }
+
+    /**
+     * @return the series to draw, one per y axis label, each with a value per
+     *         key: by default the data and, if shown, its running average
+     */
+    protected double[][] createDataset() {
         List<Long> data = getDataValues();
-        double[][] dataset = new double[2][data.size()];
+        double[][] dataset = new double[showAverage ? 2 : 1][data.size()];
         double avg = 0;
         for (int idx = 0; idx < data.size(); idx++) {
             dataset[0][idx] = data.get(idx);
             avg += dataset[0][idx];
             double val = avg / (idx + 1);
-            dataset[1][idx] = val;
+            if (showAverage) {
+                dataset[1][idx] = val;
+            }
         }
         return dataset;
     }
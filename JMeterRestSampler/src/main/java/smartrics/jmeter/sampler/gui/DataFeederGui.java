@@ -0,0 +1,148 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.gui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JCheckBox;
+
+import org.apache.jmeter.config.gui.AbstractConfigGui;
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import smartrics.jmeter.sampler.DataFeeder;
+
+/**
+ * Frontend for the DataFeeder
+ */
+public class DataFeederGui extends AbstractConfigGui {
+    private static final long serialVersionUID = 4409181326519580962L;
+
+    private JLabeledTextField filename;
+    private JLabeledTextField fileEncoding;
+    private JLabeledTextField variableNames;
+    private JLabeledTextField delimiter;
+    private JLabeledChoice mode;
+    private JLabeledTextField partitions;
+    private JCheckBox recycle;
+
+    public DataFeederGui() {
+        init();
+    }
+
+    public String getLabelResource() {
+        return "data_feeder_title"; //$NON-NLS-1$
+    }
+
+    public String getStaticLabel() {
+        return "Mapped Data Feeder";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#createTestElement()
+     */
+    public TestElement createTestElement() {
+        DataFeeder feeder = new DataFeeder();
+        modifyTestElement(feeder);
+        return feeder;
+    }
+
+    /**
+     * Modifies a given TestElement to mirror the data in the gui components.
+     *
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#modifyTestElement(TestElement)
+     */
+    public void modifyTestElement(TestElement el) {
+        this.configureTestElement(el);
+        if (el instanceof DataFeeder) {
+            DataFeeder feeder = (DataFeeder) el;
+            feeder.setFilename(filename.getText());
+            feeder.setFileEncoding(fileEncoding.getText());
+            feeder.setVariableNames(variableNames.getText());
+            feeder.setDelimiter(delimiter.getText());
+            feeder.setMode(mode.getText());
+            feeder.setPartitions(toInt(partitions.getText()));
+            feeder.setRecycle(recycle.isSelected());
+        }
+    }
+
+    public void configure(TestElement el) {
+        super.configure(el);
+        if (el instanceof DataFeeder) {
+            DataFeeder feeder = (DataFeeder) el;
+            filename.setText(feeder.getFilename());
+            fileEncoding.setText(feeder.getFileEncoding());
+            variableNames.setText(feeder.getVariableNames());
+            delimiter.setText(feeder.getPropertyAsString(DataFeeder.DELIMITER));
+            mode.setText(feeder.getMode());
+            partitions.setText(Integer.toString(feeder.getPartitions()));
+            recycle.setSelected(feeder.getRecycle());
+        }
+    }
+
+    /**
+     * Implements JMeterGUIComponent.clearGui
+     */
+    public void clearGui() {
+        super.clearGui();
+        clear();
+    }
+
+    private void clear() {
+        filename.setText("");
+        fileEncoding.setText("UTF-8");
+        variableNames.setText("");
+        delimiter.setText(",");
+        mode.setText(DataFeeder.SEQUENTIAL);
+        partitions.setText("0");
+        recycle.setSelected(true);
+    }
+
+    private void init() {
+        setLayout(new BorderLayout());
+        setBorder(makeBorder());
+        add(makeTitlePanel(), BorderLayout.NORTH);
+        filename = new JLabeledTextField("Filename", 30);
+        fileEncoding = new JLabeledTextField("File encoding", 10);
+        variableNames = new JLabeledTextField("Variable names (comma delimited, empty to read the first line)", 30);
+        delimiter = new JLabeledTextField("Delimiter (\\t for tab)", 4);
+        mode = new JLabeledChoice("Rows to threads", DataFeeder.MODES);
+        partitions = new JLabeledTextField("Partitions (0 for the number of threads)", 6);
+        recycle = new JCheckBox("Recycle on EOF");
+        VerticalPanel panel = new VerticalPanel();
+        panel.add(filename);
+        panel.add(fileEncoding);
+        panel.add(variableNames);
+        panel.add(delimiter);
+        panel.add(mode);
+        panel.add(partitions);
+        panel.add(recycle);
+        add(panel, BorderLayout.CENTER);
+        clear();
+    }
+
+    private int toInt(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -63,6 +63,8 @@ public class JmxGui extends AbstractSamplerGui {
         panel.setUrl("service:jmx:rmi:///jndi/rmi://<host>:<port>/jmxrmi");
         panel.setUsedMemoryType(JmxSampler.HEAP_MEM);
         panel.setSamplingFrequency(5);
+        panel.setBackgroundPolling(true);
+        panel.setMetrics("");
     }
 
     /**
@@ -82,6 +84,8 @@ public class JmxGui extends AbstractSamplerGui {
             sampler.setSampleFrequency(panel.getSamplingFrequency());
             sampler.setJmxUri(panel.getUrl());
             sampler.setJmxMemType(panel.getUsedMemoryType());
+            sampler.setBackgroundPolling(panel.isBackgroundPolling());
+            sampler.setJmxMetrics(panel.getMetrics());
         }
     }
 
@@ -111,6 +115,8 @@ public class JmxGui extends AbstractSamplerGui {
             panel.setUsedMemoryType(sampler.getJmxMemType());
             int sf = sampler.getSampleFrequency();
             panel.setSamplingFrequency(sf);
+            panel.setBackgroundPolling(sampler.isBackgroundPolling());
+            panel.setMetrics(sampler.getJmxMetrics());
         }
     }
 
@@ -18,6 +18,7 @@ import java.util.LinkedList;
 import java.util.List;
 
 import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
@@ -29,6 +30,7 @@ import org.apache.jmeter.gui.util.VerticalPanel;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 import smartrics.jmeter.sampler.JmxSampler;
+import smartrics.jmeter.sampler.jmx.JvmMetrics;
 
 /**
  * UI for the JMX data, used by the JmxGui
@@ -41,6 +43,8 @@ public class JmxPanel extends VerticalPanel {
     private JTextField jmxUrl;
     private JComboBox usedMemoryType;
     private JLabeledTextField samplingFrequency;
+    private JCheckBox backgroundPolling;
+    private JCheckBox[] metrics;
 
     private JFileChooser saveFileChooser;
 
@@ -59,7 +63,17 @@ public class JmxPanel extends VerticalPanel {
         jmxDataPanel.add(usedMemoryType);
         samplingFrequency = new JLabeledTextField("Sampling Frequency (sec)", 5);
         jmxDataPanel.add(samplingFrequency);
+        backgroundPolling = new JCheckBox("Poll in background");
+        jmxDataPanel.add(backgroundPolling);
         add(jmxDataPanel);
+        HorizontalPanel metricsPanel = new HorizontalPanel();
+        metricsPanel.add(new JLabel("Also sample"));
+        metrics = new JCheckBox[JvmMetrics.SETS.length];
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new JCheckBox(JvmMetrics.getTitle(JvmMetrics.SETS[i]));
+            metricsPanel.add(metrics[i]);
+        }
+        add(metricsPanel);
     }
 
     public void setUsedMemoryType(String memType) {
@@ -89,4 +103,36 @@ public class JmxPanel extends VerticalPanel {
     public int getSamplingFrequency() {
         return Integer.parseInt(samplingFrequency.getText());
     }
+
+    public void setBackgroundPolling(boolean b) {
+        backgroundPolling.setSelected(b);
+    }
+
+    public boolean isBackgroundPolling() {
+        return backgroundPolling.isSelected();
+    }
+
+    /**
+     * @param list
+     *            the sets of JVM figures to sample, as a comma separated list
+     */
+    public void setMetrics(String list) {
+        String l = list == null ? "" : "," + list.replaceAll("\\s", "") + ",";
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i].setSelected(l.indexOf("," + JvmMetrics.SETS[i] + ",") >= 0);
+        }
+    }
+
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < metrics.length; i++) {
+            if (metrics[i].isSelected()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(JvmMetrics.SETS[i]);
+            }
+        }
+        return sb.toString();
+    }
 }
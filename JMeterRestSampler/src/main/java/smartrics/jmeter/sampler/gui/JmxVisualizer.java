@@ -34,12 +34,16 @@ import org.apache.log.Logger;
 
 import smartrics.jmeter.sampler.JmxSampleResult;
 import smartrics.jmeter.sampler.SaveGraphUtil;
+import smartrics.jmeter.sampler.jmx.JvmMetrics;
 
 /**
  * Visualises the results of sampling a JMX server for memory.
  *
  * Each server is represented by a graph and identified by it's uri. It captures
  * and display results from all JmxSampler set up to sample different servers.
+ * 
+ * The other JVM figures sampled, if any, are charted in a graph per server
+ * and set of figures, see {@link JvmMetrics}.
  */
 @SuppressWarnings("serial")
 public class JmxVisualizer extends AbstractVisualizer implements SaveGraphListener {
@@ -91,8 +95,25 @@ public class JmxVisualizer extends AbstractVisualizer implements SaveGraphListen
         return graphPanel;
     }
 
+    private JmxGraphPanel addMetricsGraph(String set, String uri) {
+        JmxGraphPanel graphPanel = new JmxGraphPanel();
+        MetricsChartWrapper graph = new MetricsChartWrapper();
+        graphsPanel.add(graphPanel);
+        graphPanel.setBorder(BorderFactory.createLineBorder(Color.BLACK));
+        graph.setTitle(JvmMetrics.getTitle(set) + " for " + uri);
+        graph.setXAxisTitle("elapsed time (seconds)");
+        graph.setYAxisTitle(JvmMetrics.getUnit(set));
+        Dimension size = new Dimension(800, 600);
+        graph.setWidth(size.width);
+        graph.setHeight(size.height);
+        graphPanel.setGraph(graph);
+        graphPanel.setMaximumSize(size);
+        graphPanel.setPreferredSize(size);
+        return graphPanel;
+    }
+
     public void add(SampleResult res) {
-        if (res instanceof JmxSampleResult) {
+        if (res instanceof JmxSampleResult && res.isSuccessful()) {
             log.warn("INVOKED: " + res);
             JmxSampleResult result = (JmxSampleResult) res;
             String uri = result.getJmxUri();
@@ -105,6 +126,18 @@ public class JmxVisualizer extends AbstractVisualizer implements SaveGraphListen
             graph.setXAxisScalingFactor(1000);
             graph.putRawData(result.getStartTime(), result.getValue());
             renderChart(uri, graphPanel);
+            for (Entry<String, Map<String, Long>> set : result.getMetrics().entrySet()) {
+                String key = uri + " " + set.getKey();
+                JmxGraphPanel metricsPanel = graphTable.get(key);
+                if (metricsPanel == null) {
+                    metricsPanel = addMetricsGraph(set.getKey(), uri);
+                    graphTable.put(key, metricsPanel);
+                }
+                MetricsChartWrapper metricsGraph = (MetricsChartWrapper) metricsPanel.getGraph();
+                metricsGraph.setXAxisScalingFactor(1000);
+                metricsGraph.putFigures(result.getStartTime(), set.getValue());
+                renderChart(key, metricsPanel);
+            }
         }
     }
 
@@ -0,0 +1,85 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.gui;
+
+import java.awt.Color;
+import java.awt.Paint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jCharts.types.ChartType;
+
+import smartrics.jmeter.sampler.jmx.JvmMetrics;
+
+/**
+ * Charts a set of JVM figures over time, one line per figure, as sampled by
+ * the JmxSampler, see {@link JvmMetrics}. Figures can come and go, as memory
+ * pools or collectors do; a figure missing from a sample counts as 0.
+ */
+public class MetricsChartWrapper extends ChartWrapper {
+
+    private final static Color[] colours = new Color[] { Color.ORANGE, Color.BLUE, Color.RED, Color.GREEN, Color.MAGENTA, Color.CYAN,
+            Color.BLACK, Color.PINK, Color.GRAY, Color.YELLOW };
+
+    private final Map<Long, Map<String, Long>> figures = new TreeMap<Long, Map<String, Long>>();
+
+    private final List<String> names = new ArrayList<String>();
+
+    public MetricsChartWrapper() {
+        setShowAverage(false);
+        setYAxisLabels(new String[0]);
+    }
+
+    /**
+     * @param values
+     *            the figures of the set sampled at the given time, by name
+     */
+    public void putFigures(long timeStamp, Map<String, Long> values) {
+        long total = 0;
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            total += e.getValue();
+            if (!names.contains(e.getKey())) {
+                names.add(e.getKey());
+            }
+        }
+        putRawData(timeStamp, total);
+        figures.put(timeStamp, values);
+        setYAxisLabels(names.toArray(new String[names.size()]));
+    }
+
+    protected ChartType getChartType(int series) {
+        return ChartType.LINE;
+    }
+
+    protected Paint getPaint(int series) {
+        return colours[series % colours.length];
+    }
+
+    protected double[][] createDataset() {
+        double[][] dataset = new double[names.size()][figures.size()];
+        int idx = 0;
+        for (Map<String, Long> values : figures.values()) {
+            for (int n = 0; n < names.size(); n++) {
+                Long v = values.get(names.get(n));
+                dataset[n][idx] = v == null ? 0 : v.longValue();
+            }
+            idx++;
+        }
+        return dataset;
+    }
+}
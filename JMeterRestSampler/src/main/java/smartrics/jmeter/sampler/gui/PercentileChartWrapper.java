@@ -0,0 +1,58 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import smartrics.jmeter.sampler.stats.LatencyHistogram;
+
+/**
+ * Charts the latency distribution of a histogram: the value at each of a set
+ * of percentiles, denser towards the tail.
+ */
+public class PercentileChartWrapper extends ChartWrapper {
+
+    private static final double[] PERCENTILES = new double[] { 0, 10, 20, 30, 40, 50, 60, 70, 75, 80, 85, 90, 95, 97.5, 99, 99.5, 99.9, 99.95,
+            99.99, 99.999, 100 };
+
+    // percentiles are kept as keys in thousandths
+    private static final double KEY_SCALE = 1000;
+
+    public PercentileChartWrapper() {
+        setShowAverage(false);
+    }
+
+    /**
+     * Sets the histogram to chart, replacing any data previously set.
+     */
+    public void setHistogram(LatencyHistogram histogram) {
+        for (double p : PERCENTILES) {
+            putRawData(Long.valueOf(Math.round(p * KEY_SCALE)), Long.valueOf(histogram.getValueAtPercentile(p)));
+        }
+    }
+
+    protected String[] formattedKeys() {
+        List<String> fk = new ArrayList<String>();
+        for (double p : PERCENTILES) {
+            String label = Double.toString(p);
+            if (label.endsWith(".0")) {
+                label = label.substring(0, label.length() - 2);
+            }
+            fk.add(label);
+        }
+        return fk.toArray(new String[fk.size()]);
+    }
+}
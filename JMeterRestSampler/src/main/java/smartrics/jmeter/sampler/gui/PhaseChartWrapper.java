@@ -0,0 +1,67 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.gui;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jCharts.types.ChartType;
+
+import smartrics.jmeter.sampler.http.PhaseTimer;
+
+/**
+ * Charts the phases of the requests over time, one line per phase, as
+ * recorded by the RestSampler with {@link PhaseTimer}. A phase not gone
+ * through by a request counts as 0.
+ */
+public class PhaseChartWrapper extends ChartWrapper {
+
+    private final Map<Long, long[]> phases = new TreeMap<Long, long[]>();
+
+    public PhaseChartWrapper() {
+        setShowAverage(false);
+        setYAxisLabels(PhaseTimer.NAMES);
+    }
+
+    /**
+     * @param times
+     *            the milliseconds spent in each phase, indexed as in
+     *            {@link PhaseTimer}
+     */
+    public void putPhases(long timeStamp, long[] times) {
+        long total = 0;
+        for (long t : times) {
+            total += t;
+        }
+        putRawData(timeStamp, total);
+        phases.put(timeStamp, times);
+    }
+
+    protected ChartType getChartType(int series) {
+        return ChartType.LINE;
+    }
+
+    protected double[][] createDataset() {
+        double[][] dataset = new double[PhaseTimer.NAMES.length][phases.size()];
+        int idx = 0;
+        for (long[] times : phases.values()) {
+            for (int phase = 0; phase < times.length; phase++) {
+                dataset[phase][idx] = times[phase];
+            }
+            idx++;
+        }
+        return dataset;
+    }
+}
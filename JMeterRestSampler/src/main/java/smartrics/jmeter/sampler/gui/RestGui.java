@@ -35,6 +35,13 @@ import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
 import smartrics.jmeter.sampler.RestSampler;
+import smartrics.jmeter.sampler.http.ContentCoding;
+import smartrics.jmeter.sampler.http.DnsCache;
+import smartrics.jmeter.sampler.http.ResponseReader;
+import smartrics.jmeter.sampler.http.SharedConnectionPool;
+import smartrics.jmeter.sampler.http.TlsSessions;
+import smartrics.jmeter.sampler.stats.HistogramLog;
+import smartrics.jmeter.sampler.stats.LatencyHistogram;
 
 /**
  * Frontend to the REST sampler.
@@ -47,12 +54,37 @@ public class RestGui extends AbstractSamplerGui {
     private JCheckBox useKeepAlive;
     private JCheckBox automaticRedirect;
     private JLabeledTextArea body;
+    private JLabeledTextField bodyFile;
     private JLabeledTextArea headers;
     private JLabeledTextField hostBaseUrl;
     private JLabeledTextField resource;
     private JLabeledTextField encoding;
     private JLabeledTextField queryString;
     private JLabeledChoice httpMethods;
+    private JLabeledChoice requestCoding;
+    private JLabeledChoice responseRetention;
+    private JLabeledTextField responseMaxBytes;
+    private JCheckBox leanResults;
+    private JCheckBox measureAllocation;
+    private JLabeledTextArea assertions;
+    private JLabeledTextField histogramFile;
+    private JLabeledTextField histogramDigits;
+    private JCheckBox recordPhases;
+    private JLabeledTextField asyncInFlight;
+    private JLabeledTextField asyncTimeout;
+    private JLabeledTextField virtualUsers;
+    private JCheckBox useHttp2;
+    private JLabeledTextField http2Streams;
+    private JLabeledTextField http2Connections;
+    private JLabeledTextField pipelineRequests;
+    private JLabeledTextField pipelineWindow;
+    private JLabeledChoice dnsSelection;
+    private JLabeledTextField dnsTtl;
+    private JLabeledChoice tlsSessions;
+    private JCheckBox useConnectionPool;
+    private JLabeledTextField poolMaxTotal;
+    private JLabeledTextField poolMaxPerHost;
+    private JLabeledTextField poolIdleTimeout;
 
     public RestGui() {
     	log.debug("Initialised RestGui");
@@ -92,6 +124,31 @@ public class RestGui extends AbstractSamplerGui {
         this.useKeepAlive.setSelected(true);
         this.automaticRedirect.setSelected(true);
         this.body.setText("");
+        this.bodyFile.setText("");
+        this.requestCoding.setText(ContentCoding.IDENTITY);
+        this.responseRetention.setText(ResponseReader.FULL);
+        this.responseMaxBytes.setText("1024");
+        this.leanResults.setSelected(false);
+        this.measureAllocation.setSelected(false);
+        this.assertions.setText("");
+        this.histogramFile.setText("");
+        this.histogramDigits.setText(Integer.toString(LatencyHistogram.DEFAULT_SIGNIFICANT_DIGITS));
+        this.recordPhases.setSelected(false);
+        this.asyncInFlight.setText("1");
+        this.asyncTimeout.setText(Long.toString(RestSampler.DEFAULT_ASYNC_TIMEOUT));
+        this.virtualUsers.setText("1");
+        this.useHttp2.setSelected(false);
+        this.http2Streams.setText("1");
+        this.http2Connections.setText("1");
+        this.pipelineRequests.setText("1");
+        this.pipelineWindow.setText("0");
+        this.dnsSelection.setText(DnsCache.JVM);
+        this.dnsTtl.setText(Long.toString(DnsCache.DEFAULT_TTL));
+        this.tlsSessions.setText(TlsSessions.JMETER);
+        this.useConnectionPool.setSelected(false);
+        this.poolMaxTotal.setText(Integer.toString(SharedConnectionPool.DEFAULT_MAX_TOTAL));
+        this.poolMaxPerHost.setText(Integer.toString(SharedConnectionPool.DEFAULT_MAX_PER_HOST));
+        this.poolIdleTimeout.setText(Long.toString(SharedConnectionPool.DEFAULT_IDLE_TIMEOUT));
     }
 
     /**
@@ -104,6 +161,7 @@ public class RestGui extends AbstractSamplerGui {
         if (s instanceof RestSampler) {
             RestSampler sampler = (RestSampler) s;
             sampler.setRequestBody(body.getText());
+            sampler.setRequestBodyFile(bodyFile.getText());
             sampler.setMethod(httpMethods.getText());
             sampler.setUseKeepAlive(useKeepAlive.isSelected());
             sampler.setAutoRedirects(automaticRedirect.isSelected());
@@ -112,6 +170,30 @@ public class RestGui extends AbstractSamplerGui {
             sampler.setContentEncoding(encoding.getText());
             sampler.setQueryString(queryString.getText());
             sampler.setRequestHeaders(headers.getText());
+            sampler.setRequestCoding(requestCoding.getText());
+            sampler.setResponseRetention(responseRetention.getText());
+            sampler.setResponseMaxBytes(toInt(responseMaxBytes.getText()));
+            sampler.setLeanResults(leanResults.isSelected());
+            sampler.setMeasureAllocation(measureAllocation.isSelected());
+            sampler.setAssertions(assertions.getText());
+            sampler.setHistogramFile(histogramFile.getText());
+            sampler.setHistogramDigits(toInt(histogramDigits.getText()));
+            sampler.setRecordPhases(recordPhases.isSelected());
+            sampler.setAsyncInFlight(toInt(asyncInFlight.getText()));
+            sampler.setAsyncTimeout(toInt(asyncTimeout.getText()));
+            sampler.setVirtualUsers(toInt(virtualUsers.getText()));
+            sampler.setUseHttp2(useHttp2.isSelected());
+            sampler.setHttp2Streams(toInt(http2Streams.getText()));
+            sampler.setHttp2Connections(toInt(http2Connections.getText()));
+            sampler.setPipelineRequests(toInt(pipelineRequests.getText()));
+            sampler.setPipelineWindow(toInt(pipelineWindow.getText()));
+            sampler.setDnsSelection(dnsSelection.getText());
+            sampler.setDnsTtl(toInt(dnsTtl.getText()));
+            sampler.setTlsSessions(tlsSessions.getText());
+            sampler.setUseConnectionPool(useConnectionPool.isSelected());
+            sampler.setPoolMaxTotal(toInt(poolMaxTotal.getText()));
+            sampler.setPoolMaxPerHost(toInt(poolMaxPerHost.getText()));
+            sampler.setPoolIdleTimeout(toInt(poolIdleTimeout.getText()));
         }
     }
 
@@ -159,12 +241,108 @@ public class RestGui extends AbstractSamplerGui {
         return panel;
     }
 
+    private JPanel getResponsePanel() {
+        responseRetention = new JLabeledChoice("Keep response body", ResponseReader.MODES);
+        responseMaxBytes = new JLabeledTextField("Bytes kept when truncated", 6);
+        leanResults = new JCheckBox("Lean results (headers only if saved)");
+        measureAllocation = new JCheckBox("Measure bytes allocated per sample");
+        assertions = new JLabeledTextArea("Assertions checked while reading (status, header, contains, length, json, xpath; one per line)");
+        HorizontalPanel options = new HorizontalPanel();
+        options.add(responseRetention);
+        options.add(responseMaxBytes);
+        options.add(leanResults);
+        options.add(measureAllocation);
+        VerticalPanel panel = new VerticalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("Response"));
+        panel.add(options);
+        panel.add(assertions);
+        return panel;
+    }
+
+    private JPanel getHistogramPanel() {
+        histogramFile = new JLabeledTextField("Write to file (" + HistogramLog.EXTENSION + ")", 30);
+        histogramDigits = new JLabeledTextField("Significant digits (1-5)", 2);
+        recordPhases = new JCheckBox("Record connection phases as sub results");
+        HorizontalPanel panel = new HorizontalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("Latency histograms and phases"));
+        panel.add(histogramFile);
+        panel.add(histogramDigits);
+        panel.add(recordPhases);
+        return panel;
+    }
+
+    private JPanel getAsyncPanel() {
+        asyncInFlight = new JLabeledTextField("Non blocking requests in flight (http only)", 4);
+        virtualUsers = new JLabeledTextField("Virtual users", 6);
+        asyncTimeout = new JLabeledTextField("Timeout (ms)", 6);
+        HorizontalPanel panel = new HorizontalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("Concurrent requests per sample"));
+        panel.add(asyncInFlight);
+        panel.add(virtualUsers);
+        panel.add(asyncTimeout);
+        return panel;
+    }
+
+    private JPanel getDnsPanel() {
+        dnsSelection = new JLabeledChoice("Address selection", DnsCache.SELECTIONS);
+        dnsTtl = new JLabeledTextField("Cache TTL (ms)", 6);
+        tlsSessions = new JLabeledChoice("TLS sessions", TlsSessions.MODES);
+        HorizontalPanel panel = new HorizontalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("Name resolution and TLS"));
+        panel.add(dnsSelection);
+        panel.add(dnsTtl);
+        panel.add(tlsSessions);
+        return panel;
+    }
+
+    private JPanel getHttp2Panel() {
+        useHttp2 = new JCheckBox("Use HTTP/2 (h2c, prior knowledge)");
+        http2Streams = new JLabeledTextField("Streams per connection", 4);
+        http2Connections = new JLabeledTextField("Connections per host", 4);
+        HorizontalPanel panel = new HorizontalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("HTTP/2"));
+        panel.add(useHttp2);
+        panel.add(http2Streams);
+        panel.add(http2Connections);
+        return panel;
+    }
+
+    private JPanel getPipelinePanel() {
+        pipelineRequests = new JLabeledTextField("Requests per connection", 4);
+        pipelineWindow = new JLabeledTextField("Window (0 = all pipelined)", 4);
+        HorizontalPanel panel = new HorizontalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("HTTP/1.1 pipelining"));
+        panel.add(pipelineRequests);
+        panel.add(pipelineWindow);
+        return panel;
+    }
+
+    private JPanel getConnectionPoolPanel() {
+        useConnectionPool = new JCheckBox("Use shared connection pool");
+        poolMaxTotal = new JLabeledTextField("Max connections", 5);
+        poolMaxPerHost = new JLabeledTextField("Max per host", 5);
+        poolIdleTimeout = new JLabeledTextField("Idle timeout (ms)", 6);
+        HorizontalPanel panel = new HorizontalPanel();
+        panel.setBorder(BorderFactory.createTitledBorder("Connection pool"));
+        panel.add(useConnectionPool);
+        panel.add(poolMaxTotal);
+        panel.add(poolMaxPerHost);
+        panel.add(poolIdleTimeout);
+        return panel;
+    }
+
     private JPanel getRequestPanel() {
         body = new JLabeledTextArea("Body"); //$NON-NLS-1$
         headers = new JLabeledTextArea("Headers"); //$NON-NLS-1$
+        bodyFile = new JLabeledTextField("Body file (overrides Body)", 40); //$NON-NLS-1$
+        requestCoding = new JLabeledChoice("Body coding", ContentCoding.REQUEST_CODINGS);
+        HorizontalPanel filePanel = new HorizontalPanel();
+        filePanel.add(bodyFile);
+        filePanel.add(requestCoding);
         VerticalPanel panel = new VerticalPanel();
         panel.add(headers, BorderLayout.NORTH);
         panel.add(body, BorderLayout.CENTER);
+        panel.add(filePanel, BorderLayout.SOUTH);
         return panel;
     }
 
@@ -175,6 +353,13 @@ public class RestGui extends AbstractSamplerGui {
         VerticalPanel panel = new VerticalPanel();
         panel.setBorder(BorderFactory.createEtchedBorder());
         panel.add(getResourceConfigPanel(), BorderLayout.NORTH);
+        panel.add(getDnsPanel());
+        panel.add(getConnectionPoolPanel());
+        panel.add(getAsyncPanel());
+        panel.add(getHttp2Panel());
+        panel.add(getPipelinePanel());
+        panel.add(getResponsePanel());
+        panel.add(getHistogramPanel());
         panel.add(getRequestPanel(), BorderLayout.CENTER);
         add(panel, BorderLayout.CENTER);
     }
@@ -184,6 +369,7 @@ public class RestGui extends AbstractSamplerGui {
         super.configure(el);
         RestSampler sampler = (RestSampler) el;
         body.setText(sampler.getRequestBody());
+        bodyFile.setText(sampler.getRequestBodyFile());
         headers.setText(sampler.getRequestHeaders());
         useKeepAlive.setSelected(sampler.getUseKeepAlive());
         automaticRedirect.setSelected(sampler.getAutoRedirects());
@@ -192,6 +378,38 @@ public class RestGui extends AbstractSamplerGui {
         queryString.setText(sampler.getQueryString());
         encoding.setText(sampler.getContentEncoding());
         hostBaseUrl.setText(sampler.getHostBaseUrl());
+        requestCoding.setText(sampler.getRequestCoding());
+        responseRetention.setText(sampler.getResponseRetention());
+        responseMaxBytes.setText(Integer.toString(sampler.getResponseMaxBytes()));
+        leanResults.setSelected(sampler.getLeanResults());
+        measureAllocation.setSelected(sampler.getMeasureAllocation());
+        assertions.setText(sampler.getAssertions());
+        histogramFile.setText(sampler.getHistogramFile());
+        histogramDigits.setText(Integer.toString(sampler.getHistogramDigits()));
+        recordPhases.setSelected(sampler.getRecordPhases());
+        asyncInFlight.setText(Integer.toString(sampler.getAsyncInFlight()));
+        asyncTimeout.setText(Long.toString(sampler.getAsyncTimeout()));
+        virtualUsers.setText(Integer.toString(sampler.getVirtualUsers()));
+        useHttp2.setSelected(sampler.getUseHttp2());
+        http2Streams.setText(Integer.toString(sampler.getHttp2Streams()));
+        http2Connections.setText(Integer.toString(sampler.getHttp2Connections()));
+        pipelineRequests.setText(Integer.toString(sampler.getPipelineRequests()));
+        pipelineWindow.setText(Integer.toString(sampler.getPipelineWindow()));
+        dnsSelection.setText(sampler.getDnsSelection());
+        dnsTtl.setText(Long.toString(sampler.getDnsTtl()));
+        tlsSessions.setText(sampler.getTlsSessions());
+        useConnectionPool.setSelected(sampler.getUseConnectionPool());
+        poolMaxTotal.setText(Integer.toString(sampler.getPoolMaxTotal()));
+        poolMaxPerHost.setText(Integer.toString(sampler.getPoolMaxPerHost()));
+        poolIdleTimeout.setText(Long.toString(sampler.getPoolIdleTimeout()));
+    }
+
+    private int toInt(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     public Dimension getPreferredSize() {
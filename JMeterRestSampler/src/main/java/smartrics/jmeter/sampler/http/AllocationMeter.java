@@ -0,0 +1,154 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.http;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Measures the bytes allocated by the calling thread while sampling, to tell
+ * how much garbage each sample leaves to the collector.
+ *
+ * The figure comes from the HotSpot extension of the thread MX bean
+ * (<code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes</code>),
+ * called reflectively as it is not part of the standard API. On JVMs
+ * without it nothing is measured. The few bytes allocated by the reflective
+ * call itself are measured once and taken off each figure.
+ *
+ * A meter accumulates the figures of the samples of one thread; it is not
+ * thread safe. Work handed to other threads is not measured.
+ */
+public final class AllocationMeter {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    private static final Method allocatedBytes = findMethod();
+
+    private static final long overhead = calibrate();
+
+    private long start = -1;
+    private long total;
+    private long samples;
+    private long max;
+
+    private static Method findMethod() {
+        try {
+            Class<?> extension = Class.forName("com.sun.management.ThreadMXBean");
+            if (!extension.isInstance(bean)) {
+                log.warn("thread allocated memory measurement not supported by this JVM");
+                return null;
+            }
+            Method m = extension.getMethod("getThreadAllocatedBytes", long.class);
+            Method enabled = extension.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!((Boolean) enabled.invoke(bean)).booleanValue()) {
+                log.warn("thread allocated memory measurement disabled in this JVM");
+                return null;
+            }
+            return m;
+        } catch (ClassNotFoundException e) {
+            log.warn("thread allocated memory measurement not supported by this JVM");
+            return null;
+        } catch (NoSuchMethodException e) {
+            log.warn("thread allocated memory measurement not supported by this JVM");
+            return null;
+        } catch (Exception e) {
+            log.warn("unable to measure thread allocated memory: " + e);
+            return null;
+        }
+    }
+
+    private static long calibrate() {
+        if (allocatedBytes == null) {
+            return 0;
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long first = current();
+            long second = current();
+            min = Math.min(min, second - first);
+        }
+        return Math.max(min, 0);
+    }
+
+    private static long current() {
+        try {
+            Long bytes = (Long) allocatedBytes.invoke(bean, new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+            return bytes.longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the JVM measures the bytes allocated by threads
+     */
+    public static boolean isSupported() {
+        return allocatedBytes != null;
+    }
+
+    /**
+     * Starts measuring a sample on the calling thread.
+     */
+    public void start() {
+        start = isSupported() ? current() : -1;
+    }
+
+    /**
+     * Ends measuring the sample started on the calling thread.
+     *
+     * @return the bytes allocated since {@link #start()}, -1 if not measured
+     */
+    public long stop() {
+        if (start < 0) {
+            return -1;
+        }
+        long end = current();
+        long bytes = end < 0 ? -1 : Math.max(end - start - overhead, 0);
+        start = -1;
+        if (bytes >= 0) {
+            total += bytes;
+            samples++;
+            max = Math.max(max, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of samples measured
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the mean bytes allocated per sample, 0 if none was measured
+     */
+    public long getMean() {
+        return samples == 0 ? 0 : total / samples;
+    }
+
+    /**
+     * @return the most bytes allocated by a sample
+     */
+    public long getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,398 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A non blocking HTTP/1.1 transport.
+ *
+ * A single selector thread, shared by the whole test, performs the I/O of all
+ * the requests submitted by the sampling threads. A sampling thread can
+ * therefore keep many requests in flight and only waits for them to complete.
+ * Connections are kept alive and reused across requests to the same address.
+ *
+ * Only plain HTTP is supported.
+ */
+public final class AsyncHttpEngine implements Runnable {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final long SELECT_TIMEOUT = 100;
+
+    private static AsyncHttpEngine instance;
+
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+
+    // only accessed by the selector thread
+    private final Map<InetSocketAddress, LinkedList<SocketChannel>> idle = new HashMap<InetSocketAddress, LinkedList<SocketChannel>>();
+    private final Set<Exchange> active = new HashSet<Exchange>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private long lastExpiryCheck;
+
+    /**
+     * A request in flight and, once complete, its response and timings. The
+     * fields are written by the selector thread and must only be read after
+     * the latch passed at submission has been released.
+     */
+    public static final class Exchange {
+        private final RawHttpRequest request;
+        private final RawHttpResponse response;
+        private final CountDownLatch latch;
+        private final long deadline;
+        private final long startTime;
+        private long connectTime;
+        private long firstByteTime;
+        private long endTime;
+        private boolean reused;
+        private boolean retried;
+        private IOException error;
+        private ByteBuffer[] out;
+        private SocketChannel channel;
+
+        private Exchange(RawHttpRequest request, RawHttpResponse response, CountDownLatch latch, long timeout) {
+            this.request = request;
+            this.response = response;
+            this.latch = latch;
+            this.startTime = System.currentTimeMillis();
+            this.deadline = startTime + timeout;
+        }
+
+        public RawHttpRequest getRequest() {
+            return request;
+        }
+
+        public RawHttpResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * @return the time the request has been submitted
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the time the connection was established, 0 if an already
+         *         open connection was used
+         */
+        public long getConnectTime() {
+            return connectTime;
+        }
+
+        /**
+         * @return the time the first byte of the response was received, 0 if
+         *         none was
+         */
+        public long getFirstByteTime() {
+            return firstByteTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return true if the request was sent on a kept alive connection
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * @return the failure, or null if a complete response was received
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    private AsyncHttpEngine() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "RestSampler-nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the engine for this test, starting it if necessary.
+     */
+    public static synchronized AsyncHttpEngine getInstance() throws IOException {
+        if (instance == null) {
+            instance = new AsyncHttpEngine();
+            log.info("started non blocking HTTP engine");
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the engine, closing all its connections.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.running = false;
+            instance.selector.wakeup();
+            try {
+                instance.thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            instance = null;
+            log.info("stopped non blocking HTTP engine");
+        }
+    }
+
+    /**
+     * Submits a request. The latch is counted down when the exchange
+     * completes, successfully or not.
+     *
+     * @param timeout
+     *            milliseconds after which the exchange fails if not complete
+     */
+    public Exchange submit(RawHttpRequest request, RawHttpResponse response, CountDownLatch latch, long timeout) {
+        Exchange ex = new Exchange(request, response, latch, timeout);
+        submitted.add(ex);
+        selector.wakeup();
+        return ex;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                Exchange ex;
+                while ((ex = submitted.poll()) != null) {
+                    start(ex);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                expire();
+            } catch (IOException e) {
+                log.error("Unexpected I/O error in the selector loop", e);
+            } catch (RuntimeException e) {
+                log.error("Unexpected error in the selector loop", e);
+            }
+        }
+        close();
+    }
+
+    private void start(Exchange ex) {
+        active.add(ex);
+        ex.out = ex.request.toBuffers();
+        try {
+            SocketChannel channel = takeIdle(ex.request.getAddress());
+            if (channel != null) {
+                ex.reused = true;
+                ex.channel = channel;
+                SelectionKey key = channel.keyFor(selector);
+                key.attach(ex);
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                ex.reused = false;
+                channel = SocketChannel.open();
+                ex.channel = channel;
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                boolean connected = channel.connect(ex.request.getAddress());
+                if (connected) {
+                    ex.connectTime = System.currentTimeMillis();
+                }
+                channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, ex);
+            }
+        } catch (IOException e) {
+            fail(ex, e);
+        }
+    }
+
+    private SocketChannel takeIdle(InetSocketAddress address) {
+        LinkedList<SocketChannel> channels = idle.get(address);
+        while (channels != null && !channels.isEmpty()) {
+            SocketChannel channel = channels.removeFirst();
+            if (channel.isOpen()) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    private void handle(SelectionKey key) {
+        Exchange ex = (Exchange) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (ex == null) {
+            // an idle connection became readable: closed by the server
+            discardIdle(channel);
+            return;
+        }
+        try {
+            if (!key.isValid()) {
+                throw new IOException("Connection closed");
+            }
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                ex.connectTime = System.currentTimeMillis();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                channel.write(ex.out);
+                if (!ex.out[ex.out.length - 1].hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    if (!retry(ex)) {
+                        ex.response.endOfStream();
+                        complete(ex, key, false);
+                    }
+                    return;
+                }
+                if (ex.firstByteTime == 0) {
+                    ex.firstByteTime = System.currentTimeMillis();
+                }
+                readBuffer.flip();
+                if (ex.response.feed(readBuffer)) {
+                    complete(ex, key, ex.response.isKeepAlive() && !readBuffer.hasRemaining());
+                }
+            }
+        } catch (IOException e) {
+            if (!retry(ex)) {
+                fail(ex, e);
+            }
+        }
+    }
+
+    /**
+     * A kept alive connection may have been closed by the server just before
+     * being reused: in that case the request is sent again, once, on a new
+     * connection.
+     */
+    private boolean retry(Exchange ex) {
+        if (!ex.reused || ex.retried || !ex.response.isEmpty()) {
+            return false;
+        }
+        log.debug("retrying on a new connection: " + ex.request.getUrl());
+        closeQuietly(ex.channel);
+        active.remove(ex);
+        ex.retried = true;
+        start(ex);
+        return true;
+    }
+
+    private void complete(Exchange ex, SelectionKey key, boolean reusable) {
+        ex.endTime = System.currentTimeMillis();
+        active.remove(ex);
+        if (reusable) {
+            key.attach(null);
+            key.interestOps(SelectionKey.OP_READ);
+            InetSocketAddress address = ex.request.getAddress();
+            LinkedList<SocketChannel> channels = idle.get(address);
+            if (channels == null) {
+                channels = new LinkedList<SocketChannel>();
+                idle.put(address, channels);
+            }
+            channels.addLast(ex.channel);
+        } else {
+            closeQuietly(ex.channel);
+        }
+        ex.channel = null;
+        ex.latch.countDown();
+    }
+
+    private void fail(Exchange ex, IOException e) {
+        ex.endTime = System.currentTimeMillis();
+        ex.error = e;
+        active.remove(ex);
+        closeQuietly(ex.channel);
+        ex.channel = null;
+        ex.latch.countDown();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        if (now - lastExpiryCheck < SELECT_TIMEOUT) {
+            return;
+        }
+        lastExpiryCheck = now;
+        for (Exchange ex : new ArrayList<Exchange>(active)) {
+            if (now > ex.deadline) {
+                fail(ex, new SocketTimeoutException("No response within " + (ex.deadline - ex.startTime) + "ms"));
+            }
+        }
+    }
+
+    private void discardIdle(SocketChannel channel) {
+        for (LinkedList<SocketChannel> channels : idle.values()) {
+            channels.remove(channel);
+        }
+        closeQuietly(channel);
+    }
+
+    private void close() {
+        for (Exchange ex : new ArrayList<Exchange>(active)) {
+            fail(ex, new IOException("Engine shut down"));
+        }
+        Exchange ex;
+        while ((ex = submitted.poll()) != null) {
+            fail(ex, new IOException("Engine shut down"));
+        }
+        for (LinkedList<SocketChannel> channels : idle.values()) {
+            for (SocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+        }
+        idle.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the selector", e);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A request body with JMeter variables and functions, compiled once into
+ * literal segments already encoded in the charset of the body and slots,
+ * see {@link Template}.
+ *
+ * Rendering only evaluates and encodes the slots: the body is the sequence
+ * of the encoded segments and slot values, written one after the other to
+ * the connection, so that its cost depends on the size of the values and not
+ * on the size of the body.
+ */
+public final class BodyTemplate {
+
+    private final Template template;
+    private final String charset;
+    private final byte[][] literals;
+
+    private BodyTemplate(Template template, String charset) throws UnsupportedEncodingException {
+        this.template = template;
+        this.charset = charset;
+        this.literals = new byte[template.getSlotCount() + 1][];
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = template.getLiteral(i).getBytes(charset);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the charset is not supported
+     */
+    public static BodyTemplate compile(String text, String charset) {
+        try {
+            return new BodyTemplate(Template.compile(text), charset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Unsupported encoding: " + charset);
+        }
+    }
+
+    /**
+     * @return true if this template has been compiled from the given text and
+     *         charset
+     */
+    public boolean isCompiledFrom(String text, String charset) {
+        return template.getSource().equals(text == null ? "" : text) && this.charset.equals(charset);
+    }
+
+    /**
+     * @return the parts of the body, in order: the literal segments, shared
+     *         and not to be changed, and the encoded values of the slots
+     */
+    public byte[][] render() {
+        int slots = template.getSlotCount();
+        byte[][] parts = new byte[2 * slots + 1][];
+        try {
+            for (int i = 0; i < slots; i++) {
+                parts[2 * i] = literals[i];
+                parts[2 * i + 1] = template.evaluate(i).getBytes(charset);
+            }
+        } catch (UnsupportedEncodingException e) {
+            // checked at compile time
+            throw new IllegalArgumentException("Unsupported encoding: " + charset);
+        }
+        parts[2 * slots] = literals[slots];
+        return parts;
+    }
+}
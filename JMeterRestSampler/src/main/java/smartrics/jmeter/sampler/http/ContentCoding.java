@@ -0,0 +1,511 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The gzip and deflate content codings of HTTP.
+ *
+ * Bodies are decoded as they are received, see
+ * {@link ResponseReader.Sink#decode(String)}, and encoded a piece at a time,
+ * see {@link #encode(ByteBuffer[], String)}. The zlib and gzip framings are
+ * handled here, so that the inflaters and deflaters, whose native memory is costly
+ * to allocate and only released by the finalizer, are raw ones reused from a
+ * body to the next. They are kept, with their buffers, in small lock-free
+ * pools shared by all the threads rather than per thread, as the virtual
+ * users run each request on a thread of its own; those not pooled are ended
+ * straight away.
+ */
+public final class ContentCoding {
+
+    public static final String IDENTITY = "identity";
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * The codings a request body can be sent with.
+     */
+    public static final String[] REQUEST_CODINGS = new String[] { IDENTITY, GZIP, DEFLATE };
+
+    private static final int MAX_POOLED = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final int MAX_HEADER = 64 * 1024;
+
+    private static final int MAX_INITIAL_SIZE = 1024 * 1024;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final Pool<Inflater> inflaters = new Pool<Inflater>();
+
+    private static final Pool<Deflater> deflaters = new Pool<Deflater>();
+
+    private static final Pool<byte[]> buffers = new Pool<byte[]>();
+
+    /**
+     * A bounded lock-free pool.
+     */
+    private static final class Pool<T> {
+        private final ConcurrentLinkedQueue<T> items = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * @return an item, null if the pool is empty
+         */
+        T poll() {
+            T item = items.poll();
+            if (item != null) {
+                size.decrementAndGet();
+            }
+            return item;
+        }
+
+        /**
+         * @return false if the pool is full and the item was not taken
+         */
+        boolean offer(T item) {
+            if (size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                return false;
+            }
+            items.offer(item);
+            return true;
+        }
+    }
+
+    private ContentCoding() {
+    }
+
+    /**
+     * @return the coding named by a Content-Encoding value, lower case and
+     *         with x-gzip as gzip; null for identity or no value, and for
+     *         more than one coding applied
+     */
+    public static String parse(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        String coding = null;
+        for (String value : contentEncoding.split(",")) {
+            int semicolon = value.indexOf(';');
+            if (semicolon >= 0) {
+                value = value.substring(0, semicolon);
+            }
+            value = value.trim().toLowerCase();
+            if (value.length() == 0 || IDENTITY.equals(value)) {
+                continue;
+            }
+            if (coding != null) {
+                return null;
+            }
+            coding = "x-gzip".equals(value) ? GZIP : value;
+        }
+        return coding;
+    }
+
+    /**
+     * @return true if a body with the Content-Encoding given is decoded
+     */
+    public static boolean isSupported(String contentEncoding) {
+        String coding = parse(contentEncoding);
+        return GZIP.equals(coding) || DEFLATE.equals(coding);
+    }
+
+    /**
+     * Compresses a body.
+     *
+     * @param coding
+     *            gzip or deflate; identity returns the data as given
+     * @throws IllegalArgumentException
+     *             if the coding is not supported
+     */
+    public static byte[] encode(byte[] data, String coding) {
+        if (parse(coding) == null) {
+            return data;
+        }
+        return encode(new ByteBuffer[] { ByteBuffer.wrap(data) }, coding);
+    }
+
+    /**
+     * Compresses a body held in buffers, as the regions of a file, a piece at
+     * a time so that only the compressed body is held in memory; it has to
+     * fit in an array. The buffers are read from their position to their
+     * limit.
+     *
+     * @param coding
+     *            gzip or deflate
+     * @throws IllegalArgumentException
+     *             if the coding is not supported
+     */
+    public static byte[] encode(ByteBuffer[] data, String coding) {
+        String c = parse(coding);
+        boolean gzip = GZIP.equals(c);
+        if (!gzip && !DEFLATE.equals(c)) {
+            throw new IllegalArgumentException("Unsupported content coding: " + coding);
+        }
+        long length = 0;
+        for (ByteBuffer b : data) {
+            length += b.remaining();
+        }
+        Checksum checksum = gzip ? (Checksum) new CRC32() : new Adler32();
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length / 2 + 32, MAX_INITIAL_SIZE));
+        if (gzip) {
+            out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff }, 0, 10);
+        } else {
+            out.write(0x78);
+            out.write(0x9c);
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        byte[] buffer = acquireBuffer();
+        byte[] chunk = null;
+        try {
+            for (ByteBuffer b : data) {
+                while (b.hasRemaining()) {
+                    int n;
+                    if (b.hasArray()) {
+                        n = b.remaining();
+                        int off = b.arrayOffset() + b.position();
+                        checksum.update(b.array(), off, n);
+                        deflater.setInput(b.array(), off, n);
+                    } else {
+                        if (chunk == null) {
+                            chunk = acquireBuffer();
+                        }
+                        n = Math.min(chunk.length, b.remaining());
+                        b.get(chunk, 0, n);
+                        checksum.update(chunk, 0, n);
+                        deflater.setInput(chunk, 0, n);
+                    }
+                    while (!deflater.needsInput()) {
+                        out.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                    if (b.hasArray()) {
+                        b.position(b.position() + n);
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+            buffers.offer(buffer);
+            if (chunk != null) {
+                buffers.offer(chunk);
+            }
+        }
+        long value = checksum.getValue();
+        if (gzip) {
+            writeInt(out, value, false);
+            // the size modulo 2^32, as gzip has it
+            writeInt(out, length, false);
+        } else {
+            writeInt(out, value, true);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value, boolean bigEndian) {
+        for (int i = 0; i < 4; i++) {
+            int shift = bigEndian ? 24 - 8 * i : 8 * i;
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    /**
+     * @return a decoder of bodies with the Content-Encoding given, null if
+     *         the body is not encoded or the coding not supported
+     */
+    static Decoder decoder(String contentEncoding) {
+        String coding = parse(contentEncoding);
+        if (GZIP.equals(coding)) {
+            return new Decoder(true);
+        }
+        if (DEFLATE.equals(coding)) {
+            return new Decoder(false);
+        }
+        return null;
+    }
+
+    private static Inflater acquire() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private static void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Decodes a body pushed to it in pieces, writing the decoded bytes to a
+     * sink. The inflater and its buffer are taken from the pools when a
+     * body, or a gzip member, starts and given back as soon as its end is
+     * reached, or by {@link #finish()}; gzip bodies made of many members are
+     * supported.
+     */
+    static final class Decoder {
+        private static final int HEADER = 0;
+        private static final int BODY = 1;
+        private static final int TRAILER = 2;
+        private static final int DONE = 3;
+
+        private final boolean gzip;
+        private final Checksum checksum;
+        private boolean raw;
+        private int members;
+        private int state = HEADER;
+        private byte[] pending = new byte[16];
+        private int pendingLength;
+        private Inflater inflater;
+        private byte[] buffer;
+        private long size;
+
+        private Decoder(boolean gzip) {
+            this.gzip = gzip;
+            this.checksum = gzip ? (Checksum) new CRC32() : new Adler32();
+        }
+
+        void decode(byte[] b, int off, int len, ResponseReader.Sink sink) throws IOException {
+            int end = off + len;
+            try {
+                while (off < end && state != DONE) {
+                    if (state == HEADER) {
+                        off = header(b, off, end, sink);
+                    } else if (state == BODY) {
+                        off = inflate(b, off, end, sink);
+                    } else {
+                        off = trailer(b, off, end);
+                    }
+                }
+            } catch (IOException e) {
+                // the rest of the body will not be decoded
+                finish();
+                state = DONE;
+                throw e;
+            }
+        }
+
+        /**
+         * Gives back the inflater of a body whose end was not received.
+         */
+        void finish() {
+            if (inflater != null) {
+                releaseInflater();
+            }
+        }
+
+        private void releaseInflater() {
+            release(inflater);
+            buffers.offer(buffer);
+            inflater = null;
+            buffer = null;
+        }
+
+        private int header(byte[] b, int off, int end, ResponseReader.Sink sink) throws IOException {
+            int start = pendingLength;
+            int n = Math.min(end - off, 256);
+            append(b, off, n);
+            int length = gzip ? gzipHeaderLength() : zlibHeaderLength();
+            if (length == -2) {
+                // trailing garbage after the last gzip member, ignored
+                state = DONE;
+                return end;
+            }
+            if (length < 0) {
+                if (pendingLength > MAX_HEADER) {
+                    throw new ZipException("Content coding header too long");
+                }
+                return off + n;
+            }
+            byte[] held = null;
+            if (length < start) {
+                held = new byte[start - length];
+                System.arraycopy(pending, length, held, 0, held.length);
+            }
+            pendingLength = 0;
+            checksum.reset();
+            size = 0;
+            inflater = acquire();
+            buffer = acquireBuffer();
+            state = BODY;
+            if (held != null) {
+                // bytes of a previous piece turned out not to be header
+                inflate(held, 0, held.length, sink);
+                return off;
+            }
+            // the bytes appended past the header are given to the inflater
+            return off + length - start;
+        }
+
+        private int gzipHeaderLength() throws IOException {
+            if (pendingLength < 10) {
+                return members > 0 && pendingLength > 0 && pending[0] != 0x1f ? -2 : -1;
+            }
+            if (((pending[0] & 0xff) | ((pending[1] & 0xff) << 8)) != GZIP_MAGIC || pending[2] != 8) {
+                if (members > 0) {
+                    return -2;
+                }
+                throw new ZipException("Not in gzip format");
+            }
+            int flags = pending[3] & 0xff;
+            int length = 10;
+            if ((flags & FEXTRA) != 0) {
+                if (pendingLength < length + 2) {
+                    return -1;
+                }
+                length += 2 + ((pending[length] & 0xff) | ((pending[length + 1] & 0xff) << 8));
+            }
+            if ((flags & FNAME) != 0) {
+                length = skipZeroTerminated(length);
+            }
+            if (length >= 0 && (flags & FCOMMENT) != 0) {
+                length = skipZeroTerminated(length);
+            }
+            if (length >= 0 && (flags & FHCRC) != 0) {
+                length += 2;
+            }
+            return length >= 0 && length <= pendingLength ? length : -1;
+        }
+
+        private int skipZeroTerminated(int from) {
+            for (int i = from; i < pendingLength; i++) {
+                if (pending[i] == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private int zlibHeaderLength() throws IOException {
+            if (pendingLength < 2) {
+                return -1;
+            }
+            int cmf = pending[0] & 0xff;
+            int flg = pending[1] & 0xff;
+            if ((cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0) {
+                // raw deflate, as sent by some servers
+                raw = true;
+                return 0;
+            }
+            if ((flg & 0x20) != 0) {
+                throw new ZipException("Preset dictionary not supported");
+            }
+            return 2;
+        }
+
+        private int inflate(byte[] b, int off, int end, ResponseReader.Sink sink) throws IOException {
+            inflater.setInput(b, off, end - off);
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n > 0) {
+                        checksum.update(buffer, 0, n);
+                        size += n;
+                        sink.store(buffer, 0, n);
+                    } else if (inflater.needsInput()) {
+                        return end;
+                    } else if (inflater.needsDictionary()) {
+                        throw new ZipException("Preset dictionary not supported");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            int remaining = inflater.getRemaining();
+            releaseInflater();
+            state = raw ? DONE : TRAILER;
+            return end - remaining;
+        }
+
+        private int trailer(byte[] b, int off, int end) throws IOException {
+            int length = gzip ? 8 : 4;
+            int n = Math.min(end - off, length - pendingLength);
+            append(b, off, n);
+            if (pendingLength < length) {
+                return end;
+            }
+            if (gzip) {
+                if (readInt(0, false) != checksum.getValue() || readInt(4, false) != (size & 0xffffffffL)) {
+                    throw new ZipException("Corrupt gzip trailer");
+                }
+                // another member may follow
+                members++;
+                state = HEADER;
+            } else {
+                if (readInt(0, true) != checksum.getValue()) {
+                    throw new ZipException("Corrupt deflate trailer");
+                }
+                state = DONE;
+            }
+            pendingLength = 0;
+            return off + n;
+        }
+
+        private long readInt(int at, boolean bigEndian) {
+            long value = 0;
+            for (int i = 0; i < 4; i++) {
+                int shift = bigEndian ? 24 - 8 * i : 8 * i;
+                value |= (long) (pending[at + i] & 0xff) << shift;
+            }
+            return value;
+        }
+
+        private void append(byte[] b, int off, int len) {
+            if (pendingLength + len > pending.length) {
+                byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + len)];
+                System.arraycopy(pending, 0, grown, 0, pendingLength);
+                pending = grown;
+            }
+            System.arraycopy(b, off, pending, pendingLength, len);
+            pendingLength += len;
+        }
+    }
+}
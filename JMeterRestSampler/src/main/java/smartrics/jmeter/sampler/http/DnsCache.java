@@ -0,0 +1,323 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Resolves host names for the RestSampler, caching all the addresses of a
+ * name for a fixed time and choosing one of them at each connection.
+ *
+ * <ul>
+ * <li>{@link #JVM}: no cache, names are resolved by the JVM, which usually
+ * returns the first address.</li>
+ * <li>{@link #ROUND_ROBIN}: the addresses are taken in turn.</li>
+ * <li>{@link #RANDOM}: an address is taken at random.</li>
+ * <li>{@link #STICKY}: each thread always takes the same address, threads
+ * being spread evenly over the addresses.</li>
+ * </ul>
+ * Only new connections resolve the name: requests on a kept alive connection
+ * go to the address it was opened to.
+ *
+ * There is a cache per time to live and selection, see
+ * {@link #forSettings(long, String)}, shared by the samplers configured alike;
+ * each sampler binds its own to the thread while sampling, see
+ * {@link #bind(DnsCache)}, the threads bound to none resolving names with the
+ * JVM.
+ *
+ * The addresses are refreshed through the JVM, which keeps them for the
+ * networkaddress.cache.ttl security property: creating a cache lowers it to
+ * the time to live of the cache, until {@link #clearAll()} restores it; but
+ * the JVM reads it only once, at its first resolution. To refresh names more
+ * often than the JVM would otherwise, set it in the java.security file or
+ * with -Dsun.net.inetaddr.ttl when starting JMeter.
+ *
+ * The last lookup of each thread is kept, so that the sampler can report the
+ * time it took and whether the cache answered it. Whoever resolves a name is
+ * expected to take the lookup.
+ */
+public final class DnsCache {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String JVM = "jvm";
+
+    public static final String ROUND_ROBIN = "round_robin";
+
+    public static final String RANDOM = "random";
+
+    public static final String STICKY = "sticky";
+
+    public static final String[] SELECTIONS = new String[] { JVM, ROUND_ROBIN, RANDOM, STICKY };
+
+    public static final long DEFAULT_TTL = 60000;
+
+    static final String JVM_TTL = "networkaddress.cache.ttl";
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ThreadLocal<Integer> threadSeed = new ThreadLocal<Integer>() {
+        protected Integer initialValue() {
+            return Integer.valueOf(threadCount.getAndIncrement());
+        }
+    };
+
+    private static final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private static final ThreadLocal<Lookup> lastLookup = new ThreadLocal<Lookup>();
+
+    private static final ThreadLocal<DnsCache> bound = new ThreadLocal<DnsCache>();
+
+    private static final ConcurrentMap<String, DnsCache> caches = new ConcurrentHashMap<String, DnsCache>();
+
+    // guarded by the class: the JVM ttl found before lowering it, if lowered
+    private static boolean jvmTtlLowered;
+    private static String originalJvmTtl;
+
+    private final long ttl;
+    private final String selection;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private DnsCache(long ttl, String selection) {
+        this.ttl = ttl;
+        this.selection = selection;
+    }
+
+    /**
+     * @return the cache with the given time to live and selection, created if
+     *         necessary; null if the selection is {@link #JVM}
+     */
+    public static DnsCache forSettings(long ttl, String selection) {
+        if (selection == null || JVM.equals(selection)) {
+            return null;
+        }
+        long t = ttl > 0 ? ttl : DEFAULT_TTL;
+        String key = selection + " " + t;
+        DnsCache cache = caches.get(key);
+        if (cache == null) {
+            DnsCache created = new DnsCache(t, selection);
+            cache = caches.putIfAbsent(key, created);
+            if (cache == null) {
+                cache = created;
+                log.info("resolving names with " + selection + " selection, ttl " + t + "ms");
+                limitJvmTtl(t);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Lowers the time the JVM keeps the addresses it resolves to the given
+     * one, if longer or unset. Effective only if the JVM has not resolved any
+     * name yet.
+     */
+    private static synchronized void limitJvmTtl(long ttl) {
+        long seconds = (ttl + 999) / 1000;
+        String current = Security.getProperty(JVM_TTL);
+        try {
+            if (current != null) {
+                long jvmTtl = Long.parseLong(current.trim());
+                if (jvmTtl >= 0 && jvmTtl <= seconds) {
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + JVM_TTL + ": " + current);
+        }
+        if (!jvmTtlLowered) {
+            jvmTtlLowered = true;
+            originalJvmTtl = current;
+        }
+        Security.setProperty(JVM_TTL, Long.toString(seconds));
+        log.info(JVM_TTL + " lowered from " + (current == null ? "the default" : current) + " to " + seconds
+                + "s; if the JVM already resolved names, addresses may be kept longer than the cache ttl");
+    }
+
+    /**
+     * Drops all the caches, at the end of the test, and restores the JVM ttl
+     * if lowered. The security properties cannot be unset: if it was unset,
+     * it is set to the value the JVM uses by default without a security
+     * manager, that of -Dsun.net.inetaddr.ttl or 30 seconds.
+     */
+    public static synchronized void clearAll() {
+        caches.clear();
+        if (jvmTtlLowered) {
+            String restored = originalJvmTtl != null ? originalJvmTtl : System.getProperty("sun.net.inetaddr.ttl", "30");
+            Security.setProperty(JVM_TTL, restored);
+            log.info(JVM_TTL + " restored to " + restored);
+            jvmTtlLowered = false;
+            originalJvmTtl = null;
+        }
+    }
+
+    /**
+     * Binds a cache to the current thread, for the names it resolves.
+     *
+     * @param cache
+     *            the cache, or null to resolve names with the JVM
+     */
+    public static void bind(DnsCache cache) {
+        if (cache == null) {
+            bound.remove();
+        } else {
+            bound.set(cache);
+        }
+    }
+
+    /**
+     * @return the cache bound to the current thread, or null if names are
+     *         resolved by the JVM
+     */
+    public static DnsCache getBound() {
+        return bound.get();
+    }
+
+    /**
+     * Resolves with the cache bound to the thread if any, else with the JVM.
+     * Either way the lookup is kept as the last of the thread.
+     */
+    public static InetAddress lookup(String host) throws UnknownHostException {
+        DnsCache cache = bound.get();
+        if (cache != null) {
+            return cache.resolve(host);
+        }
+        long start = System.currentTimeMillis();
+        InetAddress address = InetAddress.getByName(host);
+        lastLookup.set(new Lookup(host, address, false, start, System.currentTimeMillis()));
+        return address;
+    }
+
+    /**
+     * @return the last lookup of the current thread, forgetting it; null if
+     *         none since the last call
+     */
+    public static Lookup takeLookup() {
+        Lookup lookup = lastLookup.get();
+        if (lookup != null) {
+            lastLookup.remove();
+        }
+        return lookup;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public String getSelection() {
+        return selection;
+    }
+
+    /**
+     * @return one of the addresses of the host, chosen as configured
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        long start = System.currentTimeMillis();
+        Entry entry = entries.get(host);
+        boolean hit = entry != null && entry.expires > start;
+        if (!hit) {
+            // concurrent refreshes are harmless, the last one wins
+            entry = new Entry(InetAddress.getAllByName(host), start + ttl);
+            entries.put(host, entry);
+        }
+        InetAddress address = select(entry);
+        lastLookup.set(new Lookup(host, address, hit, start, System.currentTimeMillis()));
+        return address;
+    }
+
+    private InetAddress select(Entry entry) {
+        InetAddress[] addresses = entry.addresses;
+        if (addresses.length == 1) {
+            return addresses[0];
+        }
+        int index;
+        if (ROUND_ROBIN.equals(selection)) {
+            index = (entry.next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+        } else if (STICKY.equals(selection)) {
+            index = threadSeed.get().intValue() % addresses.length;
+        } else {
+            index = randoms.get().nextInt(addresses.length);
+        }
+        return addresses[index];
+    }
+
+    private static final class Entry {
+        private final InetAddress[] addresses;
+        private final long expires;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A resolution of a host name.
+     */
+    public static final class Lookup {
+        private final String host;
+        private final InetAddress address;
+        private final boolean cacheHit;
+        private final long startTime;
+        private final long endTime;
+
+        Lookup(String host, InetAddress address, boolean cacheHit, long startTime, long endTime) {
+            this.host = host;
+            this.address = address;
+            this.cacheHit = cacheHit;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return true if the address was taken from the cache
+         */
+        public boolean isCacheHit() {
+            return cacheHit;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        public long getTime() {
+            return endTime - startTime;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A request body read from a file.
+ *
+ * The file is memory mapped once and the mapping is shared by all the threads
+ * sending it: each write walks its own view of the mapping and copies it to
+ * the connection through a small pooled buffer, so the heap used does not
+ * depend on the size of the file. Files larger than what a single mapping can
+ * hold are mapped in consecutive regions.
+ *
+ * A file is mapped again if its size or modification time change.
+ */
+public final class FileBody {
+
+    private static final int REGION_SIZE = 1 << 30;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Map<String, FileBody> bodies = new ConcurrentHashMap<String, FileBody>();
+
+    // pooled rather than per thread: virtual threads would each allocate one
+    private static final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final MappedByteBuffer[] regions;
+
+    private FileBody(File file) throws IOException {
+        this.path = file.getPath();
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            int count = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+            regions = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long pos = (long) i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(REGION_SIZE, length - pos));
+            }
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the body for the file at the given path, mapping it only if not
+     * already mapped by another thread or if it changed since.
+     */
+    public static FileBody forFile(String fileName) throws IOException {
+        File file = new File(fileName).getCanonicalFile();
+        String key = file.getPath();
+        FileBody body = bodies.get(key);
+        if (body == null || !body.isCurrent(file)) {
+            synchronized (bodies) {
+                body = bodies.get(key);
+                if (body == null || !body.isCurrent(file)) {
+                    if (!file.isFile()) {
+                        throw new IOException("Body file not found: " + fileName);
+                    }
+                    body = new FileBody(file);
+                    bodies.put(key, body);
+                }
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Forgets all the mappings. They are released by the JVM once no longer
+     * used.
+     */
+    public static void releaseAll() {
+        bodies.clear();
+    }
+
+    private boolean isCurrent(File file) {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return independent views over the mapped regions of the file, for
+     *         gathering writes to a channel.
+     */
+    public ByteBuffer[] views() {
+        ByteBuffer[] views = new ByteBuffer[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            views[i] = regions[i].duplicate();
+            views[i].clear();
+        }
+        return views;
+    }
+
+    /**
+     * Writes the whole file to the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] chunk = chunks.poll();
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        try {
+            for (MappedByteBuffer region : regions) {
+                ByteBuffer view = region.duplicate();
+                view.clear();
+                while (view.hasRemaining()) {
+                    int n = Math.min(chunk.length, view.remaining());
+                    view.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+        } finally {
+            chunks.offer(chunk);
+        }
+    }
+}
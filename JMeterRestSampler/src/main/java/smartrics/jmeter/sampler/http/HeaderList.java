@@ -0,0 +1,179 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * An immutable list of request headers parsed from the text typed in the
+ * RestGui, one header per line in the form <code>name: value</code> or
+ * <code>name=value</code>.
+ *
+ * Lines are split on any line terminator, so that a plan saved on one
+ * platform runs on the others. Lines without JMeter variables or functions are
+ * parsed once. In lines with them the value is compiled in a {@link Template}
+ * evaluated every time the headers are applied; the whole line is when the
+ * name itself has variables, and is then parsed every time too.
+ */
+public final class HeaderList {
+
+    public static final HeaderList EMPTY = new HeaderList("", new ArrayList<Header>());
+
+    private final String source;
+    private final Header[] headers;
+
+    private static class Header {
+        private final String name;
+        private final String value;
+        private final Template expression;
+
+        Header(String name, String value) {
+            this.name = name;
+            this.value = value;
+            this.expression = null;
+        }
+
+        Header(String name, Template expression) {
+            this.name = name;
+            this.value = null;
+            this.expression = expression;
+        }
+
+        /**
+         * @return the header as name and value, null if the evaluated line
+         *         is not a header
+         */
+        String[] evaluate() {
+            if (expression == null) {
+                return new String[] { name, value };
+            }
+            if (name != null) {
+                return new String[] { name, expression.render().trim() };
+            }
+            return split(expression.render());
+        }
+    }
+
+    private HeaderList(String source, List<Header> headers) {
+        this.source = source;
+        this.headers = headers.toArray(new Header[headers.size()]);
+    }
+
+    /**
+     * Parses the headers in the given text.
+     */
+    public static HeaderList parse(String text) {
+        if (text == null || text.length() == 0) {
+            return EMPTY;
+        }
+        List<Header> headers = new ArrayList<Header>();
+        for (String line : text.split("\r\n|\r|\n")) {
+            int variable = line.indexOf("${");
+            if (variable >= 0) {
+                String[] kv = split(line);
+                if (kv != null && line.indexOf(kv[0]) + kv[0].length() < variable) {
+                    headers.add(new Header(kv[0], Template.compile(kv[1])));
+                } else {
+                    headers.add(new Header(null, Template.compile(line)));
+                }
+            } else {
+                String[] kv = split(line);
+                if (kv != null) {
+                    headers.add(new Header(kv[0], kv[1]));
+                }
+            }
+        }
+        return new HeaderList(text, headers);
+    }
+
+    /**
+     * @return the text these headers have been parsed from.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isEmpty() {
+        return headers.length == 0;
+    }
+
+    /**
+     * Adds the headers to the request, evaluating those with variables.
+     */
+    public void addTo(HttpMethod method) {
+        for (Header h : headers) {
+            if (h.expression == null) {
+                method.addRequestHeader(h.name, h.value);
+            } else {
+                String[] kv = h.evaluate();
+                if (kv != null) {
+                    method.addRequestHeader(kv[0], kv[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the headers as name/value pairs, evaluating those with
+     * variables.
+     */
+    public List<String[]> evaluate() {
+        List<String[]> list = new ArrayList<String[]>(headers.length);
+        for (Header h : headers) {
+            String[] kv = h.evaluate();
+            if (kv != null) {
+                list.add(kv);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the value of the first header with the given name, ignoring the
+     * case. Headers with variables are evaluated in order to be checked.
+     */
+    public String getValue(String name) {
+        for (Header h : headers) {
+            if (h.name != null) {
+                if (h.name.equalsIgnoreCase(name)) {
+                    return h.evaluate()[1];
+                }
+            } else {
+                String[] kv = h.evaluate();
+                if (kv != null && kv[0].equalsIgnoreCase(name)) {
+                    return kv[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String[] split(String kvp) {
+        int pos = kvp.indexOf(':');
+        if (pos < 0)
+            pos = kvp.indexOf('=');
+        if (pos <= 0) {
+            return null;
+        }
+        String k = kvp.substring(0, pos).trim();
+        String v = "";
+        if (kvp.length() > pos + 1)
+            v = kvp.substring(pos + 1).trim();
+        return new String[] { k, v };
+    }
+}
@@ -0,0 +1,342 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).
+ *
+ * Headers are encoded as literals without indexing, using the static table
+ * for the names it has, and without Huffman coding: that is always valid and
+ * keeps the encoder stateless. The {@link Decoder} understands the whole
+ * format, since servers use the dynamic table and Huffman coding.
+ */
+public final class Hpack {
+
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    private static final String[][] STATIC_TABLE = new String[][] { { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" },
+            { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+            { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" }, { ":status", "404" },
+            { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+            { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+            { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" }, { "content-encoding", "" },
+            { "content-language", "" }, { "content-length", "" }, { "content-location", "" }, { "content-range", "" },
+            { "content-type", "" }, { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+            { "host", "" }, { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+            { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" }, { "max-forwards", "" },
+            { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+            { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+            { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+    // the codes of the 256 octets and of EOS, from the appendix B of RFC 7541
+    private static final int[] HUFFMAN_CODES = new int[] {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff };
+
+    private static final byte[] HUFFMAN_LENGTHS = new byte[] {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30 };
+
+    // the decoding tree: children of node n at 2n and 2n+1, leaves hold
+    // the symbol as -1 - symbol
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private Hpack() {
+    }
+
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[2 * 2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = -1 - symbol;
+                } else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Encodes a header block.
+     *
+     * @param headers
+     *            name/value pairs, pseudo headers first; names are sent in
+     *            lower case
+     */
+    public static byte[] encode(List<String[]> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        for (String[] h : headers) {
+            String name = h[0].toLowerCase();
+            int index = staticNameIndex(name);
+            if (index > 0) {
+                writeInt(out, 0x00, 4, index);
+            } else {
+                out.write(0x00);
+                writeString(out, name);
+            }
+            writeString(out, h[1]);
+        }
+        return out.toByteArray();
+    }
+
+    private static int staticNameIndex(String name) {
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        int v = value - max;
+        while (v >= 0x80) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = toBytes(s);
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, keeping its dynamic table.
+     * Not thread safe: header blocks must be decoded in the order received.
+     */
+    public static final class Decoder {
+        private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+        private final int maxTableSize;
+        private int tableLimit;
+        private int tableSize;
+
+        /**
+         * @param maxTableSize
+         *            the table size advertised to the encoder
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.tableLimit = maxTableSize;
+        }
+
+        /**
+         * @return the name/value pairs of the block, in order
+         */
+        public List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+            List<String[]> headers = new ArrayList<String[]>();
+            int[] pos = new int[] { offset };
+            int end = offset + length;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    String[] entry = entry(readInt(block, pos, end, 7));
+                    headers.add(new String[] { entry[0], entry[1] });
+                } else if ((b & 0xc0) == 0x40) {
+                    String[] header = readLiteral(block, pos, end, 6);
+                    headers.add(header);
+                    add(header);
+                } else if ((b & 0xe0) == 0x20) {
+                    int size = readInt(block, pos, end, 5);
+                    if (size > maxTableSize) {
+                        throw new IOException("HPACK table size " + size + " above " + maxTableSize);
+                    }
+                    tableLimit = size;
+                    evict();
+                } else {
+                    headers.add(readLiteral(block, pos, end, 4));
+                }
+            }
+            return headers;
+        }
+
+        private String[] readLiteral(byte[] block, int[] pos, int end, int prefixBits) throws IOException {
+            int index = readInt(block, pos, end, prefixBits);
+            String name = index == 0 ? readString(block, pos, end) : entry(index)[0];
+            return new String[] { name, readString(block, pos, end) };
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index < 1 || dynamic >= dynamicTable.size()) {
+                throw new IOException("Invalid HPACK index " + index);
+            }
+            return dynamicTable.get(dynamic);
+        }
+
+        private void add(String[] header) {
+            dynamicTable.addFirst(header);
+            tableSize += entrySize(header);
+            evict();
+        }
+
+        private void evict() {
+            while (tableSize > tableLimit && !dynamicTable.isEmpty()) {
+                tableSize -= entrySize(dynamicTable.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] header) {
+            return header[0].length() + header[1].length() + 32;
+        }
+    }
+
+    private static int readInt(byte[] block, int[] pos, int end, int prefixBits) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (pos[0] >= end || shift > 28) {
+                throw new IOException("Invalid HPACK integer");
+            }
+            b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readString(byte[] block, int[] pos, int end) throws IOException {
+        if (pos[0] >= end) {
+            throw new IOException("Truncated HPACK string");
+        }
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = readInt(block, pos, end, 7);
+        if (length < 0 || pos[0] + length > end) {
+            throw new IOException("Truncated HPACK string");
+        }
+        int start = pos[0];
+        pos[0] += length;
+        if (huffman) {
+            return decodeHuffman(block, start, length);
+        }
+        return new String(block, start, length, CHARSET);
+    }
+
+    private static String decodeHuffman(byte[] block, int offset, int length) throws IOException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int next = HUFFMAN_TREE[2 * node + ((block[i] >>> bit) & 1)];
+                if (next < 0) {
+                    int symbol = -1 - next;
+                    if (symbol == 256) {
+                        throw new IOException("EOS in HPACK string");
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                } else if (next == 0) {
+                    throw new IOException("Invalid HPACK Huffman code");
+                } else {
+                    node = next;
+                    depth++;
+                }
+            }
+        }
+        if (depth > 7) {
+            throw new IOException("Invalid HPACK Huffman padding");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,937 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import smartrics.jmeter.sampler.MyRequestEntity;
+
+/**
+ * Performs requests over HTTP/2 connections without TLS (h2c), opened with
+ * prior knowledge: the server is expected to speak HTTP/2 straight away.
+ *
+ * Each host gets up to the configured number of connections, each carrying
+ * up to the configured number of concurrent streams, fewer if the server
+ * says so. A request goes on the open connection with the fewest streams,
+ * a new connection being opened only when all are full; when the limit of
+ * connections is reached too, the request waits for a stream to complete.
+ *
+ * Requests are sent by the sampling threads; a thread per connection reads
+ * the frames of the server and completes the exchanges, and a thread of the
+ * engine fails those not complete in time. There is an engine per limits,
+ * shared by the samplers of the test configured alike.
+ */
+public final class Http2Engine {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // flow control windows advertised to the servers
+    private static final int STREAM_WINDOW = 1024 * 1024;
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    // milliseconds between two checks for expired exchanges
+    private static final long EXPIRY_CHECK = 100;
+
+    private static final Map<String, Http2Engine> engines = new ConcurrentHashMap<String, Http2Engine>();
+
+    private static final AtomicInteger connectionCount = new AtomicInteger();
+
+    private final int streamsPerConnection;
+    private final int connectionsPerHost;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    private final Map<Exchange, Boolean> pending = new ConcurrentHashMap<Exchange, Boolean>();
+    private final Thread reaper;
+
+    /**
+     * A request on a stream and, once complete, its response and timings.
+     * The fields set by the connection must only be read after the latch
+     * passed at submission has been released.
+     */
+    public static final class Exchange {
+        private final URL url;
+        private final String method;
+        private final List<String[]> requestHeaders;
+        private final MyRequestEntity entity;
+        private final ResponseReader.Sink sink;
+        private final CountDownLatch latch;
+        private final long deadline;
+        private final long startTime;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Connection connection;
+        private int streamId;
+        private int sendWindow;
+        private int unacknowledged;
+        private long connectTime;
+        private DnsCache.Lookup lookup;
+        private long sentTime;
+        private long firstByteTime;
+        private long endTime;
+        private int statusCode = -1;
+        private List<String[]> responseHeaders = new ArrayList<String[]>();
+        private IOException error;
+
+        private Exchange(URL url, String method, List<String[]> headers, MyRequestEntity entity, ResponseReader.Sink sink, CountDownLatch latch,
+                long timeout) {
+            this.url = url;
+            this.method = method;
+            this.requestHeaders = headers;
+            this.entity = entity;
+            this.sink = sink;
+            this.latch = latch;
+            this.startTime = System.currentTimeMillis();
+            this.deadline = startTime + timeout;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the id of the stream, 0 if the request was not sent
+         */
+        public int getStreamId() {
+            return streamId;
+        }
+
+        /**
+         * @return the id of the connection, unique in the test, 0 if the
+         *         request was not sent
+         */
+        public int getConnectionId() {
+            return connection == null ? 0 : connection.id;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the time the connection was established, 0 if the request
+         *         went on an already open connection
+         */
+        public long getConnectTime() {
+            return connectTime;
+        }
+
+        /**
+         * @return the resolution of the host name made to open the
+         *         connection, null if the request went on an already open
+         *         one
+         */
+        public DnsCache.Lookup getLookup() {
+            return lookup;
+        }
+
+        /**
+         * @return the time the request was sent, 0 if it was not
+         */
+        public long getSentTime() {
+            return sentTime;
+        }
+
+        /**
+         * @return the time the response headers were received, 0 if they
+         *         were not
+         */
+        public long getFirstByteTime() {
+            return firstByteTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return the response headers, pseudo headers excluded
+         */
+        public List<String[]> getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        /**
+         * @return the first value of the response header, null if absent
+         */
+        public String getResponseHeader(String name) {
+            for (String[] h : responseHeaders) {
+                if (h[0].equalsIgnoreCase(name)) {
+                    return h[1];
+                }
+            }
+            return null;
+        }
+
+        public ResponseReader.Sink getSink() {
+            return sink;
+        }
+
+        /**
+         * @return the failure, or null if a complete response was received
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        /**
+         * @return the request headers as sent, pseudo headers first
+         */
+        public String getRequestHeadersAsString() {
+            StringBuilder sb = new StringBuilder();
+            for (String[] h : toHeaderList()) {
+                sb.append(h[0]).append(": ").append(h[1]).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private List<String[]> toHeaderList() {
+            List<String[]> all = new ArrayList<String[]>();
+            String file = url.getFile();
+            String authority = url.getHost() + (url.getPort() >= 0 ? ":" + url.getPort() : "");
+            all.add(new String[] { ":method", method });
+            all.add(new String[] { ":scheme", url.getProtocol() });
+            all.add(new String[] { ":authority", authority });
+            all.add(new String[] { ":path", file.length() == 0 ? "/" : file });
+            boolean hasType = false;
+            for (String[] h : requestHeaders) {
+                String name = h[0].toLowerCase();
+                // connection specific headers are not allowed in HTTP/2
+                if ("host".equals(name) || "connection".equals(name) || "keep-alive".equals(name) || "transfer-encoding".equals(name)
+                        || "upgrade".equals(name) || "content-length".equals(name)) {
+                    continue;
+                }
+                if (entity != null && entity.getContentEncoding() != null && "content-encoding".equals(name)) {
+                    continue;
+                }
+                hasType |= "content-type".equals(name);
+                all.add(new String[] { name, h[1] });
+            }
+            if (entity != null) {
+                if (!hasType && entity.getContentType() != null) {
+                    all.add(new String[] { "content-type", entity.getContentType() });
+                }
+                if (entity.getContentEncoding() != null) {
+                    all.add(new String[] { "content-encoding", entity.getContentEncoding() });
+                }
+                all.add(new String[] { "content-length", Long.toString(entity.getContentLength()) });
+            }
+            return all;
+        }
+
+        /**
+         * Completes the exchange, unless already done. Once on a connection
+         * this is done under its lock, the one the reader thread holds to
+         * fill the response, which is not touched after.
+         */
+        private void complete(IOException failure) {
+            Connection c = connection;
+            if (c != null) {
+                synchronized (c) {
+                    if (!finish(failure)) {
+                        return;
+                    }
+                }
+                c.release(this);
+            } else if (!finish(failure)) {
+                return;
+            }
+            latch.countDown();
+        }
+
+        private boolean finish(IOException failure) {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            endTime = System.currentTimeMillis();
+            error = failure;
+            return true;
+        }
+    }
+
+    private Http2Engine(int streamsPerConnection, int connectionsPerHost) {
+        this.streamsPerConnection = Math.max(streamsPerConnection, 1);
+        this.connectionsPerHost = Math.max(connectionsPerHost, 1);
+        reaper = new Thread(new Runnable() {
+            public void run() {
+                expireAll();
+            }
+        }, "RestSampler-h2-expiry");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * @return the engine of this test with the given limits, created if
+     *         necessary
+     */
+    public static synchronized Http2Engine getInstance(int streamsPerConnection, int connectionsPerHost) {
+        int streams = Math.max(streamsPerConnection, 1);
+        int connections = Math.max(connectionsPerHost, 1);
+        String key = streams + "x" + connections;
+        Http2Engine engine = engines.get(key);
+        if (engine == null) {
+            engine = new Http2Engine(streams, connections);
+            engines.put(key, engine);
+            log.info("started HTTP/2 engine, " + streams + " streams per connection, " + connections + " connections per host");
+        }
+        return engine;
+    }
+
+    /**
+     * Stops the engines, closing all their connections.
+     */
+    public static synchronized void shutdown() {
+        for (Http2Engine engine : engines.values()) {
+            for (Host host : engine.hosts.values()) {
+                host.closeAll();
+            }
+            engine.hosts.clear();
+            engine.reaper.interrupt();
+            log.info("stopped HTTP/2 engine, " + engine.streamsPerConnection + " streams per connection, " + engine.connectionsPerHost
+                    + " connections per host");
+        }
+        engines.clear();
+    }
+
+    public int getStreamsPerConnection() {
+        return streamsPerConnection;
+    }
+
+    public int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * Sends a request on a stream. The latch is counted down when the
+     * exchange completes, successfully or not; the exchange is returned even
+     * if it could not be sent, already complete with the error.
+     *
+     * @param timeout
+     *            milliseconds after which the exchange fails if not complete;
+     *            its fields must not be read before the latch is released
+     */
+    public Exchange submit(URL url, String method, List<String[]> headers, MyRequestEntity entity, ResponseReader.Sink sink, CountDownLatch latch,
+            long timeout) {
+        Exchange ex = new Exchange(url, method, headers, entity, sink, latch, timeout);
+        pending.put(ex, Boolean.TRUE);
+        try {
+            Host host = getHost(url);
+            Connection connection = host.reserve(ex);
+            connection.send(ex);
+        } catch (IOException e) {
+            ex.complete(e);
+        }
+        return ex;
+    }
+
+    /**
+     * Fails the exchanges not complete in time, until the engine is shut
+     * down.
+     */
+    private void expireAll() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Exchange> i = pending.keySet().iterator(); i.hasNext();) {
+                Exchange ex = i.next();
+                if (ex.done.get()) {
+                    i.remove();
+                } else if (now > ex.deadline) {
+                    expire(ex);
+                    i.remove();
+                }
+            }
+            try {
+                Thread.sleep(EXPIRY_CHECK);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fails the exchange if it is not complete, cancelling its stream.
+     */
+    private void expire(Exchange ex) {
+        if (ex.done.get()) {
+            return;
+        }
+        Connection c = ex.connection;
+        if (c != null && ex.streamId > 0) {
+            c.cancel(ex);
+        }
+        ex.complete(new SocketTimeoutException("No response within " + (ex.deadline - ex.startTime) + "ms"));
+    }
+
+    private Host getHost(URL url) {
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        String key = url.getHost() + ":" + port;
+        Host host = hosts.get(key);
+        if (host == null) {
+            synchronized (hosts) {
+                host = hosts.get(key);
+                if (host == null) {
+                    host = new Host(url.getHost(), port);
+                    hosts.put(key, host);
+                }
+            }
+        }
+        return host;
+    }
+
+    /**
+     * The connections to a host.
+     */
+    private final class Host {
+        private final String name;
+        private final int port;
+        private final List<Connection> connections = new ArrayList<Connection>();
+
+        // guarded by this: the connections being opened
+        private int connecting;
+
+        Host(String name, int port) {
+            this.name = name;
+            this.port = port;
+        }
+
+        /**
+         * Reserves a stream for the exchange on the connection with the
+         * fewest, opening a connection if all are full and the limit allows,
+         * else waiting for a stream to complete. Connections are opened
+         * outside the lock of the host, so that a slow name resolution or
+         * connect does not hold up the threads using the other connections.
+         */
+        Connection reserve(Exchange ex) throws IOException {
+            while (true) {
+                synchronized (this) {
+                    Connection best = null;
+                    for (Iterator<Connection> i = connections.iterator(); i.hasNext();) {
+                        Connection c = i.next();
+                        if (!c.isOpen()) {
+                            i.remove();
+                        } else if (c.hasCapacity() && (best == null || c.getActive() < best.getActive())) {
+                            best = c;
+                        }
+                    }
+                    if (best != null && best.tryReserve(ex)) {
+                        return best;
+                    }
+                    if (best != null || connections.size() + connecting >= connectionsPerHost) {
+                        long wait = ex.deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("No stream available within " + (ex.deadline - ex.startTime) + "ms");
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted waiting for a stream");
+                        }
+                        continue;
+                    }
+                    connecting++;
+                }
+                Connection opened = null;
+                try {
+                    InetAddress address;
+                    try {
+                        address = DnsCache.lookup(name);
+                    } finally {
+                        // the lookup belongs to the exchange, not to the
+                        // next sample of the thread
+                        ex.lookup = DnsCache.takeLookup();
+                    }
+                    opened = new Connection(this, address, port);
+                    ex.connectTime = System.currentTimeMillis();
+                } finally {
+                    synchronized (this) {
+                        connecting--;
+                        if (opened != null) {
+                            connections.add(opened);
+                        }
+                        notifyAll();
+                    }
+                }
+                if (opened.tryReserve(ex)) {
+                    return opened;
+                }
+            }
+        }
+
+        synchronized void streamReleased() {
+            notifyAll();
+        }
+
+        synchronized void closeAll() {
+            for (Connection c : connections) {
+                c.close(new IOException("HTTP/2 engine stopped"));
+            }
+            connections.clear();
+        }
+    }
+
+    /**
+     * An HTTP/2 connection. Frames are written under the connection lock,
+     * by the sampling threads and by the reader thread.
+     */
+    private final class Connection implements Runnable {
+        private final int id = connectionCount.incrementAndGet();
+        private final Host host;
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        private final Map<Integer, Exchange> streams = new ConcurrentHashMap<Integer, Exchange>();
+
+        // guarded by this
+        private int nextStreamId = 1;
+        private int active;
+        private int maxConcurrentStreams = Integer.MAX_VALUE;
+        private int peerInitialWindow = Http2Frame.DEFAULT_WINDOW;
+        private int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+        private long sendWindow = Http2Frame.DEFAULT_WINDOW;
+        private boolean closed;
+        private boolean goingAway;
+
+        // only accessed by the reader thread
+        private int unacknowledged;
+        private ByteArrayOutputStream headerBlock;
+        private int headerBlockStream;
+        private boolean headerBlockEndStream;
+
+        Connection(Host host, InetAddress address, int port) throws IOException {
+            this.host = host;
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            try {
+                socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+                out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+                in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                out.write(Http2Frame.PREFACE);
+                Http2Frame.writeSettings(out, new int[] { Http2Frame.SETTINGS_ENABLE_PUSH, 0, Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE,
+                        STREAM_WINDOW });
+                Http2Frame.writeWindowUpdate(out, 0, CONNECTION_WINDOW - Http2Frame.DEFAULT_WINDOW);
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread reader = new Thread(this, "RestSampler-h2-" + id);
+            reader.setDaemon(true);
+            reader.start();
+            log.debug("opened HTTP/2 connection " + id + " to " + host.name + ":" + port);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return false once the connection is closed or going away, when it
+         *         takes no new streams
+         */
+        synchronized boolean isOpen() {
+            return !closed && !goingAway;
+        }
+
+        synchronized int getActive() {
+            return active;
+        }
+
+        synchronized boolean hasCapacity() {
+            return isOpen() && active < Math.min(streamsPerConnection, maxConcurrentStreams);
+        }
+
+        synchronized boolean tryReserve(Exchange ex) {
+            if (!hasCapacity()) {
+                return false;
+            }
+            active++;
+            ex.connection = this;
+            return true;
+        }
+
+        /**
+         * Opens the stream of a reserved exchange and sends the request,
+         * waiting for the flow control window to send the body.
+         */
+        void send(Exchange ex) throws IOException {
+            byte[] block = Hpack.encode(ex.toHeaderList());
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("HTTP/2 connection closed");
+                }
+                ex.streamId = nextStreamId;
+                nextStreamId += 2;
+                ex.sendWindow = peerInitialWindow;
+                streams.put(Integer.valueOf(ex.streamId), ex);
+                Http2Frame.writeHeaders(out, ex.streamId, block, ex.entity == null, peerMaxFrameSize);
+                out.flush();
+            }
+            if (ex.entity != null) {
+                sendBody(ex);
+            }
+            ex.sentTime = System.currentTimeMillis();
+        }
+
+        private void sendBody(Exchange ex) throws IOException {
+            ByteBuffer[] body = ex.entity.toBuffers();
+            long remaining = 0;
+            for (ByteBuffer b : body) {
+                remaining += b.remaining();
+            }
+            if (remaining == 0) {
+                synchronized (this) {
+                    Http2Frame.write(out, Http2Frame.DATA, Http2Frame.FLAG_END_STREAM, ex.streamId, null, 0, 0);
+                    out.flush();
+                }
+                return;
+            }
+            byte[] chunk = new byte[Http2Frame.DEFAULT_MAX_FRAME_SIZE];
+            int current = 0;
+            while (remaining > 0) {
+                synchronized (this) {
+                    while (!closed && !ex.done.get() && (sendWindow <= 0 || ex.sendWindow <= 0)) {
+                        long wait = ex.deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Flow control window not open within " + (ex.deadline - ex.startTime) + "ms");
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted waiting for the flow control window");
+                        }
+                    }
+                    if (closed || ex.done.get()) {
+                        throw new IOException("Stream " + ex.streamId + " closed while sending the body");
+                    }
+                    while (!body[current].hasRemaining()) {
+                        current++;
+                    }
+                    int n = (int) Math.min(Math.min(chunk.length, body[current].remaining()), Math.min(sendWindow, ex.sendWindow));
+                    body[current].get(chunk, 0, n);
+                    sendWindow -= n;
+                    ex.sendWindow -= n;
+                    remaining -= n;
+                    Http2Frame.write(out, Http2Frame.DATA, remaining == 0 ? Http2Frame.FLAG_END_STREAM : 0, ex.streamId, chunk, 0, n);
+                    out.flush();
+                }
+            }
+        }
+
+        void cancel(Exchange ex) {
+            synchronized (this) {
+                if (!closed) {
+                    try {
+                        Http2Frame.writeRstStream(out, ex.streamId, Http2Frame.ERROR_CANCEL);
+                        out.flush();
+                    } catch (IOException e) {
+                        log.debug("unable to cancel stream " + ex.streamId + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        void release(Exchange ex) {
+            boolean drained;
+            synchronized (this) {
+                if (ex.streamId > 0) {
+                    streams.remove(Integer.valueOf(ex.streamId));
+                }
+                active--;
+                drained = goingAway && active == 0;
+                notifyAll();
+            }
+            if (drained) {
+                close(new IOException("HTTP/2 connection gone away"));
+            }
+            host.streamReleased();
+        }
+
+        void close(IOException reason) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            for (Exchange ex : streams.values()) {
+                ex.complete(reason);
+            }
+            host.streamReleased();
+        }
+
+        public void run() {
+            IOException reason = null;
+            try {
+                Http2Frame frame;
+                while ((frame = Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE)) != null) {
+                    handle(frame);
+                }
+                reason = new IOException("HTTP/2 connection closed by the server");
+            } catch (IOException e) {
+                reason = e;
+            } catch (RuntimeException e) {
+                log.error("Unexpected error on HTTP/2 connection " + id, e);
+                reason = new IOException("Unexpected error: " + e);
+            }
+            if (!isClosed()) {
+                log.debug("HTTP/2 connection " + id + " closed: " + reason.getMessage());
+            }
+            close(reason);
+        }
+
+        private void handle(Http2Frame frame) throws IOException {
+            if (headerBlock != null && frame.type != Http2Frame.CONTINUATION) {
+                throw new IOException("Header block interrupted by a frame of type " + frame.type);
+            }
+            switch (frame.type) {
+            case Http2Frame.SETTINGS:
+                if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                    applySettings(frame);
+                }
+                break;
+            case Http2Frame.HEADERS:
+                headerBlock = new ByteArrayOutputStream(frame.payload.length);
+                headerBlockStream = frame.streamId;
+                headerBlockEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+                headerBlock.write(frame.payload, frame.dataOffset(), frame.dataLength());
+                if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+                    endHeaders();
+                }
+                break;
+            case Http2Frame.CONTINUATION:
+                if (headerBlock == null || frame.streamId != headerBlockStream) {
+                    throw new IOException("Unexpected CONTINUATION frame");
+                }
+                headerBlock.write(frame.payload, 0, frame.payload.length);
+                if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+                    endHeaders();
+                }
+                break;
+            case Http2Frame.DATA:
+                data(frame);
+                break;
+            case Http2Frame.RST_STREAM:
+                Exchange reset = streams.get(Integer.valueOf(frame.streamId));
+                if (reset != null) {
+                    reset.complete(new IOException("Stream " + frame.streamId + " reset by the server, error " + frame.readInt(0)));
+                }
+                break;
+            case Http2Frame.PING:
+                if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                    synchronized (this) {
+                        Http2Frame.write(out, Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.payload, 0, frame.payload.length);
+                        out.flush();
+                    }
+                }
+                break;
+            case Http2Frame.GOAWAY:
+                goaway(frame.readInt(0) & 0x7fffffff, frame.readInt(4));
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                windowUpdate(frame.streamId, frame.readInt(0) & 0x7fffffff);
+                break;
+            case Http2Frame.PUSH_PROMISE:
+                throw new IOException("Server push received though disabled");
+            default:
+                // PRIORITY and unknown frames are ignored
+                break;
+            }
+        }
+
+        private void applySettings(Http2Frame frame) throws IOException {
+            synchronized (this) {
+                for (int i = 0; i + 6 <= frame.payload.length; i += 6) {
+                    int key = ((frame.payload[i] & 0xff) << 8) | (frame.payload[i + 1] & 0xff);
+                    int value = frame.readInt(i + 2);
+                    if (key == Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS) {
+                        maxConcurrentStreams = value;
+                    } else if (key == Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE) {
+                        int delta = value - peerInitialWindow;
+                        peerInitialWindow = value;
+                        for (Exchange ex : streams.values()) {
+                            ex.sendWindow += delta;
+                        }
+                    } else if (key == Http2Frame.SETTINGS_MAX_FRAME_SIZE) {
+                        peerMaxFrameSize = value;
+                    }
+                }
+                Http2Frame.write(out, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, null, 0, 0);
+                out.flush();
+                notifyAll();
+            }
+            host.streamReleased();
+        }
+
+        private void endHeaders() throws IOException {
+            byte[] block = headerBlock.toByteArray();
+            headerBlock = null;
+            // decoded even for unknown streams, to keep the table in step
+            List<String[]> headers = decoder.decode(block, 0, block.length);
+            Exchange ex = streams.get(Integer.valueOf(headerBlockStream));
+            if (ex == null) {
+                return;
+            }
+            synchronized (this) {
+                // expired meanwhile, its response is being read
+                if (ex.done.get()) {
+                    return;
+                }
+                if (ex.statusCode < 0 || (ex.statusCode >= 100 && ex.statusCode < 200)) {
+                    ex.statusCode = -1;
+                    ex.responseHeaders.clear();
+                    for (String[] h : headers) {
+                        if (":status".equals(h[0])) {
+                            ex.statusCode = parseStatus(h[1]);
+                        } else if (!h[0].startsWith(":")) {
+                            ex.responseHeaders.add(h);
+                        }
+                    }
+                    ex.sink.decode(ex.getResponseHeader("content-encoding"));
+                    if (ex.firstByteTime == 0) {
+                        ex.firstByteTime = System.currentTimeMillis();
+                    }
+                }
+            }
+            if (headerBlockEndStream) {
+                ex.complete(null);
+            }
+        }
+
+        private int parseStatus(String status) throws IOException {
+            try {
+                return Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status " + status);
+            }
+        }
+
+        private void data(Http2Frame frame) throws IOException {
+            Exchange ex = streams.get(Integer.valueOf(frame.streamId));
+            boolean endStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+            if (ex != null) {
+                synchronized (this) {
+                    // expired meanwhile, its response is being read
+                    if (ex.done.get()) {
+                        ex = null;
+                    } else {
+                        ex.sink.write(frame.payload, frame.dataOffset(), frame.dataLength());
+                    }
+                }
+            }
+            // padding counts against the windows too
+            int length = frame.payload.length;
+            unacknowledged += length;
+            int connectionIncrement = 0;
+            if (unacknowledged >= CONNECTION_WINDOW / 2) {
+                connectionIncrement = unacknowledged;
+                unacknowledged = 0;
+            }
+            int streamIncrement = 0;
+            if (ex != null && !endStream) {
+                ex.unacknowledged += length;
+                if (ex.unacknowledged >= STREAM_WINDOW / 2) {
+                    streamIncrement = ex.unacknowledged;
+                    ex.unacknowledged = 0;
+                }
+            }
+            if (connectionIncrement > 0 || streamIncrement > 0) {
+                synchronized (this) {
+                    if (connectionIncrement > 0) {
+                        Http2Frame.writeWindowUpdate(out, 0, connectionIncrement);
+                    }
+                    if (streamIncrement > 0) {
+                        Http2Frame.writeWindowUpdate(out, frame.streamId, streamIncrement);
+                    }
+                    out.flush();
+                }
+            }
+            if (ex != null && endStream) {
+                ex.complete(null);
+            }
+        }
+
+        private void goaway(int lastStreamId, int errorCode) {
+            boolean drained;
+            synchronized (this) {
+                // no new streams; those above the last one are not processed
+                goingAway = true;
+                drained = active == 0;
+            }
+            if (drained) {
+                close(new IOException("HTTP/2 connection gone away"));
+                return;
+            }
+            IOException refused = new IOException("Stream refused by the server going away, error " + errorCode);
+            for (Exchange ex : streams.values()) {
+                if (ex.streamId > lastStreamId) {
+                    ex.complete(refused);
+                }
+            }
+            host.streamReleased();
+        }
+
+        private void windowUpdate(int streamId, int increment) {
+            synchronized (this) {
+                if (streamId == 0) {
+                    sendWindow += increment;
+                } else {
+                    Exchange ex = streams.get(Integer.valueOf(streamId));
+                    if (ex != null) {
+                        ex.sendWindow += increment;
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An HTTP/2 frame (RFC 7540, section 4), as read from and written to the
+ * connections of {@link Http2Engine} and of the h2c stand-in server of the
+ * tools.
+ */
+final class Http2Frame {
+
+    static final byte[] PREFACE = new byte[] { 'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n',
+            'S', 'M', '\r', '\n', '\r', '\n' };
+
+    static final int DATA = 0;
+    static final int HEADERS = 1;
+    static final int PRIORITY = 2;
+    static final int RST_STREAM = 3;
+    static final int SETTINGS = 4;
+    static final int PUSH_PROMISE = 5;
+    static final int PING = 6;
+    static final int GOAWAY = 7;
+    static final int WINDOW_UPDATE = 8;
+    static final int CONTINUATION = 9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 1;
+    static final int SETTINGS_ENABLE_PUSH = 2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 5;
+
+    static final int ERROR_NO_ERROR = 0;
+    static final int ERROR_PROTOCOL = 1;
+    static final int ERROR_CANCEL = 8;
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    private static final int HEADER_LENGTH = 9;
+
+    final int type;
+    final int flags;
+    final int streamId;
+    final byte[] payload;
+
+    private Http2Frame(int type, int flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return the offset of the data in the payload of a DATA or HEADERS
+     *         frame, past padding length and priority
+     */
+    int dataOffset() {
+        int offset = hasFlag(FLAG_PADDED) ? 1 : 0;
+        if (type == HEADERS && hasFlag(FLAG_PRIORITY)) {
+            offset += 5;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the length of the data in the payload of a DATA or HEADERS
+     *         frame, without padding
+     */
+    int dataLength() throws IOException {
+        int padding = hasFlag(FLAG_PADDED) ? payload[0] & 0xff : 0;
+        int length = payload.length - dataOffset() - padding;
+        if (length < 0) {
+            throw new IOException("Invalid padding in frame of type " + type);
+        }
+        return length;
+    }
+
+    int readInt(int offset) {
+        return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16) | ((payload[offset + 2] & 0xff) << 8)
+                | (payload[offset + 3] & 0xff);
+    }
+
+    /**
+     * @return the next frame, or null at the end of the stream
+     */
+    static Http2Frame read(InputStream in, int maxFrameSize) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(in, header, 1, HEADER_LENGTH - 1);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        if (length > maxFrameSize) {
+            throw new IOException("Frame of " + length + " bytes above the maximum of " + maxFrameSize);
+        }
+        int streamId = (((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff));
+        byte[] payload = new byte[length];
+        readFully(in, payload, 0, length);
+        return new Http2Frame(header[3] & 0xff, header[4] & 0xff, streamId, payload);
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int n = in.read(b, off + done, len - done);
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            done += n;
+        }
+    }
+
+    static void write(OutputStream out, int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId & 0x7fffffff);
+        out.write(header);
+        if (length > 0) {
+            out.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Writes a header block, split in CONTINUATION frames if longer than the
+     * maximum frame size.
+     */
+    static void writeHeaders(OutputStream out, int streamId, byte[] block, boolean endStream, int maxFrameSize) throws IOException {
+        int length = Math.min(block.length, maxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+        write(out, HEADERS, flags, streamId, block, 0, length);
+        int offset = length;
+        while (offset < block.length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+            write(out, CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, streamId, block, offset, length);
+            offset += length;
+        }
+    }
+
+    static void writeSettings(OutputStream out, int[] settings) throws IOException {
+        byte[] payload = new byte[settings.length / 2 * 6];
+        for (int i = 0; i < settings.length / 2; i++) {
+            payload[6 * i] = (byte) (settings[2 * i] >>> 8);
+            payload[6 * i + 1] = (byte) settings[2 * i];
+            putInt(payload, 6 * i + 2, settings[2 * i + 1]);
+        }
+        write(out, SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    static void writeWindowUpdate(OutputStream out, int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        write(out, WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    static void writeRstStream(OutputStream out, int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        write(out, RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    static void writeGoaway(OutputStream out, int lastStreamId, int errorCode) throws IOException {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        write(out, GOAWAY, 0, 0, payload, 0, 8);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
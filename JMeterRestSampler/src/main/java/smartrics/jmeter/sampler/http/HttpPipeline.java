@@ -0,0 +1,326 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sends batches of HTTP/1.1 requests on a single kept alive connection,
+ * without waiting for a response before writing the next request.
+ *
+ * With a window as large as the batch the requests are pipelined: all are
+ * written back to back and then the responses are read, in order. With a
+ * smaller window at most that many requests are left unanswered, the next
+ * one being written as soon as a response completes.
+ *
+ * If the server closes the connection, either after a response not kept
+ * alive or because a kept alive connection went stale, the requests not
+ * answered yet are sent again on a new connection; a stale connection may
+ * show as well by failing to write the requests, or by being reset. A
+ * connection closed, or failing, before any response is a failure. Requests should therefore be
+ * idempotent. Large request bodies with a large window may fill both
+ * directions of the connection, and end up in the timeout.
+ *
+ * A pipeline is used by one thread at a time. Only plain HTTP is supported.
+ */
+public final class HttpPipeline {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] in = new byte[BUFFER_SIZE];
+    private final ByteBuffer readBuffer = ByteBuffer.wrap(in);
+
+    private InetSocketAddress address;
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private WritableByteChannel channel;
+    private int served;
+
+    public HttpPipeline() {
+        readBuffer.flip();
+    }
+
+    /**
+     * A request of a batch and, once the batch is executed, its response and
+     * timings.
+     */
+    public static final class Exchange {
+        private final RawHttpRequest request;
+        private final RawHttpResponse response;
+        private long startTime;
+        private long connectTime;
+        private long firstByteTime;
+        private long endTime;
+        private IOException error;
+
+        private Exchange(RawHttpRequest request, RawHttpResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        public RawHttpRequest getRequest() {
+            return request;
+        }
+
+        public RawHttpResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * @return the time the request started to be written, or the
+         *         connection it opened to be established
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the time the connection was established, 0 if the request
+         *         did not open it
+         */
+        public long getConnectTime() {
+            return connectTime;
+        }
+
+        /**
+         * @return the time the first byte of the response was received, 0 if
+         *         none was
+         */
+        public long getFirstByteTime() {
+            return firstByteTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return the failure, or null if a complete response was received
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Sends the requests, all to the same address, and reads their responses.
+     *
+     * @param window
+     *            the maximum number of requests left unanswered, 0 to
+     *            pipeline the whole batch
+     * @param timeout
+     *            the milliseconds after which the requests still unanswered
+     *            fail
+     * @return the exchanges, in the order of the requests
+     */
+    public Exchange[] execute(RawHttpRequest[] requests, RawHttpResponse[] responses, int window, long timeout) {
+        int n = requests.length;
+        if (window <= 0 || window > n) {
+            window = n;
+        }
+        Exchange[] exchanges = new Exchange[n];
+        for (int i = 0; i < n; i++) {
+            exchanges[i] = new Exchange(requests[i], responses[i]);
+        }
+        if (n == 0) {
+            return exchanges;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        int sent = 0;
+        int received = 0;
+        try {
+            if (socket != null && !requests[0].getAddress().equals(address)) {
+                close();
+            }
+            while (received < n) {
+                if (socket == null) {
+                    connect(requests[0].getAddress(), exchanges[received], deadline);
+                    sent = received;
+                }
+                if (sent < n && sent - received < window) {
+                    int last = Math.min(n, received + window);
+                    try {
+                        send(exchanges, sent, last);
+                    } catch (IOException e) {
+                        failed(exchanges[received], e);
+                        continue;
+                    }
+                    sent = last;
+                }
+                if (!readBuffer.hasRemaining()) {
+                    int count;
+                    try {
+                        count = read(deadline);
+                    } catch (SocketTimeoutException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        failed(exchanges[received], e);
+                        continue;
+                    }
+                    if (count < 0) {
+                        if (closed(exchanges[received])) {
+                            received++;
+                        }
+                        continue;
+                    }
+                }
+                Exchange ex = exchanges[received];
+                if (ex.firstByteTime == 0) {
+                    ex.firstByteTime = System.currentTimeMillis();
+                }
+                if (ex.response.feed(readBuffer)) {
+                    ex.endTime = System.currentTimeMillis();
+                    received++;
+                    served++;
+                    if (!ex.response.isKeepAlive()) {
+                        close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+            long now = System.currentTimeMillis();
+            for (int i = received; i < n; i++) {
+                exchanges[i].error = e;
+                exchanges[i].endTime = now;
+                if (exchanges[i].startTime == 0) {
+                    exchanges[i].startTime = now;
+                }
+            }
+        }
+        return exchanges;
+    }
+
+    /**
+     * Closes the connection, if open.
+     */
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        socket = null;
+        input = null;
+        output = null;
+        channel = null;
+        readBuffer.clear();
+        readBuffer.flip();
+    }
+
+    private void connect(InetSocketAddress to, Exchange ex, long deadline) throws IOException {
+        ex.startTime = System.currentTimeMillis();
+        Socket s = new Socket();
+        try {
+            s.connect(to, remaining(deadline));
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        ex.connectTime = System.currentTimeMillis();
+        socket = s;
+        address = to;
+        input = s.getInputStream();
+        output = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+        channel = Channels.newChannel(output);
+        served = 0;
+        readBuffer.clear();
+        readBuffer.flip();
+    }
+
+    private void send(Exchange[] exchanges, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            Exchange ex = exchanges[i];
+            if (ex.connectTime == 0) {
+                ex.startTime = System.currentTimeMillis();
+            }
+            for (ByteBuffer buffer : ex.request.toBuffers()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        output.flush();
+    }
+
+    private int read(long deadline) throws IOException {
+        socket.setSoTimeout(remaining(deadline));
+        readBuffer.clear();
+        int count = input.read(in, 0, in.length);
+        readBuffer.limit(Math.max(count, 0));
+        return count;
+    }
+
+    /**
+     * Handles the server closing the connection while the exchange waits for
+     * its response.
+     *
+     * @return true if the close completed the response
+     */
+    private boolean closed(Exchange ex) throws IOException {
+        boolean wasServing = served > 0;
+        close();
+        if (!ex.response.isEmpty()) {
+            ex.response.endOfStream();
+            ex.endTime = System.currentTimeMillis();
+            return true;
+        }
+        if (!wasServing) {
+            throw new IOException("Connection closed by the server before any response");
+        }
+        // sent again on a new connection
+        ex.firstByteTime = 0;
+        ex.connectTime = 0;
+        return false;
+    }
+
+    /**
+     * Handles the connection failing while the exchange waits for its
+     * response: if it served responses the requests not answered yet are sent
+     * again on a new one.
+     */
+    private void failed(Exchange ex, IOException e) throws IOException {
+        boolean wasServing = served > 0;
+        close();
+        if (!wasServing || !ex.response.isEmpty()) {
+            throw e;
+        }
+        ex.firstByteTime = 0;
+        ex.connectTime = 0;
+    }
+
+    private static int remaining(long deadline) throws SocketTimeoutException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Requests not answered in time");
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,249 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * A pooling HttpConnectionManager that never blocks while holding a monitor.
+ *
+ * MultiThreadedHttpConnectionManager waits for a free connection inside a
+ * synchronized block, which pins the carrier of a virtual thread for as long
+ * as the wait lasts. Here the limits are enforced by semaphores and the idle
+ * connections kept in lock free queues, so a waiting virtual thread unmounts
+ * and frees its carrier.
+ *
+ * The limits apply to the connections in use: at most maxPerHost to each host
+ * and maxTotal overall.
+ */
+public final class NonPinningConnectionManager implements HttpConnectionManager {
+
+    private final int maxTotal;
+    private final int maxPerHost;
+    private final Semaphore total;
+    private final ConcurrentHashMap<HostConfiguration, HostPool> hosts = new ConcurrentHashMap<HostConfiguration, HostPool>();
+    private final Map<HttpConnection, HostPool> leased = new ConcurrentHashMap<HttpConnection, HostPool>();
+    private volatile HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+    private volatile boolean shutdown;
+
+    private static final class HostPool {
+        private final Semaphore permits;
+        private final ConcurrentLinkedQueue<IdleConnection> idle = new ConcurrentLinkedQueue<IdleConnection>();
+
+        private HostPool(int maxPerHost) {
+            this.permits = new Semaphore(maxPerHost, true);
+        }
+    }
+
+    private static final class IdleConnection {
+        private final HttpConnection connection;
+        private final long since;
+
+        private IdleConnection(HttpConnection connection) {
+            this.connection = connection;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    public NonPinningConnectionManager(int maxTotal, int maxPerHost) {
+        this.maxTotal = maxTotal;
+        this.maxPerHost = maxPerHost;
+        this.total = new Semaphore(maxTotal, true);
+    }
+
+    public HttpConnection getConnection(HostConfiguration hostConfiguration) {
+        try {
+            return getConnectionWithTimeout(hostConfiguration, 0);
+        } catch (ConnectionPoolTimeoutException e) {
+            // cannot happen without a timeout
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @deprecated use {@link #getConnectionWithTimeout(HostConfiguration, long)}
+     */
+    @Deprecated
+    public HttpConnection getConnection(HostConfiguration hostConfiguration, long timeout) throws HttpException {
+        try {
+            return getConnectionWithTimeout(hostConfiguration, timeout);
+        } catch (ConnectionPoolTimeoutException e) {
+            throw new HttpException(e.getMessage());
+        }
+    }
+
+    /**
+     * Leases a connection to the host, reusing an idle one if available.
+     *
+     * @param timeout
+     *            milliseconds to wait for a connection, 0 to wait forever
+     */
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+        if (shutdown) {
+            throw new IllegalStateException("Connection manager has been shut down");
+        }
+        HostConfiguration key = new HostConfiguration(hostConfiguration);
+        HostPool pool = hostPool(key);
+        long deadline = System.currentTimeMillis() + timeout;
+        acquire(pool.permits, timeout);
+        try {
+            acquire(total, timeout == 0 ? 0 : Math.max(deadline - System.currentTimeMillis(), 1));
+        } catch (ConnectionPoolTimeoutException e) {
+            pool.permits.release();
+            throw e;
+        }
+        IdleConnection idle = pool.idle.poll();
+        HttpConnection connection;
+        if (idle != null) {
+            connection = idle.connection;
+        } else {
+            connection = new HttpConnection(key);
+            connection.setHttpConnectionManager(this);
+            connection.getParams().setDefaults(params);
+        }
+        leased.put(connection, pool);
+        return connection;
+    }
+
+    private HostPool hostPool(HostConfiguration key) {
+        HostPool pool = hosts.get(key);
+        if (pool == null) {
+            HostPool created = new HostPool(maxPerHost);
+            pool = hosts.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    private static void acquire(Semaphore semaphore, long timeout) throws ConnectionPoolTimeoutException {
+        try {
+            if (timeout == 0) {
+                semaphore.acquire();
+            } else if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalThreadStateException("Interrupted while waiting for a connection");
+        }
+    }
+
+    /**
+     * Returns the connection to the pool once the last response read from it
+     * has been consumed; connections closed in the meantime are dropped.
+     */
+    public void releaseConnection(HttpConnection connection) {
+        HostPool pool = leased.remove(connection);
+        if (pool == null) {
+            // not ours, or already released
+            return;
+        }
+        finishLastResponse(connection);
+        if (shutdown || !connection.isOpen()) {
+            connection.close();
+        } else {
+            pool.idle.add(new IdleConnection(connection));
+        }
+        total.release();
+        pool.permits.release();
+    }
+
+    private static void finishLastResponse(HttpConnection connection) {
+        InputStream last = connection.getLastResponseInputStream();
+        if (last != null) {
+            connection.setLastResponseInputStream(null);
+            try {
+                last.close();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    public void closeIdleConnections(long idleTimeout) {
+        long limit = System.currentTimeMillis() - idleTimeout;
+        for (HostPool pool : hosts.values()) {
+            Iterator<IdleConnection> it = pool.idle.iterator();
+            while (it.hasNext()) {
+                IdleConnection idle = it.next();
+                if (idle.since <= limit && pool.idle.remove(idle)) {
+                    idle.connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all the idle connections and refuses further leases. Connections
+     * in use are closed when released.
+     */
+    public void shutdown() {
+        shutdown = true;
+        closeIdleConnections(-1);
+    }
+
+    /**
+     * @return the number of connections currently leased
+     */
+    public int getConnectionsInUse() {
+        return leased.size();
+    }
+
+    /**
+     * @return the number of open connections waiting to be leased
+     */
+    public int getIdleConnections() {
+        int n = 0;
+        for (HostPool pool : hosts.values()) {
+            n += pool.idle.size();
+        }
+        return n;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    public HttpConnectionManagerParams getParams() {
+        return params;
+    }
+
+    public void setParams(HttpConnectionManagerParams params) {
+        if (params == null) {
+            throw new IllegalArgumentException("Parameters may not be null");
+        }
+        this.params = params;
+    }
+}
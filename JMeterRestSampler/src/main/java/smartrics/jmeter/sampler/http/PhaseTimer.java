@@ -0,0 +1,136 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * The phases of a request: name resolution, TCP connect, TLS handshake, time
+ * to the first byte of the response (sending the request included) and
+ * transfer of the response body. Phases not gone through, for example the
+ * connection phases when a kept alive connection is reused, are not
+ * recorded.
+ *
+ * A timer can be bound to the current thread so that
+ * {@link PhaseTimingSocketFactory} records the connection phases in it.
+ */
+public final class PhaseTimer {
+
+    public static final int DNS = 0;
+
+    public static final int CONNECT = 1;
+
+    public static final int TLS = 2;
+
+    public static final int TTFB = 3;
+
+    public static final int TRANSFER = 4;
+
+    public static final String[] NAMES = new String[] { "dns", "connect", "tls", "ttfb", "transfer" };
+
+    /**
+     * Prefix of the labels of the sub results holding the phases.
+     */
+    public static final String LABEL_PREFIX = "phase:";
+
+    private static final ThreadLocal<PhaseTimer> current = new ThreadLocal<PhaseTimer>();
+
+    private final long[] starts = new long[NAMES.length];
+    private final long[] ends = new long[NAMES.length];
+
+    /**
+     * Binds a new timer to the current thread.
+     */
+    public static PhaseTimer begin() {
+        PhaseTimer timer = new PhaseTimer();
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * @return the timer bound to the current thread, or null
+     */
+    public static PhaseTimer current() {
+        return current.get();
+    }
+
+    /**
+     * Unbinds the timer of the current thread.
+     */
+    public static void end() {
+        current.remove();
+    }
+
+    public void mark(int phase, long start, long end) {
+        starts[phase] = start;
+        ends[phase] = Math.max(end, start);
+    }
+
+    public boolean isRecorded(int phase) {
+        return starts[phase] > 0;
+    }
+
+    /**
+     * @return the milliseconds spent in the phase, 0 if not recorded
+     */
+    public long getTime(int phase) {
+        return ends[phase] - starts[phase];
+    }
+
+    /**
+     * @return the end of the last connection phase recorded, 0 if the
+     *         connection was not opened while the timer was bound
+     */
+    public long getConnectedTime() {
+        for (int phase = TLS; phase >= DNS; phase--) {
+            if (isRecorded(phase)) {
+                return ends[phase];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a sub result to the result for each phase recorded, labelled
+     * with {@link #LABEL_PREFIX} and the name of the phase.
+     */
+    public void addTo(SampleResult res) {
+        for (int phase = 0; phase < NAMES.length; phase++) {
+            if (isRecorded(phase)) {
+                SampleResult sub = new SampleResult();
+                sub.setSampleLabel(LABEL_PREFIX + NAMES[phase]);
+                sub.setStampAndTime(starts[phase], getTime(phase));
+                sub.setSuccessful(true);
+                res.addSubResult(sub);
+            }
+        }
+    }
+
+    /**
+     * @return the phase named by the label of a sub result added by
+     *         {@link #addTo(SampleResult)}, -1 if the label is not a phase
+     */
+    public static int phaseOf(String label) {
+        if (label != null && label.startsWith(LABEL_PREFIX)) {
+            String name = label.substring(LABEL_PREFIX.length());
+            for (int phase = 0; phase < NAMES.length; phase++) {
+                if (NAMES[phase].equals(name)) {
+                    return phase;
+                }
+            }
+        }
+        return -1;
+    }
+}
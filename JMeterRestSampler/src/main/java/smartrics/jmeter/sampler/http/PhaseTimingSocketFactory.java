@@ -0,0 +1,215 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.DefaultProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Wraps the socket factory of a protocol to record the phases of opening a
+ * connection in the {@link PhaseTimer} bound to the calling thread, and to
+ * resolve host names with the {@link DnsCache} and handshake with the
+ * {@link TlsSessions} bound to the thread. Without a bound timer, cache nor
+ * sessions control it simply delegates.
+ *
+ * For plain HTTP with the default factory, and for HTTPS with a layered
+ * factory (the case of JMeter's own), the name is resolved, the socket
+ * connected and the handshake started here, one step at a time. With any
+ * other factory, as the one JMeter installs to emulate slow connections, the
+ * whole creation of the socket is recorded as the connect phase and the
+ * name is resolved by the JVM.
+ *
+ * The factories are installed for http and https in the commons-httpclient
+ * protocol registry, as JMeter does for its own. The registry takes a
+ * protocol as secure if its factory is, so for http the factory is wrapped
+ * to expose only its plain side.
+ */
+public final class PhaseTimingSocketFactory implements SecureProtocolSocketFactory {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String[] SCHEMES = new String[] { "http", "https" };
+
+    private static Protocol[] installed;
+
+    private static Protocol[] originals;
+
+    private final ProtocolSocketFactory delegate;
+
+    private PhaseTimingSocketFactory(ProtocolSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the factories registered for http and https, unless already done.
+     */
+    public static synchronized void install() {
+        if (installed != null) {
+            return;
+        }
+        originals = new Protocol[SCHEMES.length];
+        installed = new Protocol[SCHEMES.length];
+        for (int i = 0; i < SCHEMES.length; i++) {
+            Protocol original = Protocol.getProtocol(SCHEMES[i]);
+            PhaseTimingSocketFactory factory = new PhaseTimingSocketFactory(original.getSocketFactory());
+            Protocol timed = new Protocol(SCHEMES[i], original.isSecure() ? factory : new Plain(factory), original.getDefaultPort());
+            originals[i] = original;
+            installed[i] = timed;
+            Protocol.registerProtocol(SCHEMES[i], timed);
+        }
+        log.info("installed connection phase timing and name resolution");
+    }
+
+    /**
+     * Restores the factories found by {@link #install()}, if still in place.
+     */
+    public static synchronized void uninstall() {
+        if (installed == null) {
+            return;
+        }
+        for (int i = 0; i < SCHEMES.length; i++) {
+            if (Protocol.getProtocol(SCHEMES[i]) == installed[i]) {
+                Protocol.registerProtocol(SCHEMES[i], originals[i]);
+            }
+        }
+        installed = null;
+        originals = null;
+    }
+
+    public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+        return createSocket(host, port, null, 0, null);
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException, UnknownHostException {
+        return createSocket(host, port, localAddress, localPort, null);
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort, HttpConnectionParams params) throws IOException,
+            UnknownHostException, ConnectTimeoutException {
+        PhaseTimer timer = PhaseTimer.current();
+        boolean layered = delegate instanceof SecureProtocolSocketFactory;
+        boolean plain = delegate.getClass() == DefaultProtocolSocketFactory.class;
+        TlsSessions sessions = TlsSessions.getBound();
+        if ((timer == null && DnsCache.getBound() == null && sessions == null) || !(layered || plain)) {
+            long start = System.currentTimeMillis();
+            Socket socket = params == null ? delegate.createSocket(host, port, localAddress, localPort) : delegate.createSocket(host, port,
+                    localAddress, localPort, params);
+            if (timer != null) {
+                timer.mark(PhaseTimer.CONNECT, start, System.currentTimeMillis());
+            }
+            return socket;
+        }
+        long start = System.currentTimeMillis();
+        InetAddress address = DnsCache.lookup(host);
+        long resolved = System.currentTimeMillis();
+        if (timer != null) {
+            timer.mark(PhaseTimer.DNS, start, resolved);
+        }
+        Socket socket = new Socket();
+        int timeout = params == null ? 0 : params.getConnectionTimeout();
+        try {
+            if (localAddress != null) {
+                socket.bind(new InetSocketAddress(localAddress, localPort));
+            }
+            socket.connect(new InetSocketAddress(address, port), timeout);
+        } catch (SocketTimeoutException e) {
+            closeQuietly(socket);
+            throw new ConnectTimeoutException("The host did not accept the connection within timeout of " + timeout + " ms");
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        long connected = System.currentTimeMillis();
+        if (timer != null) {
+            timer.mark(PhaseTimer.CONNECT, resolved, connected);
+        }
+        if (!layered) {
+            return socket;
+        }
+        if (sessions != null) {
+            SSLSocket secure = sessions.handshake(socket, host, port);
+            if (timer != null) {
+                timer.mark(PhaseTimer.TLS, connected, System.currentTimeMillis());
+            }
+            return secure;
+        }
+        Socket secure = ((SecureProtocolSocketFactory) delegate).createSocket(socket, host, port, true);
+        if (secure instanceof SSLSocket) {
+            ((SSLSocket) secure).startHandshake();
+            if (timer != null) {
+                timer.mark(PhaseTimer.TLS, connected, System.currentTimeMillis());
+            }
+        }
+        return secure;
+    }
+
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+        return ((SecureProtocolSocketFactory) delegate).createSocket(socket, host, port, autoClose);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public boolean equals(Object obj) {
+        return obj instanceof PhaseTimingSocketFactory && ((PhaseTimingSocketFactory) obj).delegate.equals(delegate);
+    }
+
+    public int hashCode() {
+        return delegate.hashCode();
+    }
+
+    /**
+     * A factory for plain connections, delegating to a timing one.
+     */
+    private static final class Plain implements ProtocolSocketFactory {
+        private final PhaseTimingSocketFactory factory;
+
+        Plain(PhaseTimingSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+            return factory.createSocket(host, port);
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException, UnknownHostException {
+            return factory.createSocket(host, port, localAddress, localPort);
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localAddress, int localPort, HttpConnectionParams params)
+                throws IOException, UnknownHostException, ConnectTimeoutException {
+            return factory.createSocket(host, port, localAddress, localPort, params);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import smartrics.jmeter.sampler.MyRequestEntity;
+
+/**
+ * An HTTP/1.1 request serialised to bytes, ready to be written on a socket
+ * by the transports that do not go through commons-httpclient.
+ *
+ * The target address is resolved when the request is created, so that the
+ * name resolution happens in the sampling thread, with the
+ * {@link DnsCache} bound to it if any.
+ */
+public final class RawHttpRequest {
+
+    private static final String CRLF = "\r\n";
+
+    private final URL url;
+    private final String method;
+    private final InetSocketAddress address;
+    private final long resolveStart;
+    private final long resolveEnd;
+    private final DnsCache.Lookup lookup;
+    private final byte[] head;
+    private final MyRequestEntity entity;
+
+    /**
+     * @param url
+     *            the target of the request
+     * @param method
+     *            the HTTP method
+     * @param headers
+     *            the headers as name/value pairs; Host, Content-Length,
+     *            Content-Type and Content-Encoding are added if needed
+     * @param keepAlive
+     *            whether the connection should be kept open after the
+     *            response
+     * @param entity
+     *            the body, or null
+     */
+    public RawHttpRequest(URL url, String method, List<String[]> headers, boolean keepAlive, MyRequestEntity entity) {
+        this.url = url;
+        this.method = method;
+        this.entity = entity;
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        this.resolveStart = System.currentTimeMillis();
+        DnsCache cache = DnsCache.getBound();
+        if (cache != null) {
+            this.address = resolve(cache, url.getHost(), port);
+            this.lookup = DnsCache.takeLookup();
+        } else {
+            this.address = new InetSocketAddress(url.getHost(), port);
+            this.lookup = null;
+        }
+        this.resolveEnd = System.currentTimeMillis();
+        String file = url.getFile();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1").append(CRLF);
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append(CRLF);
+        boolean hasType = false;
+        for (String[] h : headers) {
+            if ("Host".equalsIgnoreCase(h[0]) || "Content-Length".equalsIgnoreCase(h[0]) || "Connection".equalsIgnoreCase(h[0])) {
+                continue;
+            }
+            if (entity != null && entity.getContentEncoding() != null && "Content-Encoding".equalsIgnoreCase(h[0])) {
+                continue;
+            }
+            hasType |= "Content-Type".equalsIgnoreCase(h[0]);
+            sb.append(h[0]).append(": ").append(h[1]).append(CRLF);
+        }
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append(CRLF);
+        if (entity != null) {
+            if (!hasType && entity.getContentType() != null) {
+                sb.append("Content-Type: ").append(entity.getContentType()).append(CRLF);
+            }
+            if (entity.getContentEncoding() != null) {
+                sb.append("Content-Encoding: ").append(entity.getContentEncoding()).append(CRLF);
+            }
+            sb.append("Content-Length: ").append(entity.getContentLength()).append(CRLF);
+        }
+        sb.append(CRLF);
+        try {
+            this.head = sb.toString().getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static InetSocketAddress resolve(DnsCache cache, String host, int port) {
+        try {
+            return new InetSocketAddress(cache.resolve(host), port);
+        } catch (UnknownHostException e) {
+            // unresolved, as InetSocketAddress does: connecting fails
+            return InetSocketAddress.createUnresolved(host, port);
+        }
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the resolution of the target address by the bound
+     *         {@link DnsCache}, null if resolved by the JVM
+     */
+    public DnsCache.Lookup getLookup() {
+        return lookup;
+    }
+
+    /**
+     * @return when the resolution of the target address started
+     */
+    public long getResolveStart() {
+        return resolveStart;
+    }
+
+    /**
+     * @return when the target address was resolved
+     */
+    public long getResolveEnd() {
+        return resolveEnd;
+    }
+
+    /**
+     * @return the request line and headers, as sent
+     */
+    public String getHeadAsString() {
+        try {
+            return new String(head, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes of the request, body included
+     */
+    public long getLength() {
+        return head.length + (entity == null ? 0 : entity.getContentLength());
+    }
+
+    /**
+     * @return fresh buffers holding the whole request, to be written in
+     *         order. Each call returns new buffers so that a request can be
+     *         sent again, for example after a stale connection is detected.
+     */
+    public ByteBuffer[] toBuffers() {
+        if (entity == null) {
+            return new ByteBuffer[] { ByteBuffer.wrap(head) };
+        }
+        ByteBuffer[] body = entity.toBuffers();
+        ByteBuffer[] all = new ByteBuffer[body.length + 1];
+        all[0] = ByteBuffer.wrap(head);
+        System.arraycopy(body, 0, all, 1, body.length);
+        return all;
+    }
+}
@@ -0,0 +1,396 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An HTTP/1.1 response parsed incrementally from the bytes pushed to it, as
+ * they come from a socket.
+ *
+ * It understands bodies delimited by Content-Length, chunked bodies and bodies
+ * terminated by the connection close. Bytes following the end of the response
+ * are left in the buffer, so that pipelined responses can be parsed in
+ * sequence from the same buffer. The body is decoded according to its content
+ * coding and kept according to the retention mode, see {@link ResponseReader}.
+ */
+public final class RawHttpResponse {
+
+    private static final int STATUS_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int LENGTH_BODY = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_END = 5;
+    private static final int TRAILERS = 6;
+    private static final int EOF_BODY = 7;
+    private static final int DONE = 8;
+
+    private static final int MAX_LINE = 64 * 1024;
+
+    private final boolean headRequest;
+    private final String retention;
+    private final int maxBytes;
+
+    private int state = STATUS_LINE;
+    private final StringBuilder line = new StringBuilder(128);
+    private final StringBuilder headers = new StringBuilder(512);
+    private byte[] scratch;
+
+    private String protocol;
+    private int statusCode;
+    private String statusText;
+    private long contentLength = -1;
+    private boolean chunked;
+    private boolean keepAlive;
+    private String contentType;
+    private String contentEncoding;
+    private String location;
+    private long remaining;
+    private long wireBytes;
+    private ResponseReader.Sink sink;
+    private ResponseReader.Inspector inspector;
+
+    /**
+     * @param headRequest
+     *            true if the request was a HEAD, whose response has no body
+     * @param retention
+     *            how much of the body to keep
+     * @param maxBytes
+     *            the bytes kept when truncating
+     */
+    public RawHttpResponse(boolean headRequest, String retention, int maxBytes) {
+        this.headRequest = headRequest;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gives the body, once decoded, to the inspector as it is read.
+     */
+    public void inspect(ResponseReader.Inspector inspector) {
+        this.inspector = inspector;
+    }
+
+    /**
+     * Consumes bytes from the buffer until the response is complete or the
+     * buffer is exhausted.
+     *
+     * @return true if the response is complete
+     * @throws IOException
+     *             if the bytes are not a valid HTTP response
+     */
+    public boolean feed(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        try {
+            while (state != DONE && buf.hasRemaining()) {
+                switch (state) {
+                case STATUS_LINE:
+                case HEADERS:
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILERS:
+                    if (readLine(buf)) {
+                        processLine();
+                    }
+                    break;
+                case LENGTH_BODY:
+                case CHUNK_DATA:
+                    readBody(buf, remaining);
+                    if (remaining == 0) {
+                        state = state == LENGTH_BODY ? DONE : CHUNK_END;
+                    }
+                    break;
+                case EOF_BODY:
+                    readBody(buf, Long.MAX_VALUE);
+                    break;
+                }
+            }
+        } finally {
+            wireBytes += buf.position() - start;
+        }
+        return state == DONE;
+    }
+
+    /**
+     * To be called when the connection is closed by the server.
+     *
+     * @return true if the response is complete
+     * @throws IOException
+     *             if the response has been truncated by the close
+     */
+    public boolean endOfStream() throws IOException {
+        if (state == EOF_BODY) {
+            state = DONE;
+        }
+        if (state != DONE) {
+            throw new IOException("Connection closed before the response was complete");
+        }
+        return true;
+    }
+
+    /**
+     * @return true if no byte of the response has been received yet
+     */
+    public boolean isEmpty() {
+        return wireBytes == 0;
+    }
+
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    private boolean readLine(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            char c = (char) (buf.get() & 0xff);
+            if (c == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return true;
+            }
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("Response line too long");
+            }
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void processLine() throws IOException {
+        String l = line.toString();
+        line.setLength(0);
+        switch (state) {
+        case STATUS_LINE:
+            if (l.length() == 0) {
+                // tolerate empty lines before the status line
+                return;
+            }
+            parseStatusLine(l);
+            headers.append(l).append('\n');
+            state = HEADERS;
+            break;
+        case HEADERS:
+            if (l.length() == 0) {
+                endOfHeaders();
+            } else {
+                headers.append(l).append('\n');
+                parseHeader(l);
+            }
+            break;
+        case CHUNK_SIZE:
+            int semi = l.indexOf(';');
+            String size = (semi < 0 ? l : l.substring(0, semi)).trim();
+            try {
+                remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + l);
+            }
+            state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+            break;
+        case CHUNK_END:
+            state = CHUNK_SIZE;
+            break;
+        case TRAILERS:
+            if (l.length() == 0) {
+                state = DONE;
+            }
+            break;
+        }
+    }
+
+    private void parseStatusLine(String l) throws IOException {
+        int sp1 = l.indexOf(' ');
+        if (sp1 < 0 || !l.startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + l);
+        }
+        int sp2 = l.indexOf(' ', sp1 + 1);
+        protocol = l.substring(0, sp1);
+        try {
+            statusCode = Integer.parseInt(sp2 < 0 ? l.substring(sp1 + 1).trim() : l.substring(sp1 + 1, sp2));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + l);
+        }
+        statusText = sp2 < 0 ? "" : l.substring(sp2 + 1);
+        keepAlive = !"HTTP/1.0".equals(protocol);
+    }
+
+    private void parseHeader(String l) throws IOException {
+        int colon = l.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = l.substring(0, colon).trim();
+        String value = l.substring(colon + 1).trim();
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            try {
+                contentLength = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + value);
+            }
+        } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+            chunked = value.toLowerCase().indexOf("chunked") >= 0;
+        } else if ("Connection".equalsIgnoreCase(name)) {
+            if ("close".equalsIgnoreCase(value)) {
+                keepAlive = false;
+            } else if ("keep-alive".equalsIgnoreCase(value)) {
+                keepAlive = true;
+            }
+        } else if ("Content-Type".equalsIgnoreCase(name)) {
+            contentType = value;
+        } else if ("Content-Encoding".equalsIgnoreCase(name)) {
+            contentEncoding = value;
+        } else if ("Location".equalsIgnoreCase(name)) {
+            location = value;
+        }
+    }
+
+    private void endOfHeaders() {
+        if (statusCode >= 100 && statusCode < 200) {
+            // interim response (e.g. 100 Continue): the real one follows
+            headers.setLength(0);
+            contentLength = -1;
+            chunked = false;
+            state = STATUS_LINE;
+            return;
+        }
+        int hint = contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : -1;
+        sink = ResponseReader.newSink(retention, maxBytes, hint);
+        sink.decode(contentEncoding);
+        sink.inspect(inspector);
+        if (headRequest || statusCode == 204 || statusCode == 304) {
+            state = DONE;
+        } else if (chunked) {
+            state = CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = contentLength == 0 ? DONE : LENGTH_BODY;
+        } else {
+            keepAlive = false;
+            state = EOF_BODY;
+        }
+    }
+
+    private void readBody(ByteBuffer buf, long max) throws IOException {
+        int n = (int) Math.min(buf.remaining(), max);
+        if (buf.hasArray()) {
+            sink.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+            buf.position(buf.position() + n);
+        } else {
+            if (scratch == null) {
+                scratch = new byte[8192];
+            }
+            int left = n;
+            while (left > 0) {
+                int k = Math.min(left, scratch.length);
+                buf.get(scratch, 0, k);
+                sink.write(scratch, 0, k);
+                left -= k;
+            }
+        }
+        if (max != Long.MAX_VALUE) {
+            remaining -= n;
+        }
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getStatusText() {
+        return statusText;
+    }
+
+    /**
+     * @return the status line and the headers, one per line
+     */
+    public String getHeaders() {
+        return headers.toString();
+    }
+
+    /**
+     * @return the value of the first header of the given name, null if
+     *         absent
+     */
+    public String getHeader(String name) {
+        int start = 0;
+        while (start < headers.length()) {
+            int end = headers.indexOf("\n", start);
+            if (end < 0) {
+                end = headers.length();
+            }
+            int colon = headers.indexOf(":", start);
+            if (colon > start && colon < end && headers.substring(start, colon).trim().equalsIgnoreCase(name)) {
+                return headers.substring(colon + 1, end).trim();
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return true if the connection can be used for another request
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return the body bytes received, after decoding and before any
+     *         retention
+     */
+    public long getBodyLength() {
+        return sink == null ? 0 : sink.getCount();
+    }
+
+    /**
+     * @return the body bytes received, before decoding
+     */
+    public long getBodyWireLength() {
+        return sink == null ? 0 : sink.getWireCount();
+    }
+
+    /**
+     * @return all the bytes of the response received from the connection
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return the body as kept by the retention mode
+     */
+    public byte[] getBody() {
+        return sink == null ? new byte[0] : sink.getData();
+    }
+}
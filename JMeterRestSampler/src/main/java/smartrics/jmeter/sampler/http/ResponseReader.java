@@ -0,0 +1,359 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import smartrics.jmeter.sampler.RestSampleResult;
+
+/**
+ * Reads a response body keeping only as much of it as requested.
+ *
+ * <ul>
+ * <li>{@link #FULL}: the whole body is kept, as HTTPSampler2 does.</li>
+ * <li>{@link #TRUNCATED}: only the first bytes of the body are kept.</li>
+ * <li>{@link #DIGEST}: only the hex MD5 digest of the body is kept, computed
+ * while reading.</li>
+ * <li>{@link #DISCARD}: nothing is kept.</li>
+ * </ul>
+ * In all the modes the body is read to the end through a per thread buffer,
+ * the latency is set at the first byte read and the number of bytes read is
+ * stored in the result. The bytes kept are accumulated in a per thread
+ * buffer as well, so that reading a body allocates only the array handed to
+ * the result.
+ *
+ * Bodies with a gzip or deflate content coding are decoded while read, see
+ * {@link ContentCoding}; the modes apply to the decoded body. The bytes
+ * stored in the result are then the ones received, and the decoded ones are
+ * stored apart in a {@link RestSampleResult}.
+ *
+ * An {@link Inspector} can be given the decoded body as it is read, whatever
+ * the mode, for example to check it without keeping it.
+ */
+public final class ResponseReader {
+
+    public static final String FULL = "full";
+
+    public static final String TRUNCATED = "truncated";
+
+    public static final String DIGEST = "digest";
+
+    public static final String DISCARD = "discard";
+
+    public static final String[] MODES = new String[] { FULL, TRUNCATED, DIGEST, DISCARD };
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // per thread buffers grown beyond this size are dropped after use
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte[] HEX = new byte[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<Kept> keptBuffers = new ThreadLocal<Kept>() {
+        protected Kept initialValue() {
+            return new Kept(BUFFER_SIZE, true);
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    private ResponseReader() {
+    }
+
+    /**
+     * Looks at a response body as it is read, once decoded.
+     */
+    public interface Inspector {
+        void inspect(byte[] b, int off, int len);
+    }
+
+    /**
+     * A growable buffer of the bytes kept; when reused by the thread owning
+     * it, it is emptied once its content is handed out.
+     */
+    private static final class Kept {
+        private byte[] buf;
+        private int size;
+        private final boolean reused;
+
+        Kept(int capacity, boolean reused) {
+            this.buf = new byte[capacity];
+            this.reused = reused;
+        }
+
+        void ensure(int capacity) {
+            if (capacity > buf.length) {
+                byte[] grown = new byte[Math.max(capacity, Math.min(buf.length * 2, Integer.MAX_VALUE - 8))];
+                System.arraycopy(buf, 0, grown, 0, size);
+                buf = grown;
+            }
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(size + len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        byte[] take() {
+            byte[] data;
+            if (!reused && size == buf.length) {
+                data = buf;
+            } else {
+                data = new byte[size];
+                System.arraycopy(buf, 0, data, 0, size);
+            }
+            size = 0;
+            if (reused && buf.length > MAX_RETAINED) {
+                buf = new byte[BUFFER_SIZE];
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Accumulates a response body pushed to it, keeping as much of it as the
+     * retention mode requires.
+     */
+    public static final class Sink {
+        private final Kept kept;
+        private final MessageDigest digest;
+        private final long limit;
+        private long count;
+        private long wireCount;
+        private ContentCoding.Decoder decoder;
+        private Inspector inspector;
+
+        private Sink(String mode, int maxBytes, int length, MessageDigest digest, Kept reusable) {
+            if (DIGEST.equals(mode)) {
+                this.digest = digest;
+                this.digest.reset();
+                this.kept = null;
+                this.limit = 0;
+            } else if (TRUNCATED.equals(mode)) {
+                this.digest = null;
+                this.limit = Math.max(maxBytes, 0);
+                this.kept = kept(reusable, (int) (length > 0 ? Math.min(length, limit) : Math.min(limit, BUFFER_SIZE)));
+            } else if (DISCARD.equals(mode)) {
+                this.digest = null;
+                this.kept = null;
+                this.limit = 0;
+            } else {
+                this.digest = null;
+                this.limit = Long.MAX_VALUE;
+                this.kept = kept(reusable, length > 0 ? length : BUFFER_SIZE);
+            }
+        }
+
+        private static Kept kept(Kept reusable, int capacity) {
+            if (reusable == null) {
+                return new Kept(capacity, false);
+            }
+            reusable.size = 0;
+            reusable.ensure(capacity);
+            return reusable;
+        }
+
+        /**
+         * Decodes the body written from now on according to the
+         * Content-Encoding given; bodies not encoded, or encoded with an
+         * unsupported coding, are kept as written.
+         */
+        public void decode(String contentEncoding) {
+            decoder = ContentCoding.decoder(contentEncoding);
+        }
+
+        /**
+         * Gives the body written from now on, once decoded, to the
+         * inspector.
+         */
+        public void inspect(Inspector inspector) {
+            this.inspector = inspector;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            wireCount += len;
+            if (decoder != null) {
+                decoder.decode(b, off, len, this);
+            } else {
+                store(b, off, len);
+            }
+        }
+
+        void store(byte[] b, int off, int len) {
+            if (kept != null && count < limit) {
+                kept.write(b, off, (int) Math.min(len, limit - count));
+            }
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            if (inspector != null) {
+                inspector.inspect(b, off, len);
+            }
+            count += len;
+        }
+
+        /**
+         * @return the number of bytes written so far, after decoding
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of bytes written so far, as received
+         */
+        public long getWireCount() {
+            return wireCount;
+        }
+
+        /**
+         * To be called once, when the whole body has been written.
+         *
+         * @return the data to store in the result as response data
+         */
+        public byte[] getData() {
+            if (decoder != null) {
+                decoder.finish();
+            }
+            if (digest != null) {
+                return toHex(digest.digest());
+            }
+            if (kept != null) {
+                return kept.take();
+            }
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Creates a sink for a body read outside of the sampling thread; it does
+     * not share any buffer with other sinks.
+     */
+    public static Sink newSink(String mode, int maxBytes, int length) {
+        MessageDigest digest = null;
+        if (DIGEST.equals(mode)) {
+            digest = newDigest();
+        }
+        return new Sink(mode, maxBytes, length, digest, null);
+    }
+
+    /**
+     * Reads the stream to the end.
+     *
+     * @param res
+     *            the result to set latency and byte count on
+     * @param in
+     *            the response body
+     * @param mode
+     *            one of the retention modes; unknown modes are treated as
+     *            {@link #FULL}
+     * @param maxBytes
+     *            bytes kept in {@link #TRUNCATED} mode
+     * @param length
+     *            the expected length of the body, or a negative value if
+     *            unknown
+     * @return the data to store in the result as response data
+     */
+    public static byte[] read(SampleResult res, InputStream in, String mode, int maxBytes, int length) throws IOException {
+        return read(res, in, mode, maxBytes, length, null);
+    }
+
+    /**
+     * Reads the stream to the end, decoding it according to the
+     * Content-Encoding given.
+     *
+     * @see #read(SampleResult, InputStream, String, int, int)
+     */
+    public static byte[] read(SampleResult res, InputStream in, String mode, int maxBytes, int length, String contentEncoding) throws IOException {
+        return read(res, in, mode, maxBytes, length, contentEncoding, null);
+    }
+
+    /**
+     * Reads the stream to the end, decoding it according to the
+     * Content-Encoding given and giving the decoded body to the inspector,
+     * if any.
+     *
+     * @see #read(SampleResult, InputStream, String, int, int)
+     */
+    public static byte[] read(SampleResult res, InputStream in, String mode, int maxBytes, int length, String contentEncoding,
+            Inspector inspector) throws IOException {
+        Sink sink = new Sink(mode, maxBytes, length, DIGEST.equals(mode) ? digests.get() : null, keptBuffers.get());
+        sink.decode(contentEncoding);
+        sink.inspect(inspector);
+        return read(res, in, sink, buffers.get());
+    }
+
+    /**
+     * Reads the stream to the end into the sink, through the given buffer.
+     * Meant for threads too short lived to benefit from the per thread
+     * buffers.
+     *
+     * @return the data to store in the result as response data
+     */
+    public static byte[] read(SampleResult res, InputStream in, Sink sink, byte[] buffer) throws IOException {
+        boolean first = true;
+        int n;
+        while ((n = in.read(buffer)) > -1) {
+            if (first) {
+                res.latencyEnd();
+                first = false;
+            }
+            sink.write(buffer, 0, n);
+        }
+        if (first) {
+            res.latencyEnd();
+        }
+        res.setBytes((int) Math.min(sink.getWireCount(), Integer.MAX_VALUE));
+        if (res instanceof RestSampleResult) {
+            ((RestSampleResult) res).setDecodedBytes(sink.getCount());
+        }
+        return sink.getData();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static byte[] toHex(byte[] bytes) {
+        byte[] hex = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return hex;
+    }
+}
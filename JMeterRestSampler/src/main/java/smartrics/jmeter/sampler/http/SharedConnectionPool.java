@@ -0,0 +1,236 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A connection pool shared by all the RestSamplers of a test, regardless of
+ * the JMeter thread they run in.
+ *
+ * HTTPSampler2 gives each thread its own HttpClient backed by a single
+ * connection; here connections are leased from one pool with per host and
+ * total limits, and connections idle for longer than a given time are evicted
+ * by a background thread. The time spent by each thread waiting for a lease is
+ * tracked so that it can be reported with the sample.
+ *
+ * The limits are those of the test: the first sampler to configure the pool
+ * sets them, the differing limits of the others are logged and ignored.
+ */
+public class SharedConnectionPool {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final int DEFAULT_MAX_TOTAL = 200;
+
+    public static final int DEFAULT_MAX_PER_HOST = 20;
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static SharedConnectionPool instance;
+
+    private final TimedConnectionManager manager;
+    private final HttpClient client;
+    private final IdleConnectionTimeoutThread evictor;
+
+    // guarded by this: the limits set by the first configuration, if any
+    private String configuredBy;
+    private int maxTotal;
+    private int maxPerHost;
+    private long idleTimeout;
+
+    /**
+     * Snapshot of the pool usage, as seen by a sample.
+     */
+    public static class Stats {
+        private final int leased;
+        private final int available;
+        private final long waitTime;
+
+        Stats(int leased, int available, long waitTime) {
+            this.leased = leased;
+            this.available = available;
+            this.waitTime = waitTime;
+        }
+
+        /**
+         * @return number of connections in use across the whole pool
+         */
+        public int getLeased() {
+            return leased;
+        }
+
+        /**
+         * @return number of idle connections ready to be leased
+         */
+        public int getAvailable() {
+            return available;
+        }
+
+        /**
+         * @return milliseconds the calling thread waited to lease its
+         *         connection(s)
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        public String toString() {
+            return "leased: " + leased + ", available: " + available + ", wait: " + waitTime + "ms";
+        }
+    }
+
+    /**
+     * A MultiThreadedHttpConnectionManager that measures, per thread, the time
+     * spent waiting for a connection to become available, and counts the
+     * connections leased: httpclient 3.1 does not tell them apart from those
+     * in the pool.
+     */
+    private static class TimedConnectionManager extends MultiThreadedHttpConnectionManager {
+        private final ThreadLocal<long[]> waitNanos = new ThreadLocal<long[]>() {
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        private final AtomicInteger leased = new AtomicInteger();
+
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+            long start = System.nanoTime();
+            try {
+                HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+                leased.incrementAndGet();
+                return connection;
+            } finally {
+                waitNanos.get()[0] += System.nanoTime() - start;
+            }
+        }
+
+        public void releaseConnection(HttpConnection conn) {
+            leased.decrementAndGet();
+            super.releaseConnection(conn);
+        }
+
+        int getLeased() {
+            return Math.max(leased.get(), 0);
+        }
+
+        long resetWaitTime() {
+            long[] w = waitNanos.get();
+            long t = w[0];
+            w[0] = 0;
+            return t;
+        }
+    }
+
+    private SharedConnectionPool() {
+        manager = new TimedConnectionManager();
+        client = new HttpClient(manager);
+        evictor = new IdleConnectionTimeoutThread();
+        evictor.setName("RestSampler-pool-evictor");
+        evictor.setDaemon(true);
+        evictor.addConnectionManager(manager);
+        apply(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+        evictor.start();
+    }
+
+    /**
+     * @return the pool for this test, creating it if necessary.
+     */
+    public static synchronized SharedConnectionPool getInstance() {
+        if (instance == null) {
+            instance = new SharedConnectionPool();
+            log.info("created shared connection pool");
+        }
+        return instance;
+    }
+
+    /**
+     * Closes all the pooled connections and stops the eviction thread. A new
+     * pool will be created at the next call of {@link #getInstance()}.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.evictor.shutdown();
+            instance.manager.shutdown();
+            instance = null;
+            log.info("shut down shared connection pool");
+        }
+    }
+
+    /**
+     * Sets the limits of the pool, unless already set by another sampler: a
+     * warning is logged then if they differ. Non positive values leave the
+     * default setting untouched.
+     *
+     * @param name
+     *            the sampler setting the limits, for the log
+     */
+    public synchronized void configure(String name, int maxTotal, int maxPerHost, long idleTimeout) {
+        if (configuredBy == null) {
+            configuredBy = name;
+            this.maxTotal = maxTotal;
+            this.maxPerHost = maxPerHost;
+            this.idleTimeout = idleTimeout;
+            apply(maxTotal, maxPerHost, idleTimeout);
+        } else if (maxTotal != this.maxTotal || maxPerHost != this.maxPerHost || idleTimeout != this.idleTimeout) {
+            log.warn(name + ": pool limits " + maxTotal + " total, " + maxPerHost + " per host, idle timeout " + idleTimeout
+                    + "ms ignored, the shared pool keeps those of " + configuredBy + ": " + this.maxTotal + ", " + this.maxPerHost + ", "
+                    + this.idleTimeout + "ms");
+        }
+    }
+
+    private void apply(int maxTotal, int maxPerHost, long idleTimeout) {
+        if (maxTotal > 0) {
+            manager.getParams().setMaxTotalConnections(maxTotal);
+        }
+        if (maxPerHost > 0) {
+            manager.getParams().setDefaultMaxConnectionsPerHost(maxPerHost);
+        }
+        if (idleTimeout > 0) {
+            evictor.setConnectionTimeout(idleTimeout);
+            evictor.setTimeoutInterval(Math.max(idleTimeout / 2, 1000));
+        }
+    }
+
+    /**
+     * @return the client leasing connections from this pool. Being shared, its
+     *         state must not be used: the caller has to pass its own
+     *         HostConfiguration and HttpState at execution.
+     */
+    public HttpClient getHttpClient() {
+        return client;
+    }
+
+    /**
+     * Returns the pool usage and the time the calling thread waited for
+     * connections since the previous call.
+     */
+    public Stats collectStats() {
+        int inUse = manager.getLeased();
+        // all the connections open, leased or not
+        int inPool = manager.getConnectionsInPool();
+        long wait = manager.resetWaitTime() / 1000000;
+        return new Stats(inUse, Math.max(inPool - inUse, 0), wait);
+    }
+}
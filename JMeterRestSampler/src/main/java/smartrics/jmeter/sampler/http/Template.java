@@ -0,0 +1,140 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jmeter.engine.util.CompoundVariable;
+
+/**
+ * A text with JMeter variables and functions, compiled once into literal
+ * segments and slots, one for each variable or function.
+ *
+ * Rendering only evaluates the slots and appends them between the segments,
+ * instead of scanning the whole text for variables every time as JMeter
+ * does for the properties of a sampler. A <code>\${</code> is a literal
+ * <code>${</code>, as for JMeter.
+ */
+public final class Template {
+
+    private final String source;
+    private final String[] literals;
+    private final CompoundVariable[] slots;
+
+    private Template(String source, List<String> literals, List<CompoundVariable> slots) {
+        this.source = source;
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.slots = slots.toArray(new CompoundVariable[slots.size()]);
+    }
+
+    public static Template compile(String text) {
+        String source = text == null ? "" : text;
+        List<String> literals = new ArrayList<String>();
+        List<CompoundVariable> slots = new ArrayList<CompoundVariable>();
+        StringBuilder literal = new StringBuilder();
+        int from = 0;
+        int start;
+        while ((start = source.indexOf("${", from)) >= 0) {
+            if (start > 0 && source.charAt(start - 1) == '\\') {
+                literal.append(source, from, start - 1).append("${");
+                from = start + 2;
+                continue;
+            }
+            int end = closing(source, start + 2);
+            if (end < 0) {
+                break;
+            }
+            literal.append(source, from, start);
+            literals.add(literal.toString());
+            literal.setLength(0);
+            slots.add(new CompoundVariable(source.substring(start, end + 1)));
+            from = end + 1;
+        }
+        literal.append(source, from, source.length());
+        literals.add(literal.toString());
+        return new Template(source, literals, slots);
+    }
+
+    /**
+     * @return the index of the brace closing the expression whose content
+     *         starts at the given index, -1 if not closed
+     */
+    private static int closing(String text, int from) {
+        int depth = 1;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the text this template has been compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if the text has no variable nor function
+     */
+    public boolean isConstant() {
+        return slots.length == 0;
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * @return the literal segment before the slot of the given index; the
+     *         one of index {@link #getSlotCount()} is the last segment
+     */
+    public String getLiteral(int index) {
+        return literals[index];
+    }
+
+    /**
+     * @return the value of the slot of the given index
+     */
+    public String evaluate(int index) {
+        String value = slots[index].execute();
+        return value == null ? "" : value;
+    }
+
+    public void render(StringBuilder sb) {
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(literals[i]).append(evaluate(i));
+        }
+        sb.append(literals[slots.length]);
+    }
+
+    public String render() {
+        if (slots.length == 0) {
+            return literals[0];
+        }
+        StringBuilder sb = new StringBuilder(source.length() + 16 * slots.length);
+        render(sb);
+        return sb.toString();
+    }
+}
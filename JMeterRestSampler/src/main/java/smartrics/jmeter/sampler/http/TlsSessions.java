@@ -0,0 +1,313 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Controls how the RestSampler resumes TLS sessions.
+ *
+ * <ul>
+ * <li>{@link #JMETER}: the sessions are handled by the JMeter SSL manager.</li>
+ * <li>{@link #SHARED}: all the threads share one session cache, so that a
+ * session established by one is resumed by all: returning clients.</li>
+ * <li>{@link #PER_USER}: each thread, and each virtual user of a thread, has
+ * its own session cache.</li>
+ * <li>{@link #NONE}: each handshake is made with an SSL context of its own,
+ * whose session cache is empty, so that every connection makes a full one
+ * whatever the other threads do: brand new clients.</li>
+ * </ul>
+ * As JMeter does, the certificates of the servers are not verified.
+ *
+ * There is a sessions control per mode, see {@link #forMode(String)}; each
+ * sampler binds its own to the thread while sampling, see
+ * {@link #bind(TlsSessions)}, the threads bound to none leaving the sessions
+ * to JMeter.
+ *
+ * Full and resumed handshakes are counted per mode over the test, and the
+ * last handshake of each thread is kept for the sampler to report.
+ */
+public final class TlsSessions {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String JMETER = "jmeter";
+
+    public static final String SHARED = "shared";
+
+    public static final String PER_USER = "per_user";
+
+    public static final String NONE = "none";
+
+    public static final String[] MODES = new String[] { JMETER, SHARED, PER_USER, NONE };
+
+    private static final String PROTOCOL = "TLS";
+
+    private static final TrustManager[] TRUST_ALL = new TrustManager[] { new X509TrustManager() {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    } };
+
+    private static final ThreadLocal<String> user = new ThreadLocal<String>();
+
+    private static final ThreadLocal<Handshake> lastHandshake = new ThreadLocal<Handshake>();
+
+    private static final ThreadLocal<TlsSessions> bound = new ThreadLocal<TlsSessions>();
+
+    private static final ConcurrentMap<String, TlsSessions> controls = new ConcurrentHashMap<String, TlsSessions>();
+
+    private final String mode;
+    private final SSLContext shared;
+    private final ConcurrentHashMap<String, SSLContext> perUser = new ConcurrentHashMap<String, SSLContext>();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakeTime = new AtomicLong();
+    private final AtomicLong resumedHandshakeTime = new AtomicLong();
+
+    private TlsSessions(String mode) throws GeneralSecurityException {
+        this.mode = mode;
+        this.shared = PER_USER.equals(mode) || NONE.equals(mode) ? null : newContext();
+    }
+
+    /**
+     * @return the sessions control of the given mode, created if necessary;
+     *         null if the mode is {@link #JMETER} or the SSL contexts cannot
+     *         be created
+     */
+    public static synchronized TlsSessions forMode(String mode) {
+        if (mode == null || JMETER.equals(mode)) {
+            return null;
+        }
+        TlsSessions sessions = controls.get(mode);
+        if (sessions == null) {
+            try {
+                sessions = new TlsSessions(mode);
+                controls.put(mode, sessions);
+                log.info("TLS sessions: " + mode);
+            } catch (GeneralSecurityException e) {
+                log.error("Unable to create SSL context, TLS sessions left to JMeter", e);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Drops all the sessions controls, at the end of the test, logging the
+     * handshakes counted.
+     */
+    public static synchronized void clearAll() {
+        for (TlsSessions sessions : controls.values()) {
+            log.info(sessions.toString());
+            sessions.perUser.clear();
+        }
+        controls.clear();
+    }
+
+    /**
+     * Binds a sessions control to the current thread, for the handshakes it
+     * makes.
+     *
+     * @param sessions
+     *            the control, or null to leave the sessions to JMeter
+     */
+    public static void bind(TlsSessions sessions) {
+        if (sessions == null) {
+            bound.remove();
+        } else {
+            bound.set(sessions);
+        }
+    }
+
+    /**
+     * @return the sessions control bound to the current thread, or null if
+     *         the sessions are left to JMeter
+     */
+    public static TlsSessions getBound() {
+        return bound.get();
+    }
+
+    /**
+     * Binds the current thread to a virtual user, whose sessions are kept
+     * apart from those of the other users in {@link #PER_USER} mode.
+     *
+     * @param name
+     *            the user, or null to unbind
+     */
+    public static void bindUser(String name) {
+        if (name == null) {
+            user.remove();
+        } else {
+            user.set(name);
+        }
+    }
+
+    /**
+     * @return the last handshake of the current thread, forgetting it; null
+     *         if none since the last call
+     */
+    public static Handshake takeHandshake() {
+        Handshake handshake = lastHandshake.get();
+        if (handshake != null) {
+            lastHandshake.remove();
+        }
+        return handshake;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Layers TLS over a connected socket and performs the handshake, resuming
+     * a session if the mode allows it.
+     */
+    public SSLSocket handshake(Socket socket, String host, int port) throws IOException {
+        SSLContext context = getContext();
+        SSLSocket secure = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+        long start = System.currentTimeMillis();
+        try {
+            secure.startHandshake();
+        } catch (IOException e) {
+            secure.close();
+            throw e;
+        }
+        long end = System.currentTimeMillis();
+        SSLSession session = secure.getSession();
+        // a resumed session was created by an earlier handshake
+        boolean resumed = session.getCreationTime() < start;
+        long time = end - start;
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeTime.addAndGet(time);
+        } else {
+            fullHandshakes.incrementAndGet();
+            fullHandshakeTime.addAndGet(time);
+        }
+        lastHandshake.set(new Handshake(resumed, start, end));
+        return secure;
+    }
+
+    private SSLContext getContext() throws IOException {
+        if (shared != null) {
+            return shared;
+        }
+        if (NONE.equals(mode)) {
+            try {
+                return newContext();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to create SSL context: " + e.getMessage());
+            }
+        }
+        String name = user.get();
+        if (name == null) {
+            name = Thread.currentThread().getName();
+        }
+        SSLContext context = perUser.get(name);
+        if (context == null) {
+            try {
+                SSLContext created = newContext();
+                context = perUser.putIfAbsent(name, created);
+                if (context == null) {
+                    context = created;
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to create SSL context: " + e.getMessage());
+            }
+        }
+        return context;
+    }
+
+    private static SSLContext newContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(null, TRUST_ALL, null);
+        return context;
+    }
+
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    public long getFullHandshakeTime() {
+        return fullHandshakeTime.get();
+    }
+
+    public long getResumedHandshakeTime() {
+        return resumedHandshakeTime.get();
+    }
+
+    public String toString() {
+        return "TLS sessions " + mode + ": " + getFullHandshakes() + " full handshakes in " + getFullHandshakeTime() + "ms, "
+                + getResumedHandshakes() + " resumed in " + getResumedHandshakeTime() + "ms";
+    }
+
+    /**
+     * A TLS handshake.
+     */
+    public static final class Handshake {
+        private final boolean resumed;
+        private final long startTime;
+        private final long endTime;
+
+        Handshake(boolean resumed, long startTime, long endTime) {
+            this.resumed = resumed;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        /**
+         * @return true if an earlier session was resumed
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        public long getTime() {
+            return endTime - startTime;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * The URL of the requests of a sampler, compiled from its base URL, resource
+ * and query string as typed in the RestGui.
+ *
+ * The base URL is parsed and normalised once, dropping a trailing slash. The
+ * resource and the query string are compiled in {@link Template}s, so that
+ * building the URL of a request only evaluates their variables and appends
+ * them to the path of the base. Without any variable the URL is built once.
+ *
+ * A base URL with variables is evaluated and parsed at every request.
+ */
+public final class UrlTemplate {
+
+    private static final URL UNDEFINED = parse("http://undefined.com");
+
+    private final URL base;
+    private final Template baseExpression;
+    private final Template resource;
+    private final Template query;
+    private final URL fixed;
+
+    private UrlTemplate(URL base, Template baseExpression, Template resource, Template query) {
+        this.base = base;
+        this.baseExpression = baseExpression;
+        this.resource = resource;
+        this.query = query;
+        if (base == null && baseExpression.isConstant()) {
+            this.fixed = UNDEFINED;
+        } else if (base != null && resource.isConstant() && query.isConstant()) {
+            this.fixed = toURL(base);
+        } else {
+            this.fixed = null;
+        }
+    }
+
+    /**
+     * Compiles the template of the given base URL, resource and query string,
+     * all taken before any variable replacement.
+     */
+    public static UrlTemplate compile(String baseUrl, String resource, String query) {
+        Template b = Template.compile(baseUrl);
+        return new UrlTemplate(b.isConstant() ? normalise(b.getSource()) : null, b, Template.compile(resource), Template.compile(query));
+    }
+
+    /**
+     * @return true if this template has been compiled from the given base
+     *         URL, resource and query string
+     */
+    public boolean isCompiledFrom(String baseUrl, String resource, String query) {
+        return baseExpression.getSource().equals(baseUrl == null ? "" : baseUrl) && this.resource.getSource().equals(resource == null ? "" : resource)
+                && this.query.getSource().equals(query == null ? "" : query);
+    }
+
+    /**
+     * @return the URL of a request, evaluating the variables if any; the
+     *         canned <code>http://undefined.com</code> if the base URL is not
+     *         valid
+     */
+    public URL toURL() {
+        if (fixed != null) {
+            return fixed;
+        }
+        URL b = base;
+        if (b == null) {
+            b = normalise(baseExpression.render());
+            if (b == null) {
+                return UNDEFINED;
+            }
+        }
+        return toURL(b);
+    }
+
+    private URL toURL(URL b) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(b.getFile());
+        resource.render(sb);
+        if (sb.length() > 0 && sb.charAt(0) != '/') {
+            sb.insert(0, '/');
+        }
+        int length = sb.length();
+        char separator = sb.indexOf("?") < 0 ? '?' : '&';
+        query.render(sb);
+        if (sb.length() > length) {
+            sb.insert(length, separator);
+        }
+        try {
+            return new URL(b.getProtocol(), b.getHost(), b.getPort(), sb.toString());
+        } catch (MalformedURLException e) {
+            return UNDEFINED;
+        }
+    }
+
+    /**
+     * @return the base URL without its trailing slash, null if not valid
+     */
+    private static URL normalise(String baseUrl) {
+        URL u = parse(baseUrl);
+        if (u != null) {
+            String s = u.toString();
+            if (s.endsWith("/")) {
+                u = parse(s.substring(0, s.length() - 1));
+            }
+        }
+        return u;
+    }
+
+    private static URL parse(String u) {
+        try {
+            return new URL(u);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Runs the requests of the simulated users on virtual threads. There is an
+ * executor per connection limits and timeout, shared by the RestSamplers of
+ * the test configured alike.
+ *
+ * Virtual threads are created through reflection, so that the sampler still
+ * runs on JVMs without them: there a pool of daemon platform threads is used
+ * instead. Connections are leased from a {@link NonPinningConnectionManager}
+ * so that a user waiting for a connection does not hold its carrier thread.
+ */
+public final class VirtualUserExecutor {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final int DEFAULT_MAX_TOTAL = SharedConnectionPool.DEFAULT_MAX_TOTAL;
+
+    public static final int DEFAULT_MAX_PER_HOST = SharedConnectionPool.DEFAULT_MAX_PER_HOST;
+
+    private static final Map<String, VirtualUserExecutor> executors = new HashMap<String, VirtualUserExecutor>();
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final NonPinningConnectionManager manager;
+    private final HttpClient client;
+
+    private VirtualUserExecutor(int maxTotal, int maxPerHost, long timeout) {
+        ExecutorService service = newVirtualThreadExecutor();
+        virtual = service != null;
+        if (service == null) {
+            service = Executors.newCachedThreadPool(new DaemonThreadFactory());
+        }
+        executor = service;
+        manager = new NonPinningConnectionManager(maxTotal > 0 ? maxTotal : DEFAULT_MAX_TOTAL, maxPerHost > 0 ? maxPerHost : DEFAULT_MAX_PER_HOST);
+        HttpConnectionManagerParams params = manager.getParams();
+        if (timeout > 0) {
+            params.setConnectionTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+            params.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        }
+        params.setTcpNoDelay(true);
+        client = new HttpClient(manager);
+        client.getParams().setConnectionManagerTimeout(Math.max(timeout, 0));
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RestSampler-user-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the
+     *         JVM does not support them.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class<?>[0]);
+            return (ExecutorService) m.invoke(null, new Object[0]);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            log.warn("Unable to create virtual threads: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the executor of this test with the given connection limits and
+     * timeout, creating it if necessary. Non positive limits mean the
+     * defaults, a non positive timeout no timeout.
+     */
+    public static synchronized VirtualUserExecutor getInstance(int maxTotal, int maxPerHost, long timeout) {
+        int total = maxTotal > 0 ? maxTotal : DEFAULT_MAX_TOTAL;
+        int perHost = maxPerHost > 0 ? maxPerHost : DEFAULT_MAX_PER_HOST;
+        long t = Math.max(timeout, 0);
+        String key = total + " " + perHost + " " + t;
+        VirtualUserExecutor executor = executors.get(key);
+        if (executor == null) {
+            executor = new VirtualUserExecutor(total, perHost, t);
+            executors.put(key, executor);
+            log.info("started simulated users executor on " + (executor.virtual ? "virtual" : "platform") + " threads, connections: "
+                    + total + " max, " + perHost + " per host, timeout " + t + "ms");
+        }
+        return executor;
+    }
+
+    /**
+     * Stops accepting users and closes the connections, of all the
+     * executors. Users still running complete on their own.
+     */
+    public static synchronized void shutdown() {
+        for (VirtualUserExecutor executor : executors.values()) {
+            executor.executor.shutdown();
+            executor.manager.shutdown();
+        }
+        if (!executors.isEmpty()) {
+            log.info("stopped simulated users executors");
+        }
+        executors.clear();
+    }
+
+    /**
+     * @return true if users run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Runs the task on its own thread.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the executor has been shut down
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * @return the client to perform the requests with. Being shared, its state
+     *         must not be used: each request has to be executed with its own
+     *         HttpState.
+     */
+    public HttpClient getHttpClient() {
+        return client;
+    }
+
+    /**
+     * @return the connection usage; no wait time is tracked.
+     */
+    public SharedConnectionPool.Stats collectStats() {
+        return new SharedConnectionPool.Stats(manager.getConnectionsInUse(), manager.getIdleConnections(), 0);
+    }
+}
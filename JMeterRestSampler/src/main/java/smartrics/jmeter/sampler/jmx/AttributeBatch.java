@@ -0,0 +1,164 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A set of MBean attributes read together, with one getAttributes call per
+ * MBean, so that the cost of a read depends on the number of MBeans and not
+ * on the number of attributes. The values read form a {@link JmxSnapshot}.
+ *
+ * MBeans can be given as patterns, for example all the garbage collectors
+ * with "java.lang:type=GarbageCollector,*"; patterns are resolved on the
+ * first read through a connection and the MBeans found are then read at
+ * each read through that connection.
+ *
+ * A batch is built once and must not be changed while it is read.
+ */
+public final class AttributeBatch {
+
+    private final Map<ObjectName, Set<String>> attributes = new LinkedHashMap<ObjectName, Set<String>>();
+
+    private final Map<ObjectName, String[]> names = new LinkedHashMap<ObjectName, String[]>();
+
+    private boolean patterns;
+
+    private MBeanServerConnection resolvedFor;
+
+    private Map<ObjectName, String[]> resolved;
+
+    /**
+     * Adds attributes of an MBean to the batch.
+     * 
+     * @return this batch
+     * @throws IllegalArgumentException
+     *             if the name of the MBean is not valid
+     */
+    public AttributeBatch add(String objectName, String... attributeNames) {
+        ObjectName name;
+        try {
+            name = new ObjectName(objectName);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid MBean name: " + objectName);
+        }
+        Set<String> set = attributes.get(name);
+        if (set == null) {
+            set = new LinkedHashSet<String>();
+            attributes.put(name, set);
+        }
+        for (String a : attributeNames) {
+            set.add(a);
+        }
+        names.put(name, set.toArray(new String[set.size()]));
+        patterns |= name.isPattern();
+        return this;
+    }
+
+    /**
+     * @return the MBeans and attributes of the batch, in the order added; two
+     *         batches with the same key read the same figures
+     */
+    public String getKey() {
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<ObjectName, String[]> e : names.entrySet()) {
+            key.append(e.getKey().getCanonicalName());
+            for (String a : e.getValue()) {
+                key.append(',').append(a);
+            }
+            key.append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return true if there is nothing to read
+     */
+    public boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    /**
+     * Reads all the attributes of the batch. The attributes of MBeans not
+     * registered, or that cannot be read, are absent from the snapshot.
+     * 
+     * @throws IOException
+     *             if the server cannot be reached
+     */
+    public JmxSnapshot read(MBeanServerConnection server) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<ObjectName, Map<String, Object>> values = new HashMap<ObjectName, Map<String, Object>>();
+        for (Map.Entry<ObjectName, String[]> e : resolve(server).entrySet()) {
+            AttributeList list;
+            try {
+                list = server.getAttributes(e.getKey(), e.getValue());
+            } catch (InstanceNotFoundException ex) {
+                continue;
+            } catch (ReflectionException ex) {
+                continue;
+            }
+            Map<String, Object> read = new HashMap<String, Object>();
+            for (Object o : list) {
+                Attribute a = (Attribute) o;
+                read.put(a.getName(), a.getValue());
+            }
+            values.put(e.getKey(), read);
+        }
+        long end = System.currentTimeMillis();
+        return new JmxSnapshot(end, end - start, values);
+    }
+
+    /**
+     * @return the MBeans to read through the connection, patterns replaced
+     *         by the MBeans they match
+     */
+    private synchronized Map<ObjectName, String[]> resolve(MBeanServerConnection server) throws IOException {
+        if (!patterns) {
+            return names;
+        }
+        if (server == resolvedFor) {
+            return resolved;
+        }
+        Map<ObjectName, String[]> r = new LinkedHashMap<ObjectName, String[]>();
+        for (Map.Entry<ObjectName, String[]> e : names.entrySet()) {
+            if (!e.getKey().isPattern()) {
+                r.put(e.getKey(), e.getValue());
+                continue;
+            }
+            for (Object n : server.queryNames(e.getKey(), null)) {
+                if (!names.containsKey(n)) {
+                    r.put((ObjectName) n, e.getValue());
+                }
+            }
+        }
+        resolved = r;
+        resolvedFor = server;
+        return r;
+    }
+}
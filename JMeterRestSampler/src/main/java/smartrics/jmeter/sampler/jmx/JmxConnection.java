@@ -0,0 +1,207 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A connection to a JMX server, shared by all the samplers and threads
+ * polling the same service url, see {@link #forUrl(String)}.
+ *
+ * The connection is opened on first use and kept open. It is marked broken
+ * when the connector reports it failed or closed, or when a call through it
+ * fails, see {@link #invalidate(Throwable)}; it is then opened again on next
+ * use. Failed attempts to connect are retried with an exponential backoff,
+ * from {@link #MIN_BACKOFF} to {@link #MAX_BACKOFF} milliseconds; before the
+ * next attempt is due, uses fail straight away.
+ *
+ * All the connections are closed by {@link #closeAll()}, at the end of the
+ * test.
+ */
+public final class JmxConnection implements NotificationListener {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final long MIN_BACKOFF = 1000;
+
+    public static final long MAX_BACKOFF = 60000;
+
+    private static final ConcurrentMap<String, JmxConnection> connections = new ConcurrentHashMap<String, JmxConnection>();
+
+    private final JMXServiceURL url;
+
+    private JMXConnector connector;
+    private MBeanServerConnection server;
+    private volatile boolean broken;
+    private long backoff;
+    private long retryAt;
+
+    private JmxConnection(JMXServiceURL url) {
+        this.url = url;
+    }
+
+    /**
+     * @return the connection to the given service url, shared by all its
+     *         users
+     * @throws IllegalArgumentException
+     *             if the url is not valid
+     */
+    public static JmxConnection forUrl(String u) {
+        String key = u == null ? "" : u.trim();
+        JmxConnection connection = connections.get(key);
+        if (connection == null) {
+            JMXServiceURL url;
+            try {
+                url = new JMXServiceURL(key);
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Unable to parse url: " + u);
+            }
+            connection = new JmxConnection(url);
+            JmxConnection existing = connections.putIfAbsent(key, connection);
+            if (existing != null) {
+                connection = existing;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Closes all the connections and forgets them.
+     */
+    public static void closeAll() {
+        for (JmxConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    public JMXServiceURL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the connection to the server, opened if not open yet or broken
+     * @throws IOException
+     *             if the server cannot be reached, or if the next attempt to
+     *             reach it is not due yet
+     */
+    public synchronized MBeanServerConnection getServer() throws IOException {
+        if (server != null && !broken) {
+            return server;
+        }
+        close();
+        long now = System.currentTimeMillis();
+        if (now < retryAt) {
+            throw new IOException("JMX server " + url + " unreachable, next attempt in " + (retryAt - now) + "ms");
+        }
+        try {
+            JMXConnector c = JMXConnectorFactory.connect(url);
+            c.addConnectionNotificationListener(this, null, null);
+            server = c.getMBeanServerConnection();
+            connector = c;
+            broken = false;
+            backoff = 0;
+            retryAt = 0;
+            log.info("connected to " + url);
+            return server;
+        } catch (IOException e) {
+            backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+            retryAt = now + backoff;
+            log.warn("unable to connect to " + url + ", next attempt in " + backoff + "ms: " + e);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the attributes of the batch in one round trip per MBean, opening
+     * the connection again once if it turns out to be broken.
+     * 
+     * @throws IOException
+     *             if the server cannot be reached
+     */
+    public JmxSnapshot read(AttributeBatch batch) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            MBeanServerConnection s = getServer();
+            try {
+                return batch.read(s);
+            } catch (IOException e) {
+                invalidate(e);
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the connection broken after a call through it failed, so that it
+     * is opened again on next use.
+     */
+    public void invalidate(Throwable cause) {
+        if (!broken) {
+            broken = true;
+            log.warn("connection to " + url + " broken: " + cause);
+        }
+    }
+
+    /**
+     * @return true if the connection is open and not known to be broken
+     */
+    public boolean isOpen() {
+        return !broken && connector != null;
+    }
+
+    /**
+     * Marks the connection broken when the connector reports it failed or
+     * closed.
+     */
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+            invalidate(new IOException(type));
+        }
+    }
+
+    private synchronized void close() {
+        if (connector != null) {
+            try {
+                connector.removeConnectionNotificationListener(this);
+            } catch (Exception e) {
+                // ignore
+            }
+            try {
+                connector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        connector = null;
+        server = null;
+    }
+}
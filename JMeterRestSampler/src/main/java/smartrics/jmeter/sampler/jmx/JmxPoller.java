@@ -0,0 +1,234 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import smartrics.jmeter.sampler.jmx.MemUsageJmxClient.MemoryData;
+
+/**
+ * Polls a JMX server for memory usage, and the other figures of a batch, at
+ * a fixed rate, in a thread of its own, and keeps the readings until they are
+ * taken, see {@link #take(String, long)}.
+ *
+ * Polling this way does not depend on how often the JMeter threads get to
+ * the sampler, nor does it hold them up. There is a poller per service url,
+ * period and batch, shared by all the samplers, see
+ * {@link #forUrl(String, long, AttributeBatch)}; all the pollers are stopped
+ * by {@link #stopAll()}, at the end of the test.
+ *
+ * Each reading is handed to every consumer, in a {@link RingBuffer} of its
+ * own: the threads of a sampler, which share its name, split the readings
+ * between them, while samplers of different names all get every reading.
+ */
+public final class JmxPoller implements Runnable {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final int CAPACITY = 1024;
+
+    private static final ConcurrentMap<String, JmxPoller> pollers = new ConcurrentHashMap<String, JmxPoller>();
+
+    /**
+     * The memory used by a JMX server, in bytes, and the other figures read,
+     * at a point in time; or the reason why they could not be read.
+     */
+    public static final class Reading {
+        private final long end;
+        private final long time;
+        private final long heapUsed;
+        private final long nonHeapUsed;
+        private final JmxSnapshot snapshot;
+        private final String error;
+
+        Reading(long end, long time, long heapUsed, long nonHeapUsed, JmxSnapshot snapshot, String error) {
+            this.end = end;
+            this.time = time;
+            this.heapUsed = heapUsed;
+            this.nonHeapUsed = nonHeapUsed;
+            this.snapshot = snapshot;
+            this.error = error;
+        }
+
+        /**
+         * @return when the reading completed
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return how long the reading took, in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getHeapUsed() {
+            return heapUsed;
+        }
+
+        public long getNonHeapUsed() {
+            return nonHeapUsed;
+        }
+
+        /**
+         * @return all the figures read, null if they could not be
+         */
+        public JmxSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * @return why the memory could not be read, null if it was
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final String url;
+    private final long period;
+    private final MemoryData data;
+    private final AttributeBatch batch;
+    private final ConcurrentMap<String, RingBuffer<Reading>> consumers = new ConcurrentHashMap<String, RingBuffer<Reading>>();
+    private ScheduledExecutorService executor;
+
+    private JmxPoller(String url, long period, AttributeBatch batch) {
+        this.url = url;
+        this.period = period;
+        this.batch = batch;
+        MemUsageJmxClient client = new MemUsageJmxClient();
+        client.setUrl(url);
+        this.data = client.getData();
+    }
+
+    /**
+     * @param period
+     *            milliseconds between readings
+     * @param batch
+     *            the figures to read, along with the memory used, see
+     *            {@link JvmMetrics#getBatch()}
+     * @return the poller of the given service url, period and batch, started
+     *         if not already
+     * @throws IllegalArgumentException
+     *             if the url is not valid
+     */
+    public static JmxPoller forUrl(String u, long period, AttributeBatch batch) {
+        String url = u == null ? "" : u.trim();
+        String key = url + " " + period + " " + batch.getKey();
+        JmxPoller poller = pollers.get(key);
+        if (poller == null) {
+            poller = new JmxPoller(url, period, batch);
+            JmxPoller existing = pollers.putIfAbsent(key, poller);
+            if (existing != null) {
+                poller = existing;
+            } else {
+                poller.start();
+            }
+        }
+        return poller;
+    }
+
+    /**
+     * Stops all the pollers, dropping the readings not yet taken.
+     */
+    public static void stopAll() {
+        for (JmxPoller poller : pollers.values()) {
+            poller.stop();
+        }
+        pollers.clear();
+    }
+
+    private synchronized void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "JmxSampler-poller " + url);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleAtFixedRate(this, 0, period, TimeUnit.MILLISECONDS);
+        log.info("polling " + url + " every " + period + "ms");
+    }
+
+    private synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (Map.Entry<String, RingBuffer<Reading>> e : consumers.entrySet()) {
+            long dropped = e.getValue().getDropped();
+            if (dropped > 0) {
+                log.warn(e.getKey() + " dropped " + dropped + " readings of " + url + " not taken in time");
+            }
+        }
+    }
+
+    /**
+     * Takes a reading of the memory used; never throws, as that would stop
+     * the polling.
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        Reading r;
+        try {
+            JmxSnapshot s = data.read(batch);
+            r = new Reading(s.getTimestamp(), s.getTime(), MemoryData.getUsedHeap(s), MemoryData.getUsedNonHeap(s), s, null);
+        } catch (RuntimeException e) {
+            long end = System.currentTimeMillis();
+            String error = e.getCause() == null ? e.getMessage() : e.getMessage() + ": " + e.getCause();
+            r = new Reading(end, end - start, 0, 0, null, error);
+        }
+        for (RingBuffer<Reading> readings : consumers.values()) {
+            readings.add(r);
+        }
+    }
+
+    /**
+     * Takes the oldest reading not yet taken by the consumer, waiting for one
+     * if necessary. A consumer gets the readings made from its first call on.
+     * 
+     * @param consumer
+     *            the name of the consumer
+     * @param timeout
+     *            milliseconds to wait at most
+     * @return the reading, or null if none came in time
+     */
+    public Reading take(String consumer, long timeout) throws InterruptedException {
+        RingBuffer<Reading> readings = consumers.get(consumer);
+        if (readings == null) {
+            readings = new RingBuffer<Reading>(CAPACITY);
+            RingBuffer<Reading> existing = consumers.putIfAbsent(consumer, readings);
+            if (existing != null) {
+                readings = existing;
+            }
+        }
+        return readings.take(timeout);
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+}
@@ -0,0 +1,125 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * The values of the attributes of an {@link AttributeBatch}, read together
+ * and stamped with the time the read completed.
+ */
+public final class JmxSnapshot {
+
+    private final long timestamp;
+    private final long time;
+    private final Map<ObjectName, Map<String, Object>> values;
+
+    JmxSnapshot(long timestamp, long time, Map<ObjectName, Map<String, Object>> values) {
+        this.timestamp = timestamp;
+        this.time = time;
+        this.values = values;
+    }
+
+    /**
+     * @return when the read completed
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return how long the read took, in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the value of the attribute, null if absent
+     */
+    public Object get(ObjectName name, String attribute) {
+        Map<String, Object> read = values.get(name);
+        return read == null ? null : read.get(attribute);
+    }
+
+    /**
+     * @return the value of the attribute, null if absent
+     * @throws IllegalArgumentException
+     *             if the name of the MBean is not valid
+     */
+    public Object get(String name, String attribute) {
+        try {
+            return get(new ObjectName(name), attribute);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid MBean name: " + name);
+        }
+    }
+
+    /**
+     * @return the names of the MBeans read that match the pattern, sorted
+     * @throws IllegalArgumentException
+     *             if the pattern is not valid
+     */
+    public List<ObjectName> getNames(String pattern) {
+        ObjectName p;
+        try {
+            p = new ObjectName(pattern);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid MBean name: " + pattern);
+        }
+        Map<String, ObjectName> sorted = new TreeMap<String, ObjectName>();
+        for (ObjectName n : values.keySet()) {
+            if (p.apply(n)) {
+                sorted.put(n.getCanonicalName(), n);
+            }
+        }
+        return new ArrayList<ObjectName>(sorted.values());
+    }
+
+    /**
+     * @param item
+     *            the item of the attribute, if its value is composite (for
+     *            example "used" of HeapMemoryUsage); null if not
+     * @return the numeric value of the attribute or of its item, null if
+     *         absent or not a number
+     */
+    public Number getNumber(String name, String attribute, String item) {
+        try {
+            return getNumber(new ObjectName(name), attribute, item);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid MBean name: " + name);
+        }
+    }
+
+    /**
+     * @see #getNumber(String, String, String)
+     */
+    public Number getNumber(ObjectName name, String attribute, String item) {
+        Object v = get(name, attribute);
+        if (item != null && v instanceof CompositeData) {
+            CompositeData cd = (CompositeData) v;
+            v = cd.containsKey(item) ? cd.get(item) : null;
+        }
+        return v instanceof Number ? (Number) v : null;
+    }
+}
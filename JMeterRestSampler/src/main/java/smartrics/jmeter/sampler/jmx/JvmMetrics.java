@@ -0,0 +1,251 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import smartrics.jmeter.sampler.jmx.MemUsageJmxClient.MemoryData;
+
+/**
+ * The health figures of a JVM that can be read along with the memory used,
+ * in sets that can be selected: the usage of each memory pool, collections
+ * and time spent collecting by each garbage collector, live and peak
+ * threads, the CPU load of the process and the loaded classes.
+ *
+ * The figures of the sets selected, and the memory used, are read in one
+ * {@link AttributeBatch} from the platform MXBeans, see {@link #getBatch()}.
+ * Figures the JVM does not expose, such as the CPU load before Java 7, are
+ * left out.
+ *
+ * The figures are kept in the results as sub results, see
+ * {@link #addTo(SampleResult, Map)}, so that the result files keep them.
+ */
+public final class JvmMetrics {
+
+    public static final String POOLS = "pools";
+    public static final String GC = "gc";
+    public static final String THREADS = "threads";
+    public static final String CPU = "cpu";
+    public static final String CLASSES = "classes";
+
+    /**
+     * All the sets, in the order they are reported.
+     */
+    public static final String[] SETS = { POOLS, GC, THREADS, CPU, CLASSES };
+
+    /**
+     * The prefix of the labels of the sub results holding the figures.
+     */
+    public static final String LABEL_PREFIX = "jvm:";
+
+    private static final String[] TITLES = { "Memory pools usage", "Garbage collections", "Threads", "Process CPU load", "Loaded classes" };
+
+    private static final String[] UNITS = { "Kb", "collections / ms", "threads", "%", "classes" };
+
+    private static final String POOL_PATTERN = ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE + ",*";
+
+    private static final String GC_PATTERN = ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*";
+
+    private final String[] sets;
+
+    private final AttributeBatch batch;
+
+    /**
+     * @param sets
+     *            the sets to read, in any order
+     * @throws IllegalArgumentException
+     *             if a set is not known
+     */
+    public JvmMetrics(String[] sets) {
+        List<String> selected = new ArrayList<String>();
+        for (String set : SETS) {
+            if (Arrays.asList(sets).contains(set)) {
+                selected.add(set);
+            }
+        }
+        for (String set : sets) {
+            if (!selected.contains(set)) {
+                throw new IllegalArgumentException("Unknown metrics: " + set);
+            }
+        }
+        this.sets = selected.toArray(new String[selected.size()]);
+        batch = new AttributeBatch().add(ManagementFactory.MEMORY_MXBEAN_NAME, MemoryData.HEAP, MemoryData.NON_HEAP);
+        for (String set : this.sets) {
+            if (POOLS.equals(set)) {
+                batch.add(POOL_PATTERN, "Usage");
+            } else if (GC.equals(set)) {
+                batch.add(GC_PATTERN, "CollectionCount", "CollectionTime");
+            } else if (THREADS.equals(set)) {
+                batch.add(ManagementFactory.THREAD_MXBEAN_NAME, "ThreadCount", "PeakThreadCount");
+            } else if (CPU.equals(set)) {
+                batch.add(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, "ProcessCpuLoad");
+            } else if (CLASSES.equals(set)) {
+                batch.add(ManagementFactory.CLASS_LOADING_MXBEAN_NAME, "LoadedClassCount");
+            }
+        }
+    }
+
+    /**
+     * @param list
+     *            the sets as a comma separated list, blank for none
+     * @throws IllegalArgumentException
+     *             if a set is not known
+     */
+    public static JvmMetrics parse(String list) {
+        List<String> sets = new ArrayList<String>();
+        if (list != null) {
+            for (String s : list.split(",")) {
+                if (s.trim().length() > 0) {
+                    sets.add(s.trim().toLowerCase());
+                }
+            }
+        }
+        return new JvmMetrics(sets.toArray(new String[sets.size()]));
+    }
+
+    /**
+     * @return the title of the set, for charts; the set itself if not known
+     */
+    public static String getTitle(String set) {
+        int i = Arrays.asList(SETS).indexOf(set);
+        return i < 0 ? set : TITLES[i];
+    }
+
+    /**
+     * @return the unit of the figures of the set, for charts
+     */
+    public static String getUnit(String set) {
+        int i = Arrays.asList(SETS).indexOf(set);
+        return i < 0 ? "" : UNITS[i];
+    }
+
+    public String[] getSets() {
+        return sets;
+    }
+
+    public boolean isEmpty() {
+        return sets.length == 0;
+    }
+
+    /**
+     * @return the batch reading the memory used and the figures of the sets
+     */
+    public AttributeBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return the figures of the sets selected found in the snapshot, by set
+     *         and then by name
+     */
+    public Map<String, Map<String, Long>> extract(JmxSnapshot snapshot) {
+        Map<String, Map<String, Long>> all = new LinkedHashMap<String, Map<String, Long>>();
+        for (String set : sets) {
+            Map<String, Long> figures = new LinkedHashMap<String, Long>();
+            if (POOLS.equals(set)) {
+                for (ObjectName n : snapshot.getNames(POOL_PATTERN)) {
+                    put(figures, n.getKeyProperty("name"), snapshot.getNumber(n, "Usage", "used"), 1024);
+                }
+            } else if (GC.equals(set)) {
+                for (ObjectName n : snapshot.getNames(GC_PATTERN)) {
+                    String gc = n.getKeyProperty("name");
+                    put(figures, gc + " count", snapshot.getNumber(n, "CollectionCount", null), 1);
+                    put(figures, gc + " time", snapshot.getNumber(n, "CollectionTime", null), 1);
+                }
+            } else if (THREADS.equals(set)) {
+                put(figures, "live", snapshot.getNumber(ManagementFactory.THREAD_MXBEAN_NAME, "ThreadCount", null), 1);
+                put(figures, "peak", snapshot.getNumber(ManagementFactory.THREAD_MXBEAN_NAME, "PeakThreadCount", null), 1);
+            } else if (CPU.equals(set)) {
+                Number load = snapshot.getNumber(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, "ProcessCpuLoad", null);
+                // negative while not yet available
+                if (load != null && load.doubleValue() >= 0) {
+                    figures.put("process", Math.round(load.doubleValue() * 100));
+                }
+            } else if (CLASSES.equals(set)) {
+                put(figures, "loaded", snapshot.getNumber(ManagementFactory.CLASS_LOADING_MXBEAN_NAME, "LoadedClassCount", null), 1);
+            }
+            if (!figures.isEmpty()) {
+                all.put(set, figures);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Adds a sub result to the result for each figure, labelled with
+     * {@link #LABEL_PREFIX}, the set and the name of the figure, separated by
+     * colons. The figure is the time of the sub result, the one field the
+     * result files always keep. The sub results are stamped at 0, so that
+     * they do not stretch the time of the result.
+     */
+    public static void addTo(SampleResult res, Map<String, Map<String, Long>> figures) {
+        for (Map.Entry<String, Map<String, Long>> set : figures.entrySet()) {
+            for (Map.Entry<String, Long> figure : set.getValue().entrySet()) {
+                SampleResult sub = new SampleResult();
+                sub.setSampleLabel(LABEL_PREFIX + set.getKey() + ":" + figure.getKey());
+                sub.setStampAndTime(0, figure.getValue().longValue());
+                sub.setSuccessful(true);
+                res.addSubResult(sub);
+            }
+        }
+    }
+
+    /**
+     * @return the figures of the sub results added by
+     *         {@link #addTo(SampleResult, Map)}, by set and then by name;
+     *         empty if none
+     */
+    public static Map<String, Map<String, Long>> figuresOf(SampleResult res) {
+        Map<String, Map<String, Long>> all = new LinkedHashMap<String, Map<String, Long>>();
+        SampleResult[] subs = res.getSubResults();
+        if (subs == null) {
+            return all;
+        }
+        for (SampleResult sub : subs) {
+            String label = sub.getSampleLabel();
+            if (label == null || !label.startsWith(LABEL_PREFIX)) {
+                continue;
+            }
+            int colon = label.indexOf(':', LABEL_PREFIX.length());
+            if (colon < 0) {
+                continue;
+            }
+            String set = label.substring(LABEL_PREFIX.length(), colon);
+            Map<String, Long> figures = all.get(set);
+            if (figures == null) {
+                figures = new LinkedHashMap<String, Long>();
+                all.put(set, figures);
+            }
+            figures.put(label.substring(colon + 1), sub.getTime());
+        }
+        return all;
+    }
+
+    private static void put(Map<String, Long> figures, String name, Number value, int divisor) {
+        if (value != null) {
+            figures.put(name, value.longValue() / divisor);
+        }
+    }
+}
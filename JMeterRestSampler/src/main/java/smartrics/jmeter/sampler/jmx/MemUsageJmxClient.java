@@ -18,7 +18,6 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
-import java.net.MalformedURLException;
 
 import javax.management.MBeanServerConnection;
 import javax.management.remote.JMXConnector;
@@ -28,54 +27,77 @@ import javax.management.remote.JMXServiceURL;
 /**
  * A JMX client wrapper.
  * 
+ * The connection to the server is shared by all the clients of the same url
+ * and kept open across samples, see {@link JmxConnection}, and the figures
+ * are read in batches, see {@link AttributeBatch}, so that reading them costs
+ * a single round trip.
+ * 
  * @see MemoryMXBean
  */
 public class MemUsageJmxClient {
 
     public static class MemoryData {
-        private MemoryMXBean mBean;
+        static final String HEAP = "HeapMemoryUsage";
+        static final String NON_HEAP = "NonHeapMemoryUsage";
+
+        private static final AttributeBatch HEAP_BATCH = new AttributeBatch().add(ManagementFactory.MEMORY_MXBEAN_NAME, HEAP);
+        private static final AttributeBatch NON_HEAP_BATCH = new AttributeBatch().add(ManagementFactory.MEMORY_MXBEAN_NAME, NON_HEAP);
 
-        private MemoryData(MemoryMXBean mBean) {
-            this.mBean = mBean;
+        private final JmxConnection connection;
+
+        private MemoryData(JmxConnection connection) {
+            this.connection = connection;
         }
 
         public long getUsedHeap() {
-            return mBean.getHeapMemoryUsage().getUsed();
+            return getUsedHeap(read(HEAP_BATCH));
         }
 
         public long getUsedNonHeap() {
-            return mBean.getNonHeapMemoryUsage().getUsed();
+            return getUsedNonHeap(read(NON_HEAP_BATCH));
         }
-    }
 
-    private JMXServiceURL url;
-    private MemoryMXBean memoryMbean;
+        /**
+         * @throws IllegalStateException
+         *             if the server cannot be reached
+         */
+        public JmxSnapshot read(AttributeBatch batch) {
+            try {
+                return connection.read(batch);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read " + connection.getUrl(), e);
+            }
+        }
 
-    public void setUrl(String u) {
-        try {
-            url = new JMXServiceURL(u);
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("Unable to parse url: " + u);
+        public static long getUsedHeap(JmxSnapshot snapshot) {
+            return used(snapshot, HEAP);
         }
-    }
 
-    private void createMemoryMxBean() {
-        try {
-            JMXConnector connector = JMXConnectorFactory.connect(url);
-            MBeanServerConnection mbsc = connector.getMBeanServerConnection();
-            memoryMbean = ManagementFactory.newPlatformMXBeanProxy(mbsc, "java.lang:type=Memory", MemoryMXBean.class);
-        } catch (IOException e) {
-            throw new IllegalStateException("Unable to get to the MemoryMXBean", e);
+        public static long getUsedNonHeap(JmxSnapshot snapshot) {
+            return used(snapshot, NON_HEAP);
+        }
+
+        private static long used(JmxSnapshot snapshot, String attribute) {
+            Number used = snapshot.getNumber(ManagementFactory.MEMORY_MXBEAN_NAME, attribute, "used");
+            if (used == null) {
+                throw new IllegalStateException("No " + attribute + " in the MemoryMXBean");
+            }
+            return used.longValue();
         }
     }
 
-    public MemoryData getData() {
-        if (memoryMbean == null)
-            createMemoryMxBean();
-        MemoryData data = new MemoryData(memoryMbean);
-        return data;
+    private JmxConnection connection;
+
+    public void setUrl(String u) {
+        connection = JmxConnection.forUrl(u);
     }
 
+    public MemoryData getData() {
+        if (connection == null) {
+            throw new IllegalStateException("No url set");
+        }
+        return new MemoryData(connection);
+    }
 
     public static void main(String[] args) throws Exception {
         JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:9004/jmxrmi");
@@ -0,0 +1,103 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets one thread at a time, once per interval, go ahead for a target, for
+ * example to poll a JMX server no more often than set whatever the number
+ * of threads polling it.
+ *
+ * The slot of each interval is claimed with a compare and set: exactly one
+ * thread gets it, the others park until the next slot and compete again.
+ * Slots follow each other at a fixed pace, unless none is claimed for a
+ * whole interval, in which case the next starts when claimed.
+ */
+public final class RateGate {
+
+    private static final ConcurrentMap<String, RateGate> gates = new ConcurrentHashMap<String, RateGate>();
+
+    // when the next slot opens, 0 before the first claim
+    private final AtomicLong next = new AtomicLong();
+
+    private volatile long last;
+
+    private RateGate() {
+    }
+
+    /**
+     * @return the gate of the target, shared by all the threads
+     */
+    public static RateGate forTarget(String target) {
+        String key = target == null ? "" : target;
+        RateGate gate = gates.get(key);
+        if (gate == null) {
+            gate = new RateGate();
+            RateGate existing = gates.putIfAbsent(key, gate);
+            if (existing != null) {
+                gate = existing;
+            }
+        }
+        return gate;
+    }
+
+    /**
+     * Forgets all the gates, so that the next test starts afresh.
+     */
+    public static void clearAll() {
+        gates.clear();
+    }
+
+    /**
+     * Claims the open slot, or waits for the next one and competes for it,
+     * until a slot is claimed.
+     *
+     * @param interval
+     *            milliseconds between slots; not positive to claim at once
+     * @return when the slot was claimed, or -1 if the thread was interrupted
+     *         while waiting
+     */
+    public long claim(long interval) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long n = next.get();
+            if (now >= n) {
+                long following = n == 0 || now - n >= interval ? now + interval : n + interval;
+                if (next.compareAndSet(n, following)) {
+                    last = now;
+                    return now;
+                }
+                continue;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(n - now));
+            if (Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return when the last slot was claimed, 0 if none was
+     */
+    public long getLastClaim() {
+        return last;
+    }
+}
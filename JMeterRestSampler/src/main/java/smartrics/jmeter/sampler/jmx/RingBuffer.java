@@ -0,0 +1,90 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+
+package smartrics.jmeter.sampler.jmx;
+
+/**
+ * A bounded first in first out buffer: when full, the oldest item is dropped
+ * to make room for the new one, so that a slow consumer never holds back the
+ * producer.
+ */
+public final class RingBuffer<T> {
+
+    private final Object[] items;
+    private int head;
+    private int size;
+    private long dropped;
+
+    /**
+     * @param capacity
+     *            the number of items kept at most
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        items = new Object[capacity];
+    }
+
+    /**
+     * Adds an item, dropping the oldest if the buffer is full.
+     */
+    public synchronized void add(T item) {
+        if (size == items.length) {
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+            dropped++;
+        }
+        items[(head + size) % items.length] = item;
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * Takes the oldest item, waiting for one if the buffer is empty.
+     * 
+     * @param timeout
+     *            milliseconds to wait at most
+     * @return the oldest item, or null if none came in time
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T take(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (size == 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            wait(left);
+        }
+        T item = (T) items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        size--;
+        return item;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of items dropped because the buffer was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
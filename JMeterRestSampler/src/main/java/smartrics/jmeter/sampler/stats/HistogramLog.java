@@ -0,0 +1,165 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.stats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * The latency histograms of a test, one per sample label, written to a file
+ * at the end of the test.
+ *
+ * The file has one line per label: start and end time of the recording, the
+ * histogram as encoded by {@link LatencyHistogram#encode()} and the label,
+ * separated by tabs. Lines starting with # are comments.
+ */
+public final class HistogramLog {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String EXTENSION = ".hlog";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final Map<String, HistogramLog> logs = new ConcurrentHashMap<String, HistogramLog>();
+
+    private final String fileName;
+    private final int significantDigits;
+    private final long startTime;
+    private final ConcurrentHashMap<String, LatencyRecorder> recorders = new ConcurrentHashMap<String, LatencyRecorder>();
+
+    private HistogramLog(String fileName, int significantDigits) {
+        this.fileName = fileName;
+        this.significantDigits = significantDigits;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the log written to the given file, creating it if necessary
+     * with the given precision. All the histograms of a file have the same
+     * precision.
+     *
+     * @throws IllegalArgumentException
+     *             if the log of the file was created with another precision
+     */
+    public static HistogramLog forFile(String fileName, int significantDigits) {
+        HistogramLog hlog = logs.get(fileName);
+        if (hlog == null) {
+            synchronized (logs) {
+                hlog = logs.get(fileName);
+                if (hlog == null) {
+                    hlog = new HistogramLog(fileName, significantDigits);
+                    logs.put(fileName, hlog);
+                }
+            }
+        }
+        if (hlog.significantDigits != significantDigits) {
+            throw new IllegalArgumentException("Latency histograms of " + fileName + " are recorded with " + hlog.significantDigits
+                    + " significant digits, not " + significantDigits);
+        }
+        return hlog;
+    }
+
+    /**
+     * Writes all the logs to their files and forgets them.
+     */
+    public static void writeAll() {
+        synchronized (logs) {
+            for (HistogramLog hlog : logs.values()) {
+                try {
+                    hlog.write();
+                } catch (IOException e) {
+                    log.error("Unable to write latency histograms to " + hlog.fileName, e);
+                }
+            }
+            logs.clear();
+        }
+    }
+
+    public void recordValue(String label, long value) {
+        LatencyRecorder recorder = recorders.get(label);
+        if (recorder == null) {
+            LatencyRecorder created = new LatencyRecorder(significantDigits);
+            recorder = recorders.putIfAbsent(label, created);
+            if (recorder == null) {
+                recorder = created;
+            }
+        }
+        recorder.recordValue(value);
+    }
+
+    private void write() throws IOException {
+        long endTime = System.currentTimeMillis();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName), ENCODING));
+        try {
+            out.println("# RestSampler latency histograms (ms): start\tend\thistogram\tlabel");
+            for (Map.Entry<String, LatencyRecorder> e : new TreeMap<String, LatencyRecorder>(recorders).entrySet()) {
+                out.print(startTime);
+                out.print('\t');
+                out.print(endTime);
+                out.print('\t');
+                out.print(e.getValue().snapshot().encode());
+                out.print('\t');
+                out.println(e.getKey());
+            }
+        } finally {
+            out.close();
+        }
+        log.info("latency histograms of " + recorders.size() + " labels written to " + fileName);
+    }
+
+    /**
+     * Reads the histograms from a file written by a test.
+     *
+     * @return the histograms by label, sorted by label
+     */
+    public static Map<String, LatencyHistogram> read(File file) throws IOException {
+        Map<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    throw new IOException("Invalid histogram line in " + file + ": " + line);
+                }
+                LatencyHistogram histogram = LatencyHistogram.decode(fields[2]);
+                LatencyHistogram previous = histograms.get(fields[3]);
+                if (previous != null) {
+                    previous.add(histogram);
+                } else {
+                    histograms.put(fields[3], histogram);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return histograms;
+    }
+}
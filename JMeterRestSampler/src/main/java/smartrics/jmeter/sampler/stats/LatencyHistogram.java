@@ -0,0 +1,306 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A latency histogram with HDR layout: values are counted in buckets whose
+ * width doubles at each power of two, each split in enough sub buckets to
+ * keep the given number of significant decimal digits. The memory used only
+ * depends on the precision and on the highest value tracked.
+ *
+ * Values are in milliseconds, from 0 to {@link #getHighestTrackableValue()};
+ * higher values are counted as the highest.
+ *
+ * Instances are not thread safe: concurrent recording is done by
+ * {@link LatencyRecorder}, which produces histograms.
+ */
+public final class LatencyHistogram {
+
+    /** One hour. */
+    public static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = 3600000L;
+
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 3;
+
+    private static final int MAGIC = 0x52534831;
+
+    private final int significantDigits;
+    private final long highestTrackableValue;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+    private final long[] counts;
+    private long totalCount;
+
+    /**
+     * @param significantDigits
+     *            decimal digits of precision, from 1 to 5
+     * @param highestTrackableValue
+     *            the highest value counted exactly, at least 2
+     */
+    public LatencyHistogram(int significantDigits, long highestTrackableValue) {
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Significant digits must be between 1 and 5: " + significantDigits);
+        }
+        if (highestTrackableValue < 2) {
+            throw new IllegalArgumentException("Highest trackable value must be at least 2: " + highestTrackableValue);
+        }
+        this.significantDigits = significantDigits;
+        this.highestTrackableValue = highestTrackableValue;
+        long largestSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestSingleUnitResolution) / Math.log(2));
+        subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        int subBucketCount = 1 << subBucketCountMagnitude;
+        subBucketHalfCount = subBucketCount / 2;
+        subBucketMask = subBucketCount - 1;
+        leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+        long smallestUntrackable = subBucketCount;
+        int bucketCount = 1;
+        while (smallestUntrackable <= highestTrackableValue) {
+            if (smallestUntrackable > Long.MAX_VALUE / 2) {
+                bucketCount++;
+                break;
+            }
+            smallestUntrackable <<= 1;
+            bucketCount++;
+        }
+        counts = new long[(bucketCount + 1) << subBucketHalfCountMagnitude];
+    }
+
+    public LatencyHistogram(int significantDigits) {
+        this(significantDigits, DEFAULT_HIGHEST_TRACKABLE_VALUE);
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    public long getHighestTrackableValue() {
+        return highestTrackableValue;
+    }
+
+    /**
+     * @return the number of counters, all with the same layout for histograms
+     *         of equal precision and range
+     */
+    int getCountsLength() {
+        return counts.length;
+    }
+
+    /**
+     * @return the index of the counter of the value
+     */
+    int indexOf(long value) {
+        long v = Math.min(Math.max(value, 0), highestTrackableValue);
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(v | subBucketMask);
+        int subBucketIndex = (int) (v >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    /**
+     * @return the lowest value counted by the counter at the index
+     */
+    long valueAt(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    /**
+     * @return the highest value counted by the counter at the index
+     */
+    long highestValueAt(int index) {
+        int bucketIndex = Math.max((index >> subBucketHalfCountMagnitude) - 1, 0);
+        return valueAt(index) + (1L << bucketIndex) - 1;
+    }
+
+    public void recordValue(long value) {
+        counts[indexOf(value)]++;
+        totalCount++;
+    }
+
+    void addCount(int index, long count) {
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    /**
+     * Adds the counts of another histogram of the same precision and range.
+     */
+    public void add(LatencyHistogram other) {
+        if (other.counts.length != counts.length || other.significantDigits != significantDigits) {
+            throw new IllegalArgumentException("Cannot add histograms of different precision or range");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @param percentile
+     *            from 0 to 100
+     * @return the highest value, within the precision of the histogram, below
+     *         which the given percentage of the values fall; 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double p = Math.min(Math.max(percentile, 0), 100);
+        long countAtPercentile = Math.max((long) Math.ceil(p / 100 * totalCount), 1);
+        long running = 0;
+        for (int i = 0; i < counts.length; i++) {
+            running += counts[i];
+            if (running >= countAtPercentile) {
+                return Math.min(highestValueAt(i), highestTrackableValue);
+            }
+        }
+        return highestTrackableValue;
+    }
+
+    public long getMaxValue() {
+        return getValueAtPercentile(100);
+    }
+
+    /**
+     * @return the mean of the values, each taken at the middle of its counter
+     */
+    public double getMean() {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                sum += counts[i] * (valueAt(i) + highestValueAt(i)) / 2.0;
+            }
+        }
+        return sum / totalCount;
+    }
+
+    /**
+     * Encodes the histogram in a compact printable form: the counters are
+     * written as variable length integers, with runs of empty counters
+     * collapsed, then deflated and converted to Base64.
+     */
+    public String encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DeflaterOutputStream deflater = new DeflaterOutputStream(bytes);
+            DataOutputStream out = new DataOutputStream(deflater);
+            out.writeInt(MAGIC);
+            out.writeByte(significantDigits);
+            out.writeLong(highestTrackableValue);
+            int i = 0;
+            while (i < counts.length) {
+                if (counts[i] == 0) {
+                    int run = 0;
+                    while (i < counts.length && counts[i] == 0) {
+                        run++;
+                        i++;
+                    }
+                    writeVarLong(out, 0);
+                    writeVarLong(out, run);
+                } else {
+                    writeVarLong(out, counts[i]);
+                    i++;
+                }
+            }
+            out.flush();
+            deflater.finish();
+            return new String(Base64.encodeBase64(bytes.toByteArray()), "US-ASCII");
+        } catch (IOException e) {
+            // in memory streams
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a histogram produced by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException
+     *             if the text is not an encoded histogram
+     */
+    public static LatencyHistogram decode(String encoded) {
+        try {
+            byte[] bytes = Base64.decodeBase64(encoded.trim().getBytes("US-ASCII"));
+            DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Not an encoded histogram");
+            }
+            int digits = in.readByte();
+            long highest = in.readLong();
+            LatencyHistogram histogram = new LatencyHistogram(digits, highest);
+            int i = 0;
+            while (i < histogram.counts.length) {
+                long count = readVarLong(in);
+                if (count == 0) {
+                    i += (int) readVarLong(in);
+                } else {
+                    histogram.addCount(i, count);
+                    i++;
+                }
+            }
+            return histogram;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid encoded histogram: " + e.getMessage());
+        }
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated histogram");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,83 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies from many threads into a {@link LatencyHistogram} layout
+ * without locking.
+ *
+ * The counters are striped: each thread increments the counters of the
+ * stripe its id maps to, so that threads rarely contend on the same counter.
+ * There are at most as many stripes as processors, and no more than fit in
+ * {@link #MAX_BYTES}: a precise layout, with many counters, gets fewer
+ * stripes, down to one shared by all the threads. The memory used is fixed
+ * at construction. A snapshot merges the stripes.
+ */
+public final class LatencyRecorder {
+
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * The memory the counters of a recorder may use, beyond one stripe.
+     */
+    public static final long MAX_BYTES = 4L * 1024 * 1024;
+
+    private final LatencyHistogram layout;
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public LatencyRecorder(int significantDigits, long highestTrackableValue) {
+        layout = new LatencyHistogram(significantDigits, highestTrackableValue);
+        long stripeBytes = 8L * layout.getCountsLength();
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < MAX_STRIPES && 2 * n * stripeBytes <= MAX_BYTES) {
+            n <<= 1;
+        }
+        stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new AtomicLongArray(layout.getCountsLength());
+        }
+        mask = n - 1;
+    }
+
+    public LatencyRecorder(int significantDigits) {
+        this(significantDigits, LatencyHistogram.DEFAULT_HIGHEST_TRACKABLE_VALUE);
+    }
+
+    public void recordValue(long value) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) (id ^ (id >>> 16)) & mask;
+        stripes[stripe].incrementAndGet(layout.indexOf(value));
+    }
+
+    /**
+     * @return a histogram with all the values recorded so far. Values recorded
+     *         while the snapshot is taken may or may not be included.
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram histogram = new LatencyHistogram(layout.getSignificantDigits(), layout.getHighestTrackableValue());
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < stripe.length(); i++) {
+                long count = stripe.get(i);
+                if (count > 0) {
+                    histogram.addCount(i, count);
+                }
+            }
+        }
+        return histogram;
+    }
+}
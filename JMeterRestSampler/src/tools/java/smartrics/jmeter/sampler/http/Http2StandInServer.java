@@ -0,0 +1,286 @@
+/*  Copyright 2009 Fabrizio Cannizzo
+ *
+ *  This file is part of JMeterRestSampler.
+ *
+ *  JMeterRestSampler (http://code.google.com/p/rest-fixture/) is free software:
+ *  you can redistribute it and/or modify it under the terms of the
+ *  BSD License
+ *
+ *  You should have received a copy of the BSD License
+ *  along with JMeterRestSampler.  If not, see <http://opensource.org/licenses/bsd-license.php>.
+ *
+ *  If you want to contact the author please see http://smartrics.blogspot.com
+ */
+
+package smartrics.jmeter.sampler.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal h2c server, with prior knowledge, to try the HTTP/2 mode of the
+ * RestSampler end to end without a real server.
+ *
+ * Every request gets a 200 with a text body naming its stream, its path and
+ * the number of bytes of its body. Two query parameters shape the response:
+ * <code>delay</code>, in milliseconds, delays it, which shows the streams of
+ * a connection overlapping; <code>size</code> pads the body to that many
+ * bytes, up to 1MB.
+ *
+ * Run with <code>java smartrics.jmeter.sampler.http.Http2StandInServer [port]
+ * [max concurrent streams]</code>, after building it with the tools target;
+ * it is not part of the plugin.
+ */
+public final class Http2StandInServer implements Runnable {
+
+    private static final int MAX_BODY = 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final int maxConcurrentStreams;
+    private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(2);
+    private volatile boolean running = true;
+
+    /**
+     * Starts a server on the given port, 0 for any free one.
+     */
+    public Http2StandInServer(int port, int maxConcurrentStreams) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        Thread acceptor = new Thread(this, "h2c-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void close() {
+        running = false;
+        responder.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "h2c-stand-in-" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] preface = new byte[Http2Frame.PREFACE.length];
+            for (int i = 0; i < preface.length; i++) {
+                if (in.read() != (Http2Frame.PREFACE[i] & 0xff)) {
+                    throw new IOException("Not an HTTP/2 prior knowledge connection");
+                }
+            }
+            synchronized (out) {
+                Http2Frame.writeSettings(out, new int[] { Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams });
+                out.flush();
+            }
+            new ServerConnection(out).read(in);
+        } catch (IOException e) {
+            // connection closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private final class ServerConnection {
+        private final OutputStream out;
+        private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        private final Map<Integer, String[]> requests = new HashMap<Integer, String[]>();
+        private final Map<Integer, long[]> bodies = new HashMap<Integer, long[]>();
+        private ByteArrayOutputStream headerBlock;
+        private int headerStream;
+        private boolean headerEndStream;
+
+        ServerConnection(OutputStream out) {
+            this.out = out;
+        }
+
+        void read(InputStream in) throws IOException {
+            Http2Frame frame;
+            while ((frame = Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE)) != null) {
+                switch (frame.type) {
+                case Http2Frame.SETTINGS:
+                    if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                        write(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0]);
+                    }
+                    break;
+                case Http2Frame.PING:
+                    if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                        write(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.payload);
+                    }
+                    break;
+                case Http2Frame.HEADERS:
+                    headerBlock = new ByteArrayOutputStream();
+                    headerStream = frame.streamId;
+                    headerEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+                    headerBlock.write(frame.payload, frame.dataOffset(), frame.dataLength());
+                    if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+                        endHeaders();
+                    }
+                    break;
+                case Http2Frame.CONTINUATION:
+                    headerBlock.write(frame.payload, 0, frame.payload.length);
+                    if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+                        endHeaders();
+                    }
+                    break;
+                case Http2Frame.DATA:
+                    long[] count = bodies.get(Integer.valueOf(frame.streamId));
+                    if (count != null) {
+                        count[0] += frame.dataLength();
+                    }
+                    if (frame.payload.length > 0) {
+                        synchronized (out) {
+                            Http2Frame.writeWindowUpdate(out, 0, frame.payload.length);
+                            Http2Frame.writeWindowUpdate(out, frame.streamId, frame.payload.length);
+                            out.flush();
+                        }
+                    }
+                    if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+                        respond(frame.streamId);
+                    }
+                    break;
+                case Http2Frame.GOAWAY:
+                    return;
+                default:
+                    break;
+                }
+            }
+        }
+
+        private void endHeaders() throws IOException {
+            byte[] block = headerBlock.toByteArray();
+            headerBlock = null;
+            String method = null;
+            String path = null;
+            for (String[] h : decoder.decode(block, 0, block.length)) {
+                if (":method".equals(h[0])) {
+                    method = h[1];
+                } else if (":path".equals(h[0])) {
+                    path = h[1];
+                }
+            }
+            Integer stream = Integer.valueOf(headerStream);
+            requests.put(stream, new String[] { method, path });
+            bodies.put(stream, new long[1]);
+            if (headerEndStream) {
+                respond(headerStream);
+            }
+        }
+
+        private void respond(final int streamId) {
+            Integer stream = Integer.valueOf(streamId);
+            String[] request = requests.remove(stream);
+            long bodyLength = bodies.remove(stream)[0];
+            String path = request[1] == null ? "/" : request[1];
+            StringBuilder sb = new StringBuilder();
+            sb.append(request[0]).append(' ').append(path).append(" on stream ").append(streamId).append(", ").append(bodyLength).append(
+                    " bytes received\n");
+            int size = (int) Math.min(queryParameter(path, "size"), MAX_BODY);
+            while (sb.length() < size) {
+                sb.append('.');
+            }
+            final byte[] body = sb.toString().getBytes();
+            Runnable response = new Runnable() {
+                public void run() {
+                    List<String[]> headers = new ArrayList<String[]>();
+                    headers.add(new String[] { ":status", "200" });
+                    headers.add(new String[] { "content-type", "text/plain" });
+                    headers.add(new String[] { "content-length", Integer.toString(body.length) });
+                    try {
+                        synchronized (out) {
+                            Http2Frame.writeHeaders(out, streamId, Hpack.encode(headers), false, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+                            int offset = 0;
+                            do {
+                                int n = Math.min(body.length - offset, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+                                Http2Frame.write(out, Http2Frame.DATA, offset + n == body.length ? Http2Frame.FLAG_END_STREAM : 0, streamId, body,
+                                        offset, n);
+                                offset += n;
+                            } while (offset < body.length);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // connection closed by the client
+                    }
+                }
+            };
+            responder.schedule(response, queryParameter(path, "delay"), TimeUnit.MILLISECONDS);
+        }
+
+        private void write(int type, int flags, int streamId, byte[] payload) throws IOException {
+            synchronized (out) {
+                Http2Frame.write(out, type, flags, streamId, payload, 0, payload.length);
+                out.flush();
+            }
+        }
+    }
+
+    private static long queryParameter(String path, String name) {
+        int query = path.indexOf('?');
+        if (query < 0) {
+            return 0;
+        }
+        for (String pair : path.substring(query + 1).split("&")) {
+            if (pair.startsWith(name + "=")) {
+                try {
+                    return Math.max(Long.parseLong(pair.substring(name.length() + 1)), 0);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8082;
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        Http2StandInServer server = new Http2StandInServer(port, streams);
+        System.out.println("h2c stand-in server listening on port " + server.getPort() + ", " + streams + " concurrent streams per connection");
+        synchronized (server) {
+            server.wait();
+        }
+    }
+}